@@ -3,6 +3,7 @@ package simpledb.common;
 import simpledb.common.Type;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.IoMode;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -48,10 +49,15 @@ public class Catalog {
 	        throw new  IllegalArgumentException("Name should not be empty.");
 	    }
 	    else{
-	        if(this.catalogMap.containsKey(tableId)){
-	            this.catalogMap.remove(tableId);
+	        Table old = this.catalogMap.remove(tableId);
+	        if (old != null && old.getFile() != file) {
+	            closeFile(old.getFile());
 	        }
-	        this.catalogMap.entrySet().removeIf(entry -> entry.getValue().getName() == name);
+	        this.catalogMap.entrySet().removeIf(entry -> {
+	            if (entry.getValue().getName() != name) return false;
+	            closeFile(entry.getValue().getFile());
+	            return true;
+	        });
 	        Table t = new Table(file, name, pkeyField);
             this.catalogMap.put(tableId, t);
 	    }
@@ -61,6 +67,20 @@ public class Catalog {
         addTable(file, name, "");
     }
 
+    /**
+     * Add a new table to the catalog, reading and writing its pages in the
+     * given I/O mode.
+     * @param file the contents of the table to add
+     * @param name the name of the table -- may be an empty string.  May not be null.
+     * @param pkeyField the name of the primary key field
+     * @param mode how the table's file accesses the disk
+     * @see #setIoMode
+     */
+    public void addTable(DbFile file, String name, String pkeyField, IoMode mode) {
+        addTable(file, name, pkeyField);
+        setIoMode(file.getId(), mode);
+    }
+
     /**
      * Add a new table to the catalog.
      * This table has tuples formatted using the specified TupleDesc and its
@@ -127,6 +147,32 @@ public class Catalog {
         }
     }
 
+    /**
+     * Choose how the specified table reads and writes its pages.
+     * Switch modes only while the table is not being accessed.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @param mode RANDOM_ACCESS to open the file for every page, CHANNEL to
+     *     keep a FileChannel open, or MMAP to also map the file into memory
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws UnsupportedOperationException if the table's file does not support mode
+     */
+    public void setIoMode(int tableid, IoMode mode) {
+        try {
+            getDatabaseFile(tableid).setIoMode(mode);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return how the specified table reads and writes its pages
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public IoMode getIoMode(int tableid) {
+        return getDatabaseFile(tableid).getIoMode();
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return this.catalogMap.keySet().iterator();
@@ -141,11 +187,36 @@ public class Catalog {
         }
     }
     
+    /**
+     * Delete a table from the catalog, releasing the file handles its file
+     * keeps open. Does nothing if there is no such table.
+     * @param tableid the id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        Table t = this.catalogMap.remove(tableid);
+        if (t != null) {
+            closeFile(t.getFile());
+        }
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+	    for (Table t : this.catalogMap.values()) {
+	        closeFile(t.getFile());
+	    }
 	    this.catalogMap.clear();
     }
+
+    /** Release the file handles a table's file keeps open. */
+    private static void closeFile(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
@@ -62,8 +62,9 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.flushPendingWrites();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
+        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException | IOException e) {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
@@ -72,7 +73,13 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        try {
+            old._bufferpool.flushPendingWrites();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        old._catalog.clear();
     }
 
 }
@@ -0,0 +1,625 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom-up from tuples sorted on the key
+ * field, writing each page once, shortly after it is finished.
+ * <p>
+ * Only the page being filled on each level of the tree, and the page before
+ * it, are kept in memory.
+ * The number of tuples is known before the first page is written, so the
+ * size of every page can be planned: pages are filled to the fill factor,
+ * except the last two pages of a level, which share what is left between
+ * them so that neither falls below minimum occupancy. Because of that plan
+ * a page never has to be read back, and its parent, siblings and fence keys
+ * are all known when it is written.
+ * <p>
+ * Internal pages with variable-length keys cannot be planned that way, as how
+ * many keys fit depends on keys still to come: they are filled to the fill
+ * factor in bytes instead, and the last page of a level may be left below
+ * minimum occupancy. It may even be left with a child but no entry, when the
+ * entry for the child before did not fit on the page before; it then takes
+ * the last entry of that page, which is why the page before is kept. The keys
+ * pushed up from the leaves are the shortest that separate them, as when a
+ * leaf splits.
+ * <p>
+ * Input that is not sorted yet goes through {@link #sort} first, an external
+ * merge sort that keeps at most one run of tuples in memory.
+ */
+public class BTreeBulkLoader {
+
+	/** The number of tuples sorted in memory at a time by {@link #createIndex}. */
+	public static final int DEFAULT_RUN_TUPLES = 100000;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+	private final int leafTarget;
+	private final int leafMin;
+	private final int internalTarget;
+	private final int internalMin;
+	private final boolean variableLength;
+	/** The bytes of entries wanted on an internal page with variable-length keys. */
+	private final int internalSpaceTarget;
+
+	/** The page number the next page allocated gets. */
+	private int nextPageNo = 1;
+
+	// the leaf being filled, and the tuples still to come, including those on it
+	private BTreeLeafPage leaf;
+	/** The leaf before, finished but not written yet. */
+	private BTreeLeafPage prevLeaf;
+	private BTreePageId leafParent;
+	private BTreePageId leftLeaf;
+	private int leafSize;
+	private long leafRemaining;
+	private Field lastKey;
+
+	/** The internal page being filled on each level above the leaves, bottom up. */
+	private final List<Level> levels = new ArrayList<>();
+	/** The number of keys, entries plus the separators between pages, on each level above the leaves. */
+	private final List<Long> levelKeys = new ArrayList<>();
+
+	/** The internal page being filled on one level of the tree. */
+	private static class Level {
+		BTreeInternalPage page;
+		/** The page before on the level, finished but not written yet. */
+		BTreeInternalPage prev;
+		BTreePageId parent;
+		int size;
+		long remaining;
+	}
+
+	private BTreeBulkLoader(BTreeFile bf, double fillFactor, long tuples) throws IOException {
+		if (!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("need a fill factor in (0, 1]");
+		}
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.tableid = bf.getId();
+		this.keyField = bf.keyField();
+
+		// fill factors below one half would leave pages under minimum occupancy
+		int maxTuples = new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyField).getMaxTuples();
+		BTreeInternalPage internal = new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyField);
+		int maxEntries = internal.getMaxEntries();
+		leafMin = maxTuples / 2;
+		leafTarget = Math.max(leafMin, (int) (maxTuples * fillFactor));
+		internalMin = maxEntries / 2;
+		internalTarget = Math.max(internalMin, (int) (maxEntries * fillFactor));
+		variableLength = internal.hasVariableLengthKeys();
+		internalSpaceTarget = (int) (internal.getMaxSpace() * Math.max(0.5, fillFactor));
+
+		// plan how many keys each level gets
+		leafRemaining = tuples;
+		long pages = countPages(tuples, leafTarget, leafMin, 0);
+		while (pages > 1 && !variableLength) {
+			levelKeys.add(pages - 1);
+			pages = countPages(pages - 1, internalTarget, internalMin, 1);
+		}
+	}
+
+	/**
+	 * Bulk load a B+ tree from tuples sorted on its key field, counting them
+	 * in a first pass over the input.
+	 *
+	 * @param bf - the BTreeFile to load, which must be in the catalog and whose file must be empty
+	 * @param sorted - the tuples, in key order
+	 * @param fillFactor - how full to make each page, from 0.5 to 1; less is taken as 0.5
+	 * @throws DbException if the file is not empty or the input is not sorted
+	 */
+	public static void load(BTreeFile bf, DbFileIterator sorted, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		long tuples = 0;
+		sorted.open();
+		try {
+			while (sorted.hasNext()) {
+				sorted.next();
+				tuples++;
+			}
+		} finally {
+			sorted.close();
+		}
+		load(bf, sorted, tuples, fillFactor);
+	}
+
+	/**
+	 * Bulk load a B+ tree from a known number of tuples sorted on its key field.
+	 *
+	 * @param bf - the BTreeFile to load, which must be in the catalog and whose file must be empty
+	 * @param sorted - the tuples, in key order
+	 * @param tuples - the number of tuples sorted returns
+	 * @param fillFactor - how full to make each page, from 0.5 to 1; less is taken as 0.5
+	 * @throws DbException if the file is not empty, or the input is not sorted
+	 *         or does not hold the number of tuples given
+	 */
+	public static void load(BTreeFile bf, DbFileIterator sorted, long tuples, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		if (bf.getFile().length() != 0) {
+			throw new DbException("can only bulk load into an empty file");
+		}
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf, fillFactor, tuples);
+
+		// reserve the root pointer page, which is written last
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(loader.tableid),
+				BTreeRootPtrPage.createEmptyPageData()));
+		sorted.open();
+		try {
+			while (sorted.hasNext()) {
+				loader.add(sorted.next());
+			}
+		} finally {
+			sorted.close();
+		}
+		loader.finish();
+	}
+
+	/**
+	 * Build a B+ tree index on an existing heap file while the database is
+	 * running. Transaction tid locks the whole heap file shared before
+	 * scanning it, so other transactions may go on reading the table, while
+	 * those updating it or appending to it wait until tid completes; the index
+	 * holds the tuples of the table as tid read them. The index is known to
+	 * the catalog under name only once it is built; if the build fails, it is
+	 * removed from the catalog and its file is deleted.
+	 * <p>
+	 * The pages of the index are written straight to its file, outside the
+	 * BufferPool and the log, so aborting tid does not undo the build: a
+	 * caller that aborts tid after inserting or deleting tuples of the table
+	 * itself should drop the index too.
+	 *
+	 * @param tid - the transaction scanning the heap file
+	 * @param hf - the heap file to index
+	 * @param bFile - the file to back the index, which must be empty or missing
+	 * @param keyField - the field to index on
+	 * @param fillFactor - how full to make each page, from 0.5 to 1
+	 * @param name - the name of the index in the catalog
+	 * @return the index
+	 * @throws DbException if bFile is not empty
+	 */
+	public static BTreeFile createIndex(TransactionId tid, HeapFile hf, File bFile, int keyField,
+			double fillFactor, String name) throws IOException, DbException, TransactionAbortedException {
+		if (bFile.length() != 0) {
+			throw new DbException("can only bulk load into an empty file");
+		}
+		BTreeFile bf = new BTreeFile(bFile, keyField, hf.getTupleDesc());
+		// the pages being built look their TupleDesc up in the catalog, so
+		// the index goes in under a name of its own until it is complete
+		Database.getCatalog().addTable(bf);
+		boolean built = false;
+		try {
+			Database.getBufferPool().lockTable(tid, hf.getId());
+			SortedRuns sorted = sort(hf.iterator(tid), hf.getTupleDesc(), keyField, DEFAULT_RUN_TUPLES);
+			try {
+				load(bf, sorted, sorted.size(), fillFactor);
+			} finally {
+				sorted.delete();
+			}
+			built = true;
+		} finally {
+			if (!built) {
+				// leave no half-built index behind
+				Database.getCatalog().removeTable(bf.getId());
+				bFile.delete();
+			}
+		}
+		Database.getCatalog().addTable(bf, name);
+		return bf;
+	}
+
+	/**
+	 * Sort tuples on a field with an external merge sort: the input is cut
+	 * into runs of runTuples tuples, each sorted in memory and written to a
+	 * temporary file, and the runs are merged as the result is read. Tuples
+	 * with equal keys keep their input order.
+	 *
+	 * @param it - the tuples to sort; opened and closed here
+	 * @param td - the TupleDesc of the tuples
+	 * @param keyField - the field to sort on
+	 * @param runTuples - the number of tuples sorted in memory at a time
+	 * @return the sorted tuples, whose runs should be deleted once they are read
+	 */
+	public static SortedRuns sort(DbFileIterator it, TupleDesc td, int keyField, int runTuples)
+			throws IOException, DbException, TransactionAbortedException {
+		if (runTuples < 1) {
+			throw new IllegalArgumentException("need at least one tuple per run");
+		}
+		SortedRuns runs = new SortedRuns(td, keyField);
+		List<Tuple> run = new ArrayList<>();
+		it.open();
+		try {
+			while (it.hasNext()) {
+				run.add(it.next());
+				if (run.size() == runTuples) {
+					runs.addRun(run);
+					run.clear();
+				}
+			}
+		} catch (IOException | DbException | TransactionAbortedException | RuntimeException e) {
+			runs.delete();
+			throw e;
+		} finally {
+			it.close();
+		}
+		if (!run.isEmpty()) {
+			runs.addRun(run);
+		}
+		return runs;
+	}
+
+	/**
+	 * Plan the pages of one level.
+	 *
+	 * @param remaining - the tuples, or keys, still to go on the level
+	 * @param target - the number wanted on a page
+	 * @param min - the least a page may hold
+	 * @param sep - the number of keys used up between two pages: 0 for leaves, whose
+	 *              separators are copied up, and 1 for internal pages, whose are pushed up
+	 * @return the number of tuples, or entries, for the next page
+	 */
+	private static int pageSize(long remaining, int target, int min, int sep) {
+		if (remaining <= target) {
+			return (int) remaining;
+		}
+		if (remaining <= 2L * target) {
+			// share what is left with the last page, unless that would leave
+			// either short, in which case it all fits on this one
+			return (remaining - sep) / 2 >= min ? (int) (remaining / 2) : (int) remaining;
+		}
+		return target;
+	}
+
+	private static long countPages(long remaining, int target, int min, int sep) {
+		long pages = 0;
+		while (remaining > 0) {
+			int size = pageSize(remaining, target, min, sep);
+			remaining -= size;
+			if (remaining > 0) {
+				remaining -= sep;
+			}
+			pages++;
+		}
+		return pages;
+	}
+
+	private BTreePageId allocate(int pgcateg) {
+		return new BTreePageId(tableid, nextPageNo++, pgcateg);
+	}
+
+	/**
+	 * Add the next tuple to the current leaf, finishing the leaf first if it
+	 * has all the tuples planned for it.
+	 */
+	private void add(Tuple t) throws IOException, DbException {
+		Field key = t.getField(keyField);
+		if (lastKey != null && key.compare(Op.LESS_THAN, lastKey)) {
+			throw new DbException("bulk load input is not sorted on field " + keyField);
+		}
+		Field prevKey = lastKey;
+		lastKey = key;
+
+		if (leaf == null || leaf.getNumTuples() == leafSize) {
+			if (leafRemaining == 0) {
+				throw new DbException("bulk load input has more tuples than planned");
+			}
+			BTreePageId next = allocate(BTreePageId.LEAF);
+			BTreePageId parent = null;
+			if (leaf != null) {
+				parent = push(0, BTreeInternalPage.getSeparator(prevKey, key), next);
+				leaf.setRightSiblingId(next);
+				finishLeaf();
+				leftLeaf = leaf.getId();
+			}
+			leaf = new BTreeLeafPage(next, BTreeLeafPage.createEmptyPageData(), keyField);
+			leaf.setLeftSiblingId(leftLeaf);
+			leafParent = parent;
+			leafSize = pageSize(leafRemaining, leafTarget, leafMin, 0);
+			leafRemaining -= leafSize;
+		}
+
+		// the input's tuples may belong to pages of their own, so copy them
+		Tuple copy = new Tuple(td);
+		for (int i = 0; i < td.numFields(); i++) {
+			copy.setField(i, t.getField(i));
+		}
+		leaf.insertTuple(copy);
+	}
+
+	/**
+	 * Add a child to the page being filled on one level, the left child being
+	 * the page now finishing on the level below. If the page has all the
+	 * children planned for it, finish it and start the next one with the
+	 * child, pushing the key up as the separator between the two.
+	 *
+	 * @param k - the level, 0 being the one above the leaves
+	 * @param key - the key separating the left and right child
+	 * @param right - the new child
+	 * @return the parent of the new child
+	 */
+	private BTreePageId push(int k, Field key, BTreePageId right) throws IOException, DbException {
+		BTreePageId left = (k == 0 ? leaf.getId() : levels.get(k - 1).page.getId());
+		if (levels.size() == k) {
+			Level lv = new Level();
+			if (!variableLength) {
+				lv.remaining = levelKeys.get(k);
+			}
+			startInternal(lv, allocate(BTreePageId.INTERNAL), null, null);
+			levels.add(lv);
+			// the first child of the level gets its parent now
+			if (k == 0) {
+				leafParent = lv.page.getId();
+			} else {
+				levels.get(k - 1).parent = lv.page.getId();
+			}
+		}
+
+		Level lv = levels.get(k);
+		if (hasRoom(lv, key)) {
+			lv.page.insertEntry(new BTreeEntry(key, left, right));
+			return lv.page.getId();
+		}
+
+		BTreePageId next = allocate(BTreePageId.INTERNAL);
+		BTreePageId parent = push(k + 1, key, next);
+		lv.page.setRightSiblingId(next);
+		lv.page.setHighKey(key);
+		finishInternal(lv);
+		// right is the only child of the next page until its first entry comes
+		startInternal(lv, next, parent, key);
+		return next;
+	}
+
+	/**
+	 * Whether the page being filled on a level takes another entry with the given
+	 * key: if it has fewer than planned, or with variable-length keys, if the
+	 * entry fits within the fill factor.
+	 */
+	private boolean hasRoom(Level lv, Field key) {
+		if (variableLength) {
+			// leave room for its last key to be replaced by a longer one in finish()
+			return lv.page.getNumEmptySlots() > 1
+					&& lv.page.getUsedSpace() + lv.page.getEntrySize(key) <= internalSpaceTarget;
+		}
+		return lv.page.getNumEntries() < lv.size;
+	}
+
+	private void startInternal(Level lv, BTreePageId pid, BTreePageId parent, Field lowKey) throws IOException {
+		lv.page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), keyField);
+		lv.page.setLowKey(lowKey);
+		lv.parent = parent;
+		if (variableLength) {
+			return;
+		}
+		lv.size = pageSize(lv.remaining, internalTarget, internalMin, 1);
+		lv.remaining -= lv.size;
+		if (lv.remaining > 0) {
+			lv.remaining--;
+		}
+	}
+
+	/** Finish the current leaf, writing the one before it. */
+	private void finishLeaf() throws IOException, DbException {
+		leaf.setParentId(leafParent != null ? leafParent : BTreeRootPtrPage.getId(tableid));
+		if (prevLeaf != null) {
+			bf.writePage(prevLeaf);
+		}
+		prevLeaf = leaf;
+	}
+
+	/** Finish the page being filled on a level, writing the one before it. */
+	private void finishInternal(Level lv) throws IOException, DbException {
+		lv.page.setParentId(lv.parent != null ? lv.parent : BTreeRootPtrPage.getId(tableid));
+		if (lv.prev != null) {
+			bf.writePage(lv.prev);
+		}
+		lv.prev = lv.page;
+	}
+
+	/**
+	 * Give the last page of level k, which has a child but no entry, the last
+	 * entry of the page before it, so that it has two children. The key
+	 * separating the two pages in the level above becomes the key of the
+	 * entry moved, and the right child of the entry moves to the last page.
+	 */
+	private void takeLastEntry(int k) throws DbException {
+		Level lv = levels.get(k);
+		BTreeEntry last = lv.prev.reverseIterator().next();
+		lv.prev.deleteKeyAndRightChild(last);
+		lv.prev.setHighKey(last.getKey());
+		BTreePageId only = (k == 0 ? leaf.getId() : levels.get(k - 1).page.getId());
+		lv.page.insertEntry(new BTreeEntry(lv.page.getLowKey(), last.getRightChild(), only));
+		lv.page.setLowKey(last.getKey());
+		BTreePage moved = (k == 0 ? prevLeaf : levels.get(k - 1).prev);
+		moved.setParentId(lv.page.getId());
+
+		Level up = levels.get(k + 1);
+		if (up.page.getNumEntries() > 0) {
+			BTreeEntry sep = up.page.reverseIterator().next();
+			sep.setKey(last.getKey());
+			up.page.updateEntry(sep);
+		} else {
+			// the level above has the same trouble, and is seen to next
+			up.page.setLowKey(last.getKey());
+			up.prev.setHighKey(last.getKey());
+		}
+	}
+
+	/** Write out the last page of each level, and the root pointer. */
+	private void finish() throws IOException, DbException {
+		if (leafRemaining != 0 || (leaf != null && leaf.getNumTuples() != leafSize)) {
+			throw new DbException("bulk load input has fewer tuples than planned");
+		}
+		if (leaf == null) {
+			// no tuples: the root is an empty leaf
+			leaf = new BTreeLeafPage(allocate(BTreePageId.LEAF), BTreeLeafPage.createEmptyPageData(), keyField);
+		}
+		for (int k = 0; k < levels.size(); k++) {
+			if (levels.get(k).page.getNumEntries() == 0) {
+				takeLastEntry(k);
+			}
+		}
+		finishLeaf();
+		bf.writePage(leaf);
+		for (Level lv : levels) {
+			finishInternal(lv);
+			bf.writePage(lv.page);
+		}
+
+		BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+				BTreeRootPtrPage.createEmptyPageData());
+		rootPtr.setRootId(levels.isEmpty() ? leaf.getId() : levels.get(levels.size() - 1).page.getId());
+		bf.writePage(rootPtr);
+	}
+
+	/**
+	 * Sorted runs of tuples in temporary files, read back merged into a
+	 * single sorted stream.
+	 */
+	public static class SortedRuns extends AbstractDbFileIterator {
+		private final TupleDesc td;
+		private final Comparator<Tuple> cmp;
+		private final List<File> files = new ArrayList<>();
+		private final List<Integer> counts = new ArrayList<>();
+		private long size = 0;
+
+		// while open, the next tuple of each run that has any left, smallest first
+		private PriorityQueue<Run> heads;
+
+		/** A run being read. */
+		private class Run {
+			final int index;
+			final DataInputStream in;
+			int left;
+			Tuple head;
+
+			Run(int index) throws IOException {
+				this.index = index;
+				this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(files.get(index))));
+				this.left = counts.get(index);
+			}
+
+			/** Read the next tuple of the run into head, if any. */
+			boolean advance() throws IOException, ParseException {
+				if (left == 0) {
+					in.close();
+					return false;
+				}
+				left--;
+				head = new Tuple(td);
+				for (int i = 0; i < td.numFields(); i++) {
+					head.setField(i, td.getFieldType(i).parse(in));
+				}
+				return true;
+			}
+		}
+
+		SortedRuns(TupleDesc td, int keyField) {
+			this.td = td;
+			this.cmp = new BTreeFileEncoder.TupleComparator(keyField);
+		}
+
+		/** Sort run and write it out as a new run. */
+		void addRun(List<Tuple> run) throws IOException {
+			run.sort(cmp);
+			File f = File.createTempFile("btreeRun", ".dat");
+			f.deleteOnExit();
+			files.add(f);
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+				for (Tuple t : run) {
+					for (int i = 0; i < td.numFields(); i++) {
+						t.getField(i).serialize(dos);
+					}
+				}
+			}
+			counts.add(run.size());
+			size += run.size();
+		}
+
+		/** @return the number of tuples sorted */
+		public long size() {
+			return size;
+		}
+
+		/** @return the number of runs the tuples were sorted in */
+		public int numRuns() {
+			return files.size();
+		}
+
+		public void open() throws DbException {
+			close();
+			heads = new PriorityQueue<>(Math.max(1, files.size()), (r1, r2) -> {
+				int c = cmp.compare(r1.head, r2.head);
+				return c != 0 ? c : Integer.compare(r1.index, r2.index);
+			});
+			try {
+				for (int i = 0; i < files.size(); i++) {
+					Run r = new Run(i);
+					if (r.advance()) {
+						heads.add(r);
+					}
+				}
+			} catch (IOException | ParseException e) {
+				close();
+				throw new DbException("could not read sorted run: " + e);
+			}
+		}
+
+		protected Tuple readNext() throws DbException {
+			if (heads == null || heads.isEmpty()) {
+				return null;
+			}
+			Run r = heads.poll();
+			Tuple t = r.head;
+			try {
+				if (r.advance()) {
+					heads.add(r);
+				}
+			} catch (IOException | ParseException e) {
+				throw new DbException("could not read sorted run: " + e);
+			}
+			return t;
+		}
+
+		public void rewind() throws DbException {
+			open();
+		}
+
+		public void close() {
+			super.close();
+			if (heads != null) {
+				for (Run r : heads) {
+					try {
+						r.in.close();
+					} catch (IOException e) {
+						// nothing more to read from it anyway
+					}
+				}
+				heads = null;
+			}
+		}
+
+		/** Close the runs and delete their files. */
+		public void delete() {
+			close();
+			for (File f : files) {
+				f.delete();
+			}
+			files.clear();
+			counts.clear();
+			size = 0;
+		}
+	}
+}
@@ -60,8 +60,8 @@ public class BTreeChecker {
     /**
      * checks the integrity of the tree:
      * 1) parent pointers.
-     * 2) sibling pointers.
-     * 3) range invariants.
+     * 2) sibling pointers, of leaf and internal pages.
+     * 3) range invariants, and the low and high keys of internal pages.
      * 4) record to page pointers.
      * 5) occupancy invariants. (if enabled)
      */
@@ -72,16 +72,21 @@ public class BTreeChecker {
 
         if (rtptr.getRootId() == null) { // non existent root is a legal state.
         } else {
+            Map<Integer, BTreePageId> nextInternal = new HashMap<>();
             SubtreeSummary res = checkSubTree(bt, tid, dirtypages,
-                    rtptr.getRootId(), null, null, rtptr.getId(), checkOccupancy, 0);
+                    rtptr.getRootId(), null, null, rtptr.getId(), checkOccupancy, 0, nextInternal);
             assert (res.ptrLeft == null);
             assert (res.ptrRight == null);
+            for (BTreePageId next : nextInternal.values()) {
+                assert (next == null);
+            }
         }
     }
 
     static SubtreeSummary checkSubTree(BTreeFile bt, TransactionId tid, Map<PageId, Page> dirtypages,
                                        BTreePageId pageId, Field lowerBound, Field upperBound,
-                                       BTreePageId parentId, boolean checkOccupancy, int depth) throws
+                                       BTreePageId parentId, boolean checkOccupancy, int depth,
+                                       Map<Integer, BTreePageId> nextInternal) throws
             TransactionAbortedException, DbException {
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
         assert(page.getParentId().equals(parentId));
@@ -95,6 +100,13 @@ public class BTreeChecker {
             BTreeInternalPage ipage = (BTreeInternalPage) page;
             ipage.checkRep(lowerBound, upperBound, checkOccupancy, depth);
 
+            // pages are visited left to right, so the last page visited on this
+            // level must point to this one
+            if (nextInternal.containsKey(depth)) {
+                assert(ipage.getId().equals(nextInternal.get(depth)));
+            }
+            nextInternal.put(depth, ipage.getRightSiblingId());
+
             SubtreeSummary acc = null;
             BTreeEntry prev = null;
             Iterator<BTreeEntry> it = ipage.iterator();
@@ -102,7 +114,7 @@ public class BTreeChecker {
             prev = it.next();
             { // init acc and prev.
                 acc = checkSubTree(bt, tid, dirtypages, prev.getLeftChild(), lowerBound, prev.getKey(), ipage.getId(),
-                        checkOccupancy, depth + 1);
+                        checkOccupancy, depth + 1, nextInternal);
                 lowerBound = prev.getKey();
             }
 
@@ -112,7 +124,7 @@ public class BTreeChecker {
                 curr = it.next();
                 SubtreeSummary currentSubTreeResult =
                         checkSubTree(bt, tid, dirtypages, curr.getLeftChild(), lowerBound, curr.getKey(), ipage.getId(),
-                                checkOccupancy, depth + 1);
+                                checkOccupancy, depth + 1, nextInternal);
                 acc = SubtreeSummary.checkAndMerge(acc, currentSubTreeResult);
 
                 // need to move stuff for next iter:
@@ -120,7 +132,7 @@ public class BTreeChecker {
             }
 
             SubtreeSummary lastRight = checkSubTree(bt, tid, dirtypages, curr.getRightChild(), lowerBound, upperBound,
-                    ipage.getId(), checkOccupancy, depth + 1);
+                    ipage.getId(), checkOccupancy, depth + 1, nextInternal);
             acc = SubtreeSummary.checkAndMerge(acc, lastRight);
 
             return acc;
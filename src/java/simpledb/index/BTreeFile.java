@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.common.Database;
@@ -24,14 +25,28 @@ import simpledb.transaction.TransactionId;
  * @see BTreeInternalPage#BTreeInternalPage
  * @see BTreeHeaderPage#BTreeHeaderPage
  * @see BTreeRootPtrPage#BTreeRootPtrPage
+ * <p>
+ * Internal pages are guarded by short-term latches as well as locks (see
+ * BTreeLatches), and are linked as in a B-link tree: each has a pointer to
+ * its right sibling on the same level, and the low and high keys bounding its
+ * range. Searches and inserts descend under latches alone, one page at a time,
+ * moving right past splits they race with, and lock only their leaf; only an
+ * insert that has to split, or an operation that cannot descend that way,
+ * descends again locking the internal pages on its path.
+ * 
  * @author Becca Taft
  */
 public class BTreeFile implements DbFile {
 
+	/** How many latched descents a search or insert tries before it descends under locks. */
+	private static final int OPTIMISTIC_ATTEMPTS = 3;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageIo io;
+	private final BTreeLatches latches = new BTreeLatches();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +61,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.io = new PageIo(f);
 	}
 
 	/**
@@ -87,49 +103,52 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				io.read(0, pageBuf);
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				io.read(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize(), pageBuf);
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a page into a frame lent by the BufferPool. Leaf pages, which hold
+	 * the bulk of the data, are built over the frame and decode their tuples
+	 * lazily; other pages are read the usual way.
+	 * 
+	 * @param pid - the id of the page to read
+	 * @param frame - a page-sized direct buffer
+	 */
+	@Override
+	public Page readPage(PageId pid, ByteBuffer frame) {
+		BTreePageId id = (BTreePageId) pid;
+		if (id.pgcateg() != BTreePageId.LEAF) {
+			return readPage(pid);
+		}
+		try {
+			long offset = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+			io.read(offset, frame);
+			Debug.log(1, "BTreeFile.readPage: read page %d into a frame", id.getPageNumber());
+			return new BTreeLeafPage(id, new PageFrame(frame), keyField);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,17 +160,31 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			io.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			io.write(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize(), data);
 		}
 	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public void setIoMode(IoMode mode) throws IOException {
+		io.setMode(mode);
+	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public IoMode getIoMode() {
+		return io.getMode();
+	}
+
+	// see DbFile.java for javadocs
+	@Override
+	public void close() throws IOException {
+		io.close();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -193,27 +226,16 @@ public class BTreeFile implements DbFile {
 				return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
 
 			case BTreePageId.INTERNAL:
-				// If the current page is internal, navigate through its entries to find the appropriate child.
+				// If the current page is internal, binary search its keys for the appropriate child:
+				// left of the first key greater than or equal to the field, or the leftmost child if
+				// no field is specified.
 				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-				Iterator<BTreeEntry> iter = page.iterator();
-				if (iter == null || !iter.hasNext()) {
+				BTreePageId child = page.findChild(f);
+				if (child == null) {
 					// If the internal page has no entries, this is an error.
 					throw new DbException("No elements left to iterate.");
 				}
-				if (f == null) {
-					// If no field is specified, recursively search using the leftmost child.
-					return findLeafPage(tid, dirtypages, iter.next().getLeftChild(), perm, f);
-				}
-				BTreeEntry entry = null;
-				while (iter.hasNext()) {
-					entry = iter.next();
-					if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-						// If the entry's key is greater than or equal to the field, search left.
-						return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-					}
-				}
-				// If we get here, the field is greater than all keys, so search the rightmost child.
-				return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+				return findLeafPage(tid, dirtypages, child, perm, f);
 
 			case BTreePageId.HEADER:
 			case BTreePageId.ROOT_PTR:
@@ -224,20 +246,119 @@ public class BTreeFile implements DbFile {
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Find and lock, with READ_ONLY permission, the left-most leaf page possibly
+	 * containing the key field f. Used by the BTreeFile iterators, which lock no
+	 * internal page unless no latched descent succeeds.
+	 * @see #findLeafPageOptimistic(TransactionId, Map, Permissions, Field)
 	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
-	 * @param f - the field to search for
+	 * @param f - the field to search for, or null for the left-most leaf page
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_ONLY, f);
+		if (leafPage != null) {
+			return leafPage;
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_ONLY, f);
+	}
+
+	/**
+	 * Descend from the root pointer to the left-most leaf page possibly containing
+	 * the key field f, without locks. This is the B-link search of Lehman and Yao:
+	 * each page is read under a shared latch of its own, released before the next
+	 * page is latched, and a page that no longer covers f, because it was split
+	 * since its parent was read, is left through its right sibling pointer. A page
+	 * whose low key shows that f belongs further left, because it was merged or
+	 * reused since, ends the search. Only resident pages are read. What is found
+	 * may include changes of transactions that have not committed, and may abort.
+	 * 
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the id of the leaf page, or null if a page on the way is latched
+	 * exclusively, is not resident or no longer covers f, or the tree is empty
+	 */
+	private BTreePageId findLeafPageLatched(Field f) {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		if (!latches.tryLatchShared(pid)) {
+			return null;
+		}
+		try {
+			Page rootPtr = bp.getResidentPage(pid);
+			if (!(rootPtr instanceof BTreeRootPtrPage)) {
+				return null;
+			}
+			pid = ((BTreeRootPtrPage) rootPtr).getRootId();
+		} finally {
+			latches.unlatchShared(BTreeRootPtrPage.getId(tableid));
+		}
+		while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreePageId latched = pid;
+			if (!latches.tryLatchShared(latched)) {
+				return null;
+			}
+			try {
+				Page page = bp.getResidentPage(latched);
+				if (!(page instanceof BTreeInternalPage)) {
+					return null;
+				}
+				BTreeInternalPage internal = (BTreeInternalPage) page;
+				Field low = internal.getLowKey();
+				Field high = internal.getHighKey();
+				if (low != null && (f == null || f.compare(Op.LESS_THAN_OR_EQ, low))) {
+					return null;
+				}
+				if (high != null && f != null && f.compare(Op.GREATER_THAN, high)) {
+					pid = internal.getRightSiblingId();
+				}
+				else {
+					pid = internal.findChild(f);
+				}
+			} finally {
+				latches.unlatchShared(latched);
+			}
+		}
+		return pid;
+	}
+
+	/**
+	 * Find and lock the leaf page, with permission perm, that is the left-most
+	 * possibly containing the key field f, locking no internal page: descend under
+	 * latches, lock the leaf, and descend again to check that the leaf is still
+	 * the one for f, since the first descent may have followed a split by a
+	 * transaction that has aborted since. Once locked, the leaf stays the one for
+	 * f: a split or a merge that moves its keys must lock it exclusively first.
+	 * <p>
+	 * The leaf is only read once the second descent confirms it, so a stale page
+	 * id is never read or dirtied; the lock on it is harmless.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the leaf page, or null if no latched descent succeeded
+	 * @see #findLeafPageLatched(Field)
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages,
+			Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			BTreePageId leafId = findLeafPageLatched(f);
+			if (leafId == null || leafId.pgcateg() != BTreePageId.LEAF) {
+				continue;
+			}
+			// no latch is held while waiting for the lock
+			Database.getBufferPool().lockPage(tid, leafId, perm);
+			if (leafId.equals(findLeafPageLatched(f))) {
+				return (BTreeLeafPage) getPage(tid, dirtypages, leafId, perm);
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -303,7 +424,9 @@ public class BTreeFile implements DbFile {
 			throw new DbException("No more tup.");
 		}
 
-		Field index = right.iterator().next().getField(keyField);
+		// the shortest key that separates the pages, rather than all of the first on the right
+		Field index = BTreeInternalPage.getSeparator(page.reverseIterator().next().getField(keyField),
+				right.iterator().next().getField(keyField));
 
 		BTreeEntry entry = new BTreeEntry(index, page.getId(), right.getId());
 
@@ -352,24 +475,28 @@ public class BTreeFile implements DbFile {
 		Iterator<BTreeEntry> entries = page.reverseIterator();
 		if(entries == null || !entries.hasNext())
 			throw new DbException("Internal page has no entries!");
-		int numEntry = page.getNumEntries();
-		for (int i=0; i < numEntry / 2; ++i) {
+		// move entries for as long as that leaves the page at least as full as the new
+		// one: half of them, or with variable-length keys, about half of the bytes
+		BTreeEntry e = entries.next();
+		while (right.getUsedSpace() + page.getEntrySize(e.getKey()) <= page.getUsedSpace() - page.getEntrySize(e.getKey())) {
+			page.deleteKeyAndRightChild(e);	
+			right.insertEntry(e);		
 			if (!entries.hasNext()) {
 				throw new DbException("No more entries.");
 			}
-			BTreeEntry entry = entries.next();
-			page.deleteKeyAndRightChild(entry);	
-			right.insertEntry(entry);		
+			e = entries.next();
 		}
 
-		if (!entries.hasNext()) {
-			throw new DbException("No more entries.");
-		}
-
-		BTreeEntry e = entries.next();
 		Field index = e.getKey();
 		page.deleteKeyAndRightChild(e);	
 
+		// link the new page in to the right of the page, splitting its range at the pushed up key
+		right.setRightSiblingId(page.getRightSiblingId());
+		right.setLowKey(index);
+		right.setHighKey(page.getHighKey());
+		page.setRightSiblingId(right.getId());
+		page.setHighKey(index);
+
 		BTreeEntry newEntry = new BTreeEntry(index, page.getId(), right.getId());
 		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), index);
 		parentPage.insertEntry(newEntry);
@@ -508,6 +635,10 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				// pages that latched descents read are latched before they change
+				if(pid.pgcateg() == BTreePageId.INTERNAL || pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					latches.latchExclusive(pid);
+				}
 			}
 			return p;
 		}
@@ -526,27 +657,36 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		latches.begin();
+		try {
+			// most inserts find room in their leaf, and only need to lock that
+			BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+
+			if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+				// get a read lock on the root pointer page and use it to locate the root page
+				BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+				BTreePageId rootId = rootPtr.getRootId();
+
+				if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+					rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+					rootPtr.setRootId(rootId);
+				}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+				// find and lock the left-most leaf page corresponding to the key field,
+				// and split the leaf page if there are no more slots available
+				leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+				if(leafPage.getNumEmptySlots() == 0) {
+					leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+				}
+			}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+		} finally {
+			latches.end();
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
         return new ArrayList<>(dirtypages.values());
 	}
 	
@@ -577,6 +717,13 @@ public class BTreeFile implements DbFile {
 		// the page and siblings
 		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			// taking entries from a sibling replaces the key between them in the parent,
+			// maybe by a longer one, so split a parent with variable-length keys first if
+			// it may not fit, as an insert would. The split updates the page's parent.
+			if(!parent.hasRoomForLongerKey()) {
+				splitInternalPage(tid, dirtypages, parent, parent.iterator().next().getKey());
+				parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+			}
 			Iterator<BTreeEntry> ite = parent.iterator();
 			while(ite.hasNext()) {
 				BTreeEntry e = ite.next();
@@ -685,7 +832,10 @@ public class BTreeFile implements DbFile {
 			page.insertTuple(t);
 		}
 		assert t != null;
-		entry.setKey(t.getField(keyField));
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(BTreeInternalPage.getSeparator(left.reverseIterator().next().getField(keyField),
+				right.iterator().next().getField(keyField)));
 		parent.updateEntry(entry);
 	}
 
@@ -716,12 +866,11 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(!leftSibling.canSpareEntries()) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -732,7 +881,7 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(!rightSibling.canSpareEntries()) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -767,7 +916,7 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 		Iterator<BTreeEntry> moveentry = leftSibling.reverseIterator();
-		int numofSteal = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numofSteal = countEntriesToSteal(page, leftSibling, parentEntry.getKey(), leftSibling.reverseIterator());
 
 		// Move parent's entry to page
 		BTreeEntry move = moveentry.next();
@@ -786,6 +935,8 @@ public class BTreeFile implements DbFile {
 		leftSibling.deleteKeyAndRightChild(move);
 		parentEntry.setKey(move.getKey());
 		parent.updateEntry(parentEntry);
+		leftSibling.setHighKey(move.getKey());
+		page.setLowKey(move.getKey());
 		updateParentPointers(tid, dirtypages, page);
 	}
 	
@@ -815,7 +966,7 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 		Iterator<BTreeEntry> moveentry = rightSibling.iterator();
-		int numofSteal = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numofSteal = countEntriesToSteal(page, rightSibling, parentEntry.getKey(), rightSibling.iterator());
 
 		// Move parent's entry to page
 		BTreeEntry move = moveentry.next();
@@ -833,9 +984,44 @@ public class BTreeFile implements DbFile {
 		rightSibling.deleteKeyAndLeftChild(move);
 		parentEntry.setKey(move.getKey());
 		parent.updateEntry(parentEntry);
+		page.setHighKey(move.getKey());
+		rightSibling.setLowKey(move.getKey());
 		updateParentPointers(tid, dirtypages, page);
 	}
 	
+	/**
+	 * Count the entries to steal from a sibling of an internal page, as keys rotate
+	 * through the parent entry: keep taking one more for as long as the page would
+	 * then hold no more bytes than the sibling. That is half the difference in
+	 * entries when keys are all the same size, and always at least one.
+	 * 
+	 * @param page - the internal page which is less than half full
+	 * @param sibling - the sibling which has entries to spare
+	 * @param parentKey - the key of the entry in the parent pointing to the two pages
+	 * @param moving - the entries of the sibling, starting from the one next to the page
+	 * @return the number of entries to steal
+	 */
+	private static int countEntriesToSteal(BTreeInternalPage page, BTreeInternalPage sibling, Field parentKey,
+			Iterator<BTreeEntry> moving) {
+		// the parent key comes down to the page, and the first entry goes up in its place
+		Field up = moving.next().getKey();
+		int pageSpace = page.getUsedSpace() + page.getEntrySize(parentKey);
+		int siblingSpace = sibling.getUsedSpace() - sibling.getEntrySize(up);
+		int count = 1;
+		while (moving.hasNext()) {
+			// taking one more, the key that went up comes down instead, and the next goes up
+			Field next = moving.next().getKey();
+			if (pageSpace + page.getEntrySize(up) > siblingSpace - sibling.getEntrySize(next)) {
+				break;
+			}
+			pageSpace += page.getEntrySize(up);
+			siblingSpace -= sibling.getEntrySize(next);
+			up = next;
+			count++;
+		}
+		return count;
+	}
+
 	/**
 	 * Merge two leaf pages by moving all tup from the right page to the left page. 
 	 * Delete the corresponding key and right child pointer from the parent, and recursively 
@@ -927,6 +1113,8 @@ public class BTreeFile implements DbFile {
 			right.deleteKeyAndLeftChild(entry);
 			leftPage.insertEntry(entry);
 		}
+		leftPage.setRightSiblingId(right.getRightSiblingId());
+		leftPage.setHighKey(right.getHighKey());
 		setEmptyPage(tid, dirtypages, right.getId().getPageNumber());
 		// Update the corresponding parent page inserted into the child page
 		updateParentPointers(tid, dirtypages, leftPage);
@@ -959,8 +1147,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tup from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -975,7 +1162,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isBelowMinOccupancy()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -994,17 +1181,21 @@ public class BTreeFile implements DbFile {
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
-
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tup from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		latches.begin();
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tup from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+		} finally {
+			latches.end();
 		}
 
         return new ArrayList<>(dirtypages.values());
@@ -1121,15 +1312,14 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-		
-		// make sure the page is not in the buffer pool	or in the local cache		
+		// make sure the page is not in the buffer pool	or in the local cache,
+		// and that nothing older is still on its way to disk
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
+
+		// write empty page to disk
+		io.write(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize(),
+				BTreePage.createEmptyPageData());
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1170,6 +1360,9 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
+		// an internal page freed by this operation needs its latch no more
+		latches.drop(new BTreePageId(tableid, emptyPageNo, BTreePageId.INTERNAL));
+
 		// otherwise, get a read lock on the root pointer page and use it to locate 
 		// the first header page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
@@ -1273,10 +1466,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, null);
 		it = curp.iterator();
 	}
 
@@ -1358,17 +1548,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+			// skip the tuples before the first match on this page
+			it = curp.iterator(curp.findSlot(ipred.getOp(), ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -27,9 +28,32 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+
+	// whether keys are stored in as many bytes as they take, rather than all in the
+	// length of their type: true for string keys, unless the page is too small
+	private final boolean variableLength;
 	
 	private int childCategory; // either leaf or internal
 
+	// B-link fields: the next page to the right on the same level, and the keys
+	// bounding this page's range, as in its parent: a search for f belongs on this
+	// page if lowKey < f <= highKey, where null means unbounded
+	private int rightSibling; // 0 if none
+	private Field lowKey;
+	private Field highKey;
+
+	// flags marking which of the fence keys are stored
+	private static final int LOW_KEY = 1;
+	private static final int HIGH_KEY = 2;
+
+	// a variable-length key is stored as a byte giving its length, then its
+	// characters, one byte each as in a StringField
+	private static final int LENGTH_SIZE = 1;
+
+	// the used slots in order (slot 0, holding only the left-most child, then one
+	// per entry), built by the first search after slots were filled or cleared
+	private volatile int[] slotArray;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +67,9 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert Objects.equals(lowKey, lowerBound) && Objects.equals(highKey, upperBound);
+
+        assert !checkOccupancy || depth <= 0 || !isBelowMinOccupancy();
 	}
 	
 	/**
@@ -51,8 +77,17 @@ public class BTreeInternalPage extends BTreePage {
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * has m+1 pointers to children), the category of all child pages (either 
+	 * leaf or internal), the right sibling pointer, and the low and high keys
+	 * with a byte of flags saying which of them are set.
+	 * <p>
+	 * Pages keyed on strings (unless the page size is too small to hold three
+	 * entries of the longest key) store each key in as many bytes as it takes:
+	 * the fence keys that are set, the header, then the child pointer of slot 0
+	 * and the key and child pointer of each slot in use, in order, padded with
+	 * zeroes. Such a page has as many slots as entries of the shortest key fit,
+	 * and holds entries as long as their bytes fit too.
+	 * <p>
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
@@ -72,6 +107,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.variableLength = hasVariableLengthKeys(td.getFieldType(keyField), BufferPool.getPageSize());
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -86,30 +122,63 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = dis.readByte();
 
+		// read the right sibling pointer and the fence keys
+		rightSibling = dis.readInt();
+		int fences = dis.readByte();
+		if (variableLength) {
+			lowKey = (fences & LOW_KEY) != 0 ? readVariableLengthKey(dis) : null;
+			highKey = (fences & HIGH_KEY) != 0 ? readVariableLengthKey(dis) : null;
+		}
+		else {
+			try {
+				lowKey = td.getFieldType(keyField).parse(dis);
+				highKey = td.getFieldType(keyField).parse(dis);
+			} catch (java.text.ParseException e) {
+				e.printStackTrace();
+			}
+			if ((fences & LOW_KEY) == 0)
+				lowKey = null;
+			if ((fences & HIGH_KEY) == 0)
+				highKey = null;
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (variableLength) {
+			// only the slots in use are stored, each key followed by its child pointer
+			for (int i=0; i<numSlots; i++) {
+				children[i] = -1;
+				if (isSlotUsed(i)) {
+					if (i > 0)
+						keys[i] = readVariableLengthKey(dis);
+					children[i] = dis.readInt();
+				}
+			}
 		}
+		else {
+			try{
+				// allocate and read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// allocate and read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -118,14 +187,67 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * With variable-length keys, that many fit only if they are all empty.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(td.getFieldType(keyField), BufferPool.getPageSize());
+	}
+
+	/**
+	 * Compute the number of entry slots of an internal page.
+	 * @param keyType - the type of the key field
+	 * @param pageSize - the number of bytes in a page
+	 * @return the maximum number of entries a page can hold
+	 */
+	static int getMaxEntries(Type keyType, int pageSize) {
+		if (hasVariableLengthKeys(keyType, pageSize)) {
+			// room for the longest fence keys, and for entries with the shortest keys
+			return variableLengthSlots(pageSize) - 1;
+		}
+		int keySize = keyType.getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
-        return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// one right sibling pointer, 1 byte of fence key flags and the two fence keys
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + INDEX_SIZE * 8 + 8 + 2 * keySize * 8;
+        return (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader;
+	}
+
+	/**
+	 * Whether internal pages of the given size keyed on the given type store each
+	 * key in as many bytes as it takes: string keys do, as long as three entries
+	 * of the longest key fit, so that a full page can always be split in two
+	 * around an entry pushed up.
+	 * @param keyType - the type of the key field
+	 * @param pageSize - the number of bytes in a page
+	 */
+	static boolean hasVariableLengthKeys(Type keyType, int pageSize) {
+		return keyType == Type.STRING_TYPE && variableLengthSpace(pageSize) >= 3 * variableLengthEntrySize(Type.STRING_LEN);
+	}
+
+	/** The number of slots, including slot 0, on a page with variable-length keys. */
+	private static int variableLengthSlots(int pageSize) {
+		return (pageSize * 8 - variableLengthExtraBytes() * 8 - 1) / (variableLengthEntrySize(0) * 8 + 1) + 1;
+	}
+
+	/** The bytes left for entries on a page with variable-length keys. */
+	private static int variableLengthSpace(int pageSize) {
+		return pageSize - variableLengthExtraBytes() - (variableLengthSlots(pageSize) + 7) / 8;
+	}
+
+	/** The bytes an entry with a key of the given length takes on a page with variable-length keys. */
+	private static int variableLengthEntrySize(int keyLength) {
+		return LENGTH_SIZE + keyLength + INDEX_SIZE;
+	}
+
+	/**
+	 * The bytes of a page with variable-length keys other than the header and the
+	 * entries: the parent pointer, the child page category, the right sibling
+	 * pointer, the fence key flags, the fence keys at their longest and the child
+	 * pointer of slot 0.
+	 */
+	private static int variableLengthExtraBytes() {
+		return 3 * INDEX_SIZE + 2 + 2 * (LENGTH_SIZE + Type.STRING_LEN);
 	}
 
 	/**
@@ -224,6 +346,32 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read a variable-length key.
+	 */
+	private Field readVariableLengthKey(DataInputStream dis) throws IOException {
+		byte[] bs = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		return new StringField(new String(bs), Type.STRING_LEN);
+	}
+
+	/**
+	 * Write a variable-length key.
+	 */
+	private static void writeVariableLengthKey(DataOutputStream dos, Field key) throws IOException {
+		String s = keyString(key);
+		dos.writeByte(s.length());
+		dos.writeBytes(s);
+	}
+
+	/**
+	 * The characters of a string key that a page stores: as many as a StringField stores.
+	 */
+	private static String keyString(Field key) {
+		String s = ((StringField) key).getValue();
+		return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -256,6 +404,16 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the right sibling pointer and the fence keys
+		try {
+			dos.writeInt(rightSibling);
+			dos.writeByte((lowKey != null ? LOW_KEY : 0) | (highKey != null ? HIGH_KEY : 0));
+			writeFenceKey(dos, lowKey);
+			writeFenceKey(dos, highKey);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -266,6 +424,24 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if (variableLength) {
+			// the slots in use, each key followed by its child pointer, then zeroes
+			try {
+				for (int i=0; i<numSlots; i++) {
+					if (isSlotUsed(i)) {
+						if (i > 0)
+							writeVariableLengthKey(dos, keys[i]);
+						dos.writeInt(children[i]);
+					}
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -319,8 +495,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + INDEX_SIZE + 1 + 2 * td.getFieldType(keyField).getLen() +
+				header.length + td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -337,6 +513,25 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write a fence key, or as many zero bytes as a key takes if it is not set.
+	 * A variable-length fence key takes no bytes if it is not set.
+	 */
+	private void writeFenceKey(DataOutputStream dos, Field key) throws IOException {
+		if (variableLength) {
+			if (key != null)
+				writeVariableLengthKey(dos, key);
+		}
+		else if (key != null) {
+			key.serialize(dos);
+		}
+		else {
+			for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				dos.writeByte(0);
+			}
+		}
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -402,8 +597,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * record id.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
-	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         already empty, updating this key would put the entry out of 
+	 *         order on the page, or a longer key does not fit
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
@@ -413,6 +608,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (variableLength && getUsedSpace() - getEntrySize(keys[rid.getTupleNumber()]) + getEntrySize(e.getKey()) > getMaxSpace())
+			throw new DbException("no room on the page to update entry with key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -440,7 +637,7 @@ public class BTreeInternalPage extends BTreePage {
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or key field type,
+	 * @throws DbException if the page is full (no empty slots, or no room for the key) or key field type,
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
@@ -460,8 +657,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (variableLength && getUsedSpace() + getEntrySize(e.getKey()) > getMaxSpace())
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -566,11 +766,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. With variable-length keys,
+	 * the number of entries that fit however long their keys are.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -579,9 +784,120 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if (variableLength)
+			cnt = Math.min(cnt, (getMaxSpace() - getUsedSpace()) / getMaxEntrySize());
 		return cnt;
 	}
 
+	/**
+	 * Returns whether this page stores each key in as many bytes as it takes,
+	 * rather than all keys in the length of their type.
+	 */
+	public boolean hasVariableLengthKeys() {
+		return variableLength;
+	}
+
+	/**
+	 * Returns the number of bytes an entry with the given key takes on this page,
+	 * not counting its bit of the header.
+	 * @param key - the key of the entry
+	 */
+	public int getEntrySize(Field key) {
+		if (variableLength)
+			return variableLengthEntrySize(keyString(key).length());
+		return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * Returns the number of bytes the entries on this page take.
+	 */
+	public int getUsedSpace() {
+		int used = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				used += getEntrySize(keys[i]);
+		return used;
+	}
+
+	/**
+	 * Returns the number of bytes this page has for entries.
+	 */
+	public int getMaxSpace() {
+		if (variableLength)
+			return variableLengthSpace(BufferPool.getPageSize());
+		return getMaxEntries() * getMaxEntrySize();
+	}
+
+	/**
+	 * The number of bytes an entry with the longest key takes.
+	 */
+	private int getMaxEntrySize() {
+		if (variableLength)
+			return variableLengthEntrySize(Type.STRING_LEN);
+		return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * The number of bytes the entries of a page with variable-length keys must
+	 * take at least. Splitting a full page by bytes can leave a half up to two
+	 * and a half entries short of half the space, so that is what is allowed.
+	 */
+	private int getMinSpace() {
+		return getMaxSpace() / 2 - 3 * getMaxEntrySize();
+	}
+
+	/**
+	 * Returns whether this page is less than half full, so that it should take
+	 * entries from a sibling or merge with it: with variable-length keys, if its
+	 * entries take less than half its space, less a few of the longest entries.
+	 */
+	public boolean isBelowMinOccupancy() {
+		if (variableLength)
+			return getUsedSpace() < getMinSpace();
+		return getNumEntries() < getMaxEntries() / 2;
+	}
+
+	/**
+	 * Returns whether this page, as the sibling of a page below minimum
+	 * occupancy, has entries to give it. If not, the two pages and the key
+	 * between them in the parent fit on one page and should be merged.
+	 */
+	public boolean canSpareEntries() {
+		if (variableLength)
+			return getUsedSpace() > getMaxSpace() - getMinSpace() - getMaxEntrySize();
+		return getNumEntries() > getMaxEntries() / 2;
+	}
+
+	/**
+	 * Returns whether any key on this page can be replaced by a key of any
+	 * length: always with fixed-size keys, and with variable-length keys if
+	 * an entry with the longest key still fits.
+	 */
+	public boolean hasRoomForLongerKey() {
+		return !variableLength || getNumEmptySlots() > 0;
+	}
+
+	/**
+	 * Returns the shortest key separating two adjacent keys in the parent of the
+	 * pages holding them: greater than left and less than or equal to right. For
+	 * string keys that is the shortest prefix of right greater than left, which
+	 * keeps pages with variable-length keys small; otherwise it is right.
+	 * @param left - the greatest key on the left-hand page
+	 * @param right - the least key on the right-hand page
+	 */
+	public static Field getSeparator(Field left, Field right) {
+		if (!(right instanceof StringField) || left == null)
+			return right;
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int common = 0;
+		while (common < l.length() && common < r.length() && l.charAt(common) == r.charAt(common))
+			common++;
+		if (common >= r.length() - 1)
+			return right;
+		return new StringField(r.substring(0, common + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -599,12 +915,131 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		slotArray = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Return the used slots in order, building the slot array if slots were
+	 * filled or cleared since it was last built.
+	 */
+	private int[] slotArray() {
+		int[] slots = slotArray;
+		if (slots == null) {
+			int n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					n++;
+			slots = new int[n];
+			n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					slots[n++] = i;
+			slotArray = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Find the child to descend into for the left-most leaf possibly containing
+	 * key f: the left child of the first entry whose key is greater than or
+	 * equal to f, or the right child of the last entry if there is none. Binary
+	 * search over the keys in the slot array, so no entries are created and
+	 * about log2(getNumEntries()) keys are compared.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int[] slots = slotArray();
+		if (slots.length < 2)
+			return null;
+
+		// slots[1..n] hold the keys; find the first that is >= f, or n+1
+		int lo = 1;
+		int hi = slots.length;
+		if (f == null)
+			hi = lo;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[slots[mid]].compare(Op.LESS_THAN, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
+	}
+
+	/**
+	 * Get the id of the right sibling of this page: the next internal page to the
+	 * right on the same level of the tree, whatever its parent
+	 * @return the id of the right sibling, or null if this page is the right-most
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
+	}
+
+	/**
+	 * Get the low key of this page: the key of the entry in the parent level to the
+	 * left of this page. Searches for keys less than or equal to it belong to the left.
+	 * @return the low key, or null if this page is the left-most on its level
+	 */
+	public Field getLowKey() {
+		return lowKey;
+	}
+
+	/**
+	 * Set the low key of this page
+	 * @param key - the new low key, or null if this page is the left-most on its level
+	 */
+	public void setLowKey(Field key) {
+		lowKey = key;
+	}
+
+	/**
+	 * Get the high key of this page: the key of the entry in the parent level to the
+	 * right of this page. Searches for greater keys belong to the right, and a search
+	 * that finds a high key below its key, after a concurrent split, follows the right
+	 * sibling pointer.
+	 * @return the high key, or null if this page is the right-most on its level
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null if this page is the right-most on its level
+	 */
+	public void setHighKey(Field key) {
+		highKey = key;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -765,11 +1200,21 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is that of the slot in use before this one,
+				// which need not be the slot right before it
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					--prev;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
+					curEntry = prev;
 					return true;
 				}
 			}
@@ -0,0 +1,117 @@
+package simpledb.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.storage.PageId;
+
+/**
+ * Short-term latches on the internal and root pointer pages of one BTreeFile,
+ * separate from the transactional locks the BufferPool hands out.
+ * <p>
+ * A latch protects the contents of a page while it is read or changed; it is
+ * held for a few page accesses, never until commit. Readers descending the
+ * tree optimistically take latches shared, without waiting: if a latch is
+ * taken exclusively they give up and descend the usual way, under locks.
+ * Writers take the latch of each page they are about to change exclusively,
+ * once they hold the page's exclusive lock, and keep it until the operation
+ * (one insert or delete) is over. Only readers that never wait can stand in
+ * their way, so a writer never waits for a latch held by a thread that waits
+ * for a lock, and latches add no deadlocks the lock manager cannot see.
+ * <p>
+ * The latch of a page that is freed is dropped while its writer holds it, so
+ * the latches kept are those of pages in use. A thread that got hold of a
+ * dropped latch finds, once it has taken it, that the page has another latch
+ * or none, and lets go of it.
+ *
+ * @Threadsafe
+ */
+class BTreeLatches {
+	private final Map<PageId, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+
+	/** The exclusive latches taken by the operation running on each thread, or null outside of one. */
+	private final ThreadLocal<List<ReentrantReadWriteLock.WriteLock>> held = new ThreadLocal<>();
+
+	private ReentrantReadWriteLock latch(PageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid);
+		if (latch == null) {
+			latch = latches.computeIfAbsent(pid, p -> new ReentrantReadWriteLock());
+		}
+		return latch;
+	}
+
+	/** Start an operation on this thread; exclusive latches taken from now on are kept until {@link #end}. */
+	void begin() {
+		held.set(new ArrayList<>());
+	}
+
+	/** End the operation on this thread, releasing its exclusive latches. */
+	void end() {
+		List<ReentrantReadWriteLock.WriteLock> locks = held.get();
+		held.remove();
+		if (locks != null) {
+			for (ReentrantReadWriteLock.WriteLock lock : locks) {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Latch pid exclusively until the current operation ends, waiting for the
+	 * readers of the page to move on. Outside of an operation, as when tests
+	 * call the split and merge methods directly, this does nothing.
+	 */
+	void latchExclusive(PageId pid) {
+		List<ReentrantReadWriteLock.WriteLock> locks = held.get();
+		if (locks == null) {
+			return;
+		}
+		while (true) {
+			ReentrantReadWriteLock latch = latch(pid);
+			ReentrantReadWriteLock.WriteLock lock = latch.writeLock();
+			if (lock.isHeldByCurrentThread()) {
+				return;
+			}
+			lock.lock();
+			if (latches.get(pid) == latch) {
+				locks.add(lock);
+				return;
+			}
+			// dropped while we waited
+			lock.unlock();
+		}
+	}
+
+	/** Latch pid shared if nobody has it latched exclusively; never waits. */
+	boolean tryLatchShared(PageId pid) {
+		ReentrantReadWriteLock latch = latch(pid);
+		if (!latch.readLock().tryLock()) {
+			return false;
+		}
+		if (latches.get(pid) != latch) {
+			// dropped since we looked it up; the page was freed
+			latch.readLock().unlock();
+			return false;
+		}
+		return true;
+	}
+
+	void unlatchShared(PageId pid) {
+		latch(pid).readLock().unlock();
+	}
+
+	/**
+	 * Drop the latch of a page that has been freed, if the current operation
+	 * holds it exclusively; otherwise, as when tests free pages outside of an
+	 * operation, it is kept, and used again if the page is reused.
+	 */
+	void drop(PageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid);
+		if (latch != null && latch.isWriteLockedByCurrentThread()) {
+			latches.remove(pid, latch);
+		}
+	}
+}
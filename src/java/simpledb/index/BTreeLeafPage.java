@@ -19,14 +19,19 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements FramedPage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
+	private final PageFrame frame; // source of tuples not decoded yet, or null
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	// the used slots in order, built by the first search after slots were
+	// filled or cleared
+	private volatile int[] slotArray;
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -68,6 +73,7 @@ public class BTreeLeafPage extends BTreePage {
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
+		this.frame = null;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -110,6 +116,50 @@ public class BTreeLeafPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Create a BTreeLeafPage over the page bytes held in a frame. The parent
+	 * and sibling pointers and the header are read up front; each tuple is
+	 * decoded from the frame the first time it is accessed. The frame's
+	 * contents are the before-image of the page.
+	 * 
+	 * @param id - the id of this page
+	 * @param frame - the frame holding the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 * @see PageFrame
+	 */
+	public BTreeLeafPage(BTreePageId id, PageFrame frame, int key) throws IOException {
+		super(id, key);
+		this.numSlots = getMaxTuples();
+		this.frame = frame;
+		DataInputStream dis = frame.stream(0, 3 * INDEX_SIZE);
+		this.parent = dis.readInt();
+		this.leftSibling = dis.readInt();
+		this.rightSibling = dis.readInt();
+		this.header = frame.read(3 * INDEX_SIZE, getHeaderSize());
+		this.tuples = new Tuple[numSlots];
+	}
+
+	/**
+	 * @return the frame this page decodes tuples from, or null
+	 */
+	public PageFrame getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Return the tuple in slot i, decoding it from the frame if this is the
+	 * first access. Empty slots give null.
+	 */
+	private Tuple tuple(int i) {
+		Tuple t = tuples[i];
+		if (t == null && frame != null && isSlotUsed(i)) {
+			int offset = 3 * INDEX_SIZE + header.length + i * td.getSize();
+			t = readNextTuple(frame.stream(offset, td.getSize()), i);
+			tuples[i] = t;
+		}
+		return t;
+	}
+
 	/** 
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
@@ -139,6 +189,10 @@ public class BTreeLeafPage extends BTreePage {
 			synchronized(oldDataLock)
 			{
 				oldDataRef = oldData;
+				if (oldDataRef == null) {
+					// the frame still holds the image this page was read with
+					oldDataRef = frame.copy();
+				}
 			}
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
@@ -152,7 +206,11 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			if (frame != null) {
+				frame.write(getPageData());
+			} else {
+				oldData = getPageData().clone();
+			}
 		}
 	}
 
@@ -254,7 +312,7 @@ public class BTreeLeafPage extends BTreePage {
 
 			// non-empty slot
 			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
+				Field f = tuple(i).getField(j);
 				try {
 					f.serialize(dos);
 
@@ -326,16 +384,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int[] slots = slotArray();
+		int above = search(slots, Predicate.Op.GREATER_THAN, t.getField(keyField));
+		int lessOrEqKey = above == 0 ? -1 : slots[above - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -369,7 +420,7 @@ public class BTreeLeafPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
+			tuples[to] = tuple(from);
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
 		}
@@ -472,12 +523,71 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		slotArray = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Return the used slots in order, building the slot array if slots were
+	 * filled or cleared since it was last built.
+	 */
+	private int[] slotArray() {
+		int[] slots = slotArray;
+		if (slots == null) {
+			int n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					n++;
+			slots = new int[n];
+			n = 0;
+			for (int i = 0; i < numSlots; i++)
+				if (isSlotUsed(i))
+					slots[n++] = i;
+			slotArray = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Binary search: the index into slots of the first tuple whose key is
+	 * greater than f if op is GREATER_THAN, or greater than or equal to f
+	 * otherwise; slots.length if there is none.
+	 */
+	private int search(int[] slots, Predicate.Op op, Field f) {
+		Predicate.Op before = op == Predicate.Op.GREATER_THAN ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+		int lo = 0;
+		int hi = slots.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tuple(slots[mid]).getField(keyField).compare(before, f))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Find where the tuples satisfying "key op f" start on this page, by binary
+	 * search over the slot array: only the tuples compared are decoded.
+	 * @param op - EQUALS, GREATER_THAN or GREATER_THAN_OR_EQ; any other
+	 *        operator finds the first tuple
+	 * @param f - the key to compare with
+	 * @return the slot of the first tuple whose key is greater than f for
+	 *         GREATER_THAN, or greater than or equal to f for EQUALS and
+	 *         GREATER_THAN_OR_EQ; getMaxTuples() if there is none
+	 */
+	public int findSlot(Predicate.Op op, Field f) {
+		int[] slots = slotArray();
+		int i = 0;
+		if (op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ)
+			i = search(slots, op, f);
+		return i < slots.length ? slots[i] : numSlots;
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -486,6 +596,14 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @param slot - the slot to start from, as returned by {@link #findSlot}
+	 * @return an iterator over the tuples on this page from slot on
+	 */
+	public Iterator<Tuple> iterator(int slot) {
+		return new BTreeLeafPageIterator(this, slot);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -512,7 +630,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+			return tuple(i);
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
@@ -532,6 +650,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int first) {
+		this.p = p;
+		this.curTuple = first;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -7,19 +7,20 @@ import simpledb.common.DeadlockException;
 import simpledb.transaction.*;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-
-
-import javax.xml.crypto.Data;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -29,6 +30,19 @@ import javax.xml.crypto.Data;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are spread over several partitions by PageId, each with its own latch
+ * and replacement state, so concurrent requests for different pages do not
+ * serialize on the pool. The BufferPool's own monitor is only taken by
+ * LogFile, to keep the pool and the log consistent during rollback,
+ * checkpoints and recovery.
+ * <p>
+ * Scans may ask the pool to prefetch pages they are about to read; a
+ * background thread reads them in without taking page locks.
+ * <p>
+ * Commit only forces the log: the pages a transaction dirtied are logged and
+ * handed to a {@link PageCleaner}, which writes them back in the background
+ * once enough of them have piled up (see setDirtyWatermarks).
  * 
  * @Threadsafe, all fields are final
  */
@@ -41,22 +55,113 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+    /** Most pages a scan may prefetch at once, whatever the size of the pool. */
+    private static final int MAX_READ_AHEAD = 32;
+    /** Read-ahead requests that may wait for the prefetch thread before new ones are dropped. */
+    private static final int PREFETCH_QUEUE = 16;
+    /** Default share of the pool that committed, unwritten pages may reach before the cleaner runs. */
+    private static final double DEFAULT_HIGH_WATERMARK = 0.25;
+    /** Default share of the pool the cleaner leaves unwritten when it runs. */
+    private static final double DEFAULT_LOW_WATERMARK = 0.05;
     private final int numPage;
-    private final Map<PageId, Page> pagePool;
+    private final BufferPoolPartition[] partitions;
+    /** Pages resident in all partitions together, including reserved frames. */
+    private final AtomicInteger residentPages;
+    /** Pages currently being read from disk, so concurrent misses read once. */
+    private final ConcurrentHashMap<PageId, CompletableFuture<Page>> loading;
+    /** Off-heap frames pages are read into, or null to keep pages on the heap. */
+    private final PageFrameArena arena;
+    /** Reads prefetched pages in the background; idles out when unused. */
+    private final ThreadPoolExecutor prefetcher;
+    /** Writes back the pages of committed transactions. */
+    private final PageCleaner cleaner;
     private final LockManager lockManager;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * pages in LRU order.
      *
      * @param numPages maximum number of pages in this buffer pool.
-     * @return 
      */
-    public BufferPool(int numPages) {;
+    public BufferPool(int numPages) {
+        this(numPages, PageReplacementPolicy.Kind.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with a number of
+     * partitions suited to the machine and the size of the pool.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy used to pick eviction victims
+     */
+    public BufferPool(int numPages, PageReplacementPolicy.Kind policy) {
+        this(numPages, defaultPartitions(numPages), policy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numPartitions partitions. Each partition has its own latch and its own
+     * replacement state, so requests for pages in different partitions do not
+     * contend; the page limit applies to the pool as a whole.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions pages are hashed into
+     * @param policy the page replacement policy used within each partition
+     */
+    public BufferPool(int numPages, int numPartitions, PageReplacementPolicy.Kind policy) {
+        this(numPages, numPartitions, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numPartitions partitions, optionally keeping page contents off-heap.
+     * <p>
+     * With offHeapFrames set, one page-sized direct buffer per page is
+     * allocated up front. Files that support it (HeapFile, and BTreeFile for
+     * leaf pages) read pages straight into a frame and decode tuples from it
+     * only when they are accessed, so the Java heap holds little more than
+     * the tuples actually in use.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions pages are hashed into
+     * @param policy the page replacement policy used within each partition
+     * @param offHeapFrames whether to read pages into an off-heap frame arena
+     */
+    public BufferPool(int numPages, int numPartitions, PageReplacementPolicy.Kind policy,
+                      boolean offHeapFrames) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("numPartitions must be positive");
+        }
         this.numPage = numPages;
-        this.pagePool = new ConcurrentHashMap<>();
+        this.partitions = new BufferPoolPartition[numPartitions];
+        int perPartition = (numPages + numPartitions - 1) / numPartitions;
+        for (int i = 0; i < numPartitions; i++) {
+            this.partitions[i] = new BufferPoolPartition(policy.create(perPartition));
+        }
+        this.residentPages = new AtomicInteger();
+        this.loading = new ConcurrentHashMap<>();
+        this.arena = offHeapFrames ? new PageFrameArena(numPages, pageSize) : null;
+        this.prefetcher = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "BufferPool-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.prefetcher.allowCoreThreadTimeOut(true);
+        this.cleaner = new PageCleaner(numPages, (int) (numPages * DEFAULT_LOW_WATERMARK),
+                (int) (numPages * DEFAULT_HIGH_WATERMARK));
         this.lockManager = new LockManager();
     }
-    
+
+    /**
+     * One partition per core, but never so many that a partition would
+     * hold fewer than 8 pages on average.
+     */
+    private static int defaultPartitions(int numPages) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores, numPages / 8));
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -88,28 +193,393 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-            if (perm == Permissions.READ_WRITE) {this.lockManager.obtainWriteLock(tid, pid);} 
-            else if (perm == Permissions.READ_ONLY) {this.lockManager.obtainReadLock(tid, pid);} 
-            else {throw new DbException("Invalid permission type.");}
+            lockPage(tid, pid, perm);
             
-            synchronized(this){
-                if (this.pagePool.containsKey(pid)) {
-                    Page page = this.pagePool.get(pid);
-                    this.pagePool.remove(pid);
-                    this.pagePool.put(pid, page);
-                    return page; 
+            BufferPoolPartition partition = partitionFor(pid);
+            while (true) {
+                Page page = partition.get(pid);
+                if (page != null) {
+                    return page;
+                }
+
+                CompletableFuture<Page> load = new CompletableFuture<>();
+                CompletableFuture<Page> inFlight = this.loading.putIfAbsent(pid, load);
+                if (inFlight != null) {
+                    // someone else is reading the page; wait for them and look again
+                    awaitLoad(inFlight);
+                    continue;
                 }
-                Page modifiedPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                try {
+                    page = loadPage(partition, pid);
+                    if (perm == Permissions.READ_WRITE) {page.markDirty(true, tid);}
+                    load.complete(page);
+                    return page;
+                } catch (DbException | RuntimeException e) {
+                    load.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    this.loading.remove(pid, load);
+                }
+            }
+    }
+
+    /**
+     * Acquire the lock getPage() would, without looking the page up or
+     * reading it in. For callers that can only tell whether a page is the one
+     * they want once they hold its lock; getPage() then returns the page.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the permissions the lock is for
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (perm == Permissions.READ_WRITE) {this.lockManager.obtainWriteLock(tid, pid);}
+        else if (perm == Permissions.READ_ONLY) {this.lockManager.obtainReadLock(tid, pid);}
+        else {throw new DbException("Invalid permission type.");}
+    }
+
+    /**
+     * Lock a whole table shared for a transaction, waiting for those that
+     * change it. Until the transaction completes, it reads the table without
+     * page locks, and no other transaction can change or append to it.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the ID of the table to lock
+     */
+    public void lockTable(TransactionId tid, int tableId) throws TransactionAbortedException {
+        this.lockManager.obtainTableReadLock(tid, tableId);
+    }
+
+    /**
+     * Return the specified page if it is resident, without taking a lock or
+     * reading it in. The page may hold uncommitted changes of another
+     * transaction, and may be changed while it is read: this is for callers
+     * that protect their reads some other way and check what they found,
+     * such as the latched descent of a BTreeFile.
+     *
+     * @param pid the ID of the requested page
+     * @return the page, or null if it is not resident
+     */
+    public Page getResidentPage(PageId pid) {
+        return partitionFor(pid).get(pid);
+    }
 
-                if (this.pagePool.size() >= this.numPage) {this.evictPage();}
-                if (perm == Permissions.READ_WRITE) {modifiedPage.markDirty(true, tid);}
+    /**
+     * @return the most pages a scan should prefetch at once: a quarter of the
+     *         pool, so read-ahead cannot crowd out the pages in use, and 0 for
+     *         pools too small to prefetch into
+     */
+    public int getReadAheadLimit() {
+        return Math.min(MAX_READ_AHEAD, this.numPage / 4);
+    }
+
+    /**
+     * Ask the pool to read the specified pages, all of the same table, in the
+     * background, so that they are resident by the time they are requested.
+     * This is only a hint: pages that are resident, being read, or locked
+     * exclusively by a transaction are skipped, and the request is dropped
+     * if the pool is busy or full of dirty pages. Runs of consecutive pages
+     * are read with {@link DbFile#readPages}.
+     * <p>
+     * No locks are taken. A prefetched page is only visible to a transaction
+     * that locks it through getPage(), and a transaction holding an exclusive
+     * lock on a page may have written uncommitted data to disk, which is why
+     * such pages are not prefetched.
+     *
+     * @param pids the pages to read, in the order they will be requested
+     */
+    public void prefetchPages(List<PageId> pids) {
+        if (pids.isEmpty() || getReadAheadLimit() == 0) {
+            return;
+        }
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(pids.get(0).getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        List<PageId> copy = new ArrayList<>(pids);
+        this.prefetcher.execute(() -> prefetch(file, copy));
+    }
+
+    /**
+     * Read pages for prefetchPages() on the prefetch thread. Each page is
+     * registered as an in-flight load first, so that a getPage() racing with
+     * the read waits for it instead of reading the page again.
+     */
+    private void prefetch(DbFile file, List<PageId> pids) {
+        List<PageId> claimed = new ArrayList<>();
+        Map<PageId, CompletableFuture<Page>> loads = new HashMap<>();
+        try {
+            for (PageId pid : pids) {
+                BufferPoolPartition partition = partitionFor(pid);
+                if (partition.peek(pid) != null || this.lockManager.isWriteLocked(pid)
+                        || this.cleaner.isPending(pid)) {
+                    continue;
+                }
+                CompletableFuture<Page> load = new CompletableFuture<>();
+                if (this.loading.putIfAbsent(pid, load) != null) {
+                    continue;
+                }
+                claimed.add(pid);
+                loads.put(pid, load);
+                if (partition.peek(pid) != null || this.cleaner.isPending(pid)) {
+                    // installed, and maybe committed and evicted, before we
+                    // registered; leave it to getPage()
+                    load.complete(null);
+                    continue;
+                }
                 try {
-                    updatePageInBufferPool(modifiedPage);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    reserveFrame(pid);
+                } catch (DbException e) {
+                    // no clean page to give up; don't read any further ahead
+                    load.complete(null);
+                    break;
+                }
+            }
+            List<PageId> toRead = new ArrayList<>();
+            for (PageId pid : claimed) {
+                if (!loads.get(pid).isDone()) {
+                    toRead.add(pid);
+                }
+            }
+            if (toRead.isEmpty()) {
+                return;
+            }
+            for (Page page : file.readPages(toRead)) {
+                Page existing = partitionFor(page.getId()).putPrefetched(page);
+                if (existing != null) {
+                    this.residentPages.decrementAndGet();
+                    page = existing;
+                }
+                loads.get(page.getId()).complete(page);
+            }
+        } catch (RuntimeException e) {
+            // read-ahead is only a hint; a failed read is retried, and
+            // reported, by whoever requests the page
+        } finally {
+            for (PageId pid : claimed) {
+                CompletableFuture<Page> load = loads.get(pid);
+                if (!load.isDone()) {
+                    // reserved but never installed
+                    this.residentPages.decrementAndGet();
+                    load.complete(null);
+                }
+                this.loading.remove(pid, load);
+            }
+        }
+    }
+
+    /**
+     * Read a page from disk and install it in its partition. Only the thread
+     * that registered the in-flight load for pid may call this. No latch is
+     * held while reading.
+     */
+    private Page loadPage(BufferPoolPartition partition, PageId pid) throws DbException {
+        // the page may have been installed after our first lookup and
+        // before we registered the load, which still makes this a hit
+        Page page = partition.get(pid);
+        if (page != null) {
+            return page;
+        }
+        try {
+            // the copy on disk may be older than the last commit
+            this.cleaner.writeIfPending(pid);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // reserve first: with an arena, there is a free frame for every
+        // reserved page, because frames go back before the count drops
+        reserveFrame(pid);
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        ByteBuffer frame = this.arena == null ? null : this.arena.acquire();
+        try {
+            page = frame == null ? file.readPage(pid) : file.readPage(pid, frame);
+        } catch (RuntimeException e) {
+            if (frame != null) {
+                this.arena.release(frame);
+            }
+            this.residentPages.decrementAndGet();
+            throw e;
+        }
+        if (frame != null && !usesFrame(page)) {
+            this.arena.release(frame);
+        }
+        Page existing = partition.putIfAbsent(page);
+        if (existing != null) {
+            // never published, so nobody else can be reading its frame
+            if (frame != null && usesFrame(page)) {
+                this.arena.release(frame);
+            }
+            this.residentPages.decrementAndGet();
+            return existing;
+        }
+        return page;
+    }
+
+    private static boolean usesFrame(Page page) {
+        return page instanceof FramedPage
+                && ((FramedPage) page).getFrame() != null
+                && ((FramedPage) page).getFrame().isOffHeap();
+    }
+
+    /**
+     * Called when a page leaves the pool: copies an off-heap page's bytes to
+     * the heap, for whoever still holds the page, and recycles its frame.
+     */
+    private void releaseFrame(Page page) {
+        if (page instanceof FramedPage && ((FramedPage) page).getFrame() != null) {
+            ByteBuffer frame = ((FramedPage) page).getFrame().detach();
+            if (frame != null && this.arena != null) {
+                this.arena.release(frame);
+            }
+        }
+    }
+
+    /**
+     * Set when the page cleaner writes back the pages of committed
+     * transactions: once they reach high * the size of the pool, the cleaner
+     * writes them, oldest first, until only low * the size of the pool
+     * remain. A high watermark of 0 writes pages back right after every
+     * commit.
+     *
+     * @param low the share of the pool left unwritten after a cleaning run
+     * @param high the share of the pool that starts a cleaning run
+     */
+    public void setDirtyWatermarks(double low, double high) {
+        if (low < 0 || high < low || high > 1) {
+            throw new IllegalArgumentException("need 0 <= low <= high <= 1, got " + low + ", " + high);
+        }
+        this.cleaner.setWatermarks((int) (this.numPage * low), (int) (this.numPage * high));
+    }
+
+    /**
+     * @return the number of pages of committed transactions that the page
+     *         cleaner has not written to disk yet
+     */
+    public int getPendingWrites() {
+        return this.cleaner.size();
+    }
+
+    /**
+     * Write every page of a committed transaction that the page cleaner has
+     * not written yet. Unlike flushAllPages(), this leaves the pages of
+     * running transactions alone.
+     */
+    public void flushPendingWrites() throws IOException {
+        this.cleaner.clean(0);
+    }
+
+    /**
+     * Wait for another thread's in-flight load to finish. A failed load is
+     * reported to the waiter the same way it was to the loader.
+     */
+    private static void awaitLoad(CompletableFuture<Page> load) throws DbException {
+        try {
+            load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for a page to load");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DbException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * @return a snapshot of the hit/miss/eviction counters of all partitions
+     */
+    public BufferPoolStats getStats() {
+        BufferPoolStats total = new BufferPoolStats();
+        for (BufferPoolPartition partition : this.partitions) {
+            total.add(partition.getStats());
+        }
+        return total;
+    }
+
+    /**
+     * Choose how transactions waiting for each other's locks are kept from
+     * waiting forever. Requests that start waiting from now on follow the
+     * new policy; getPage() throws TransactionAbortedException for a
+     * transaction that has to abort under any of them.
+     *
+     * @param policy the policy; DeadlockPolicy.DETECT by default
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.lockManager.setDeadlockPolicy(policy);
+    }
+
+    /**
+     * Limit how long getPage() waits for a lock. A request that waits longer
+     * throws TransactionAbortedException. Applies to requests that start
+     * waiting from now on.
+     *
+     * @param millis the limit in milliseconds, or 0 for none (the default)
+     */
+    public void setLockTimeout(long millis) {
+        this.lockManager.setLockTimeout(millis);
+    }
+
+    /**
+     * Set how many pages of one table a transaction may lock before its page
+     * locks are replaced by a lock on the whole table. Applies to page locks
+     * taken from now on.
+     *
+     * @param pages the threshold; LockManager.DEFAULT_ESCALATION_THRESHOLD by default
+     */
+    public void setLockEscalationThreshold(int pages) {
+        this.lockManager.setEscalationThreshold(pages);
+    }
+
+    /**
+     * @return the deadlock and escalation counters of the lock manager
+     */
+    public LockStats getLockStats() {
+        return this.lockManager.getStats();
+    }
+
+    /**
+     * @return the number of partitions pages are hashed into
+     */
+    public int getNumPartitions() {
+        return this.partitions.length;
+    }
+
+    private int partitionIndex(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, this.partitions.length);
+    }
+
+    private BufferPoolPartition partitionFor(PageId pid) {
+        return this.partitions[partitionIndex(pid)];
+    }
+
+    /**
+     * Reserve room for one more page in the pool, evicting a page if the pool
+     * is full. Must not be called while holding a partition latch.
+     *
+     * @param pid the page that needs the frame; its partition is asked for a
+     *            victim first
+     */
+    private void reserveFrame(PageId pid) throws DbException {
+        while (true) {
+            int resident = this.residentPages.get();
+            if (resident < this.numPage) {
+                if (this.residentPages.compareAndSet(resident, resident + 1)) {
+                    return;
                 }
-                return modifiedPage;                
+            } else {
+                this.evictPage(partitionIndex(pid));
             }
+        }
     }
 
     /**
@@ -148,6 +618,11 @@ public class BufferPool {
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * Transaction.commit logs the transaction's pages and its commit record
+     * before calling this. Called directly, a commit logs the dirty pages
+     * here and then writes the commit record itself, which forces the log,
+     * so that recovery redoes the changes.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -158,12 +633,12 @@ public class BufferPool {
         Set<PageId> pageIdSet = this.lockManager.getPagesHeldBy(tid);
         if (pageIdSet == null) {return;}  
         if (commit) {
-            for (PageId pageId : pageIdSet) {
-                try {
-                    this.flushPage(pageId);
-                } catch (IOException e) {
-                    e.printStackTrace();
+            try {
+                if (this.writeBack(pageIdSet)) {
+                    Database.getLogFile().logCommit(tid);
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         } else {
             for (PageId pageId : pageIdSet)
@@ -226,16 +701,101 @@ public class BufferPool {
             updatePageInBufferPool(modifiedPage);
         }
     }
-    private synchronized void updatePageInBufferPool(Page page) 
+    private void updatePageInBufferPool(Page page) 
         throws DbException, IOException, TransactionAbortedException{
-        if (!this.pagePool.containsKey(page.getId()) && this.pagePool.size() >= this.numPage) {
-            throw new DbException("Buffer Pool is full.");
+        // Update the page in the buffer pool, making room for it if it is new
+        BufferPoolPartition partition = partitionFor(page.getId());
+        Page old = partition.replace(page);
+        if (old != null) {
+            if (old != page) {
+                releaseFrame(old);
+            }
+            return;
         }
+        reserveFrame(page.getId());
+        if (partition.putIfAbsent(page) != null) {
+            old = partition.replace(page);
+            if (old != null && old != page) {
+                releaseFrame(old);
+            }
+            this.residentPages.decrementAndGet();
+        }
+    }
 
-        this.pagePool.remove(page.getId());
-        
-        // Update the page in the buffer pool
-        this.pagePool.put(page.getId(), page);
+    /**
+     * Log all pages dirtied by the specified transaction and hand them to the
+     * page cleaner, which writes them to disk later. Called at commit, before
+     * the commit record is written; nothing is forced to disk here.
+     */
+    public void writeBackPages(TransactionId tid) throws IOException {
+        Set<PageId> pages = this.lockManager.getPagesHeldBy(tid);
+        if (pages != null) {
+            writeBack(pages);
+        }
+    }
+
+    /**
+     * Log the dirty pages among pids and hand them to the page cleaner. The
+     * log is not forced here: the commit record forces it for the whole
+     * transaction, and the cleaner checks before writing any of the pages.
+     *
+     * @return whether any page was logged
+     */
+    private boolean writeBack(Set<PageId> pids) throws IOException {
+        LogFile log = Database.getLogFile();
+        Map<DbFile, List<Page>> snapshots = new HashMap<>();
+        Map<DbFile, List<Long>> recLsns = new HashMap<>();
+        boolean behind = false;
+        synchronized (log) {
+            for (PageId pid : pids) {
+                Page pg = partitionFor(pid).peek(pid);
+                if (pg == null) {
+                    continue;
+                }
+                if (pg.isDirty() == null) {
+                    // the pids are those of one transaction, so a write lock
+                    // is its own: the page was flushed before commit, and
+                    // its contents are committed now
+                    if (this.lockManager.isWriteLocked(pid)) {
+                        pg.setBeforeImage();
+                    }
+                    continue;
+                }
+                long lsn = log.logWrite(pg.isDirty(), pg.getBeforeImage(), pg);
+                pg.setBeforeImage();
+                pg.markDirty(false, null);
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                snapshots.computeIfAbsent(file, f -> new ArrayList<>()).add(pg.getBeforeImage());
+                recLsns.computeIfAbsent(file, f -> new ArrayList<>()).add(lsn);
+            }
+            long logSeq = log.getAppendSeq();
+            // still holding the log, so a checkpoint's dirty page table
+            // covers every logged change that is not on disk
+            for (Map.Entry<DbFile, List<Page>> e : snapshots.entrySet()) {
+                behind |= this.cleaner.add(e.getKey(), e.getValue(), recLsns.get(e.getKey()), log, logSeq);
+            }
+        }
+        if (behind) {
+            // the cleaner has fallen far behind; help it out
+            this.cleaner.clean(this.cleaner.getLowWatermark());
+        }
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * @return the recLSN, the LSN of the oldest change not on disk yet, of
+     *         each page whose committed version the cleaner has not written
+     */
+    Map<PageId, Long> getDirtyPageTable(LogFile log) {
+        return this.cleaner.dirtyPages(log);
+    }
+
+    /**
+     * Start writing, in the background, the committed pages that are not on
+     * disk yet, so that a later checkpoint can truncate the log further.
+     */
+    void flushForCheckpoint() throws IOException {
+        this.cleaner.flushForCheckpoint();
     }
 
     /**
@@ -243,14 +803,13 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        synchronized(this){
-            for(Page p:this.pagePool.values()){
-                if(p.isDirty()!=null){
-                    flushPage(p.getId());
-                }
+        this.cleaner.clean(0);
+        for (BufferPoolPartition partition : this.partitions) {
+            for (PageId pid : partition.dirtyPages()) {
+                flushPage(pid);
             }
         }
     }
@@ -263,31 +822,47 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
         if (pid == null) {
             return;
         }
-        this.pagePool.remove(pid);
+        Page page = partitionFor(pid).remove(pid);
+        if (page != null) {
+            releaseFrame(page);
+            this.residentPages.decrementAndGet();
+        }
+        try {
+            // whoever discards the page may write over it on disk next
+            this.cleaner.writeIfPending(pid);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page pg = this.pagePool.get(pid);
-
-        if(this.pagePool.containsKey(pid)){
-            TransactionId dirty=pg.isDirty();
+        // Take the log monitor first: LogFile calls back into the pool
+        // (checkpoints flush all pages) while holding it, so the order is
+        // always log, then partition.
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            Page pg = partitionFor(pid).peek(pid);
+            if (pg == null) {
+                return;
+            }
+            TransactionId dirty = pg.isDirty();
             if (dirty != null) {
-                Database.getLogFile().logWrite(dirty, pg.getBeforeImage(), pg);
-                Database.getLogFile().force();
+                log.logWrite(dirty, pg.getBeforeImage(), pg);
+                log.force();
                 DbFile pFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                pFile.writePage(pg);
+                this.cleaner.write(pFile, pg);
                 pg.markDirty(false, null);
             }
         }
@@ -295,42 +870,36 @@ public class BufferPool {
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : this.lockManager.getPagesHeldBy(tid)) {
+        Set<PageId> pages = this.lockManager.getPagesHeldBy(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pid : pages) {
             this.flushPage(pid);
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Discards a page from the buffer pool to make room for another one.
+     * The victim is chosen by the replacement policy among clean pages only,
+     * since dirty pages may not be written out under NO STEAL. The home
+     * partition is tried first, then the others in turn.
+     *
+     * @param start the index of the partition that needs the free frame
      */
-    private synchronized void evictPage() throws DbException {
-        Iterator<PageId> iter = this.pagePool.keySet().iterator();
-        boolean foundOneDirtyPage = false;
-        Page lruPage = null;
-
-        while (iter.hasNext()) {
-            Page pg = this.pagePool.get(iter.next());
-            // Skip dirty pages for "NO STEAL" policy
-            if (pg.isDirty() == null) {
-                foundOneDirtyPage = true;
-                lruPage = pg;
-                try {
-                    this.flushPage(lruPage.getId());
-                    this.pagePool.remove(lruPage.getId());
-                } catch (IOException e) {
-                    throw new DbException("Page could not be flushed.");
-                }
+    private void evictPage(int start) throws DbException {
+        for (int i = 0; i < this.partitions.length; i++) {
+            BufferPoolPartition partition = this.partitions[(start + i) % this.partitions.length];
+            Page victim = partition.evictClean();
+            if (victim != null) {
+                releaseFrame(victim);
+                this.residentPages.decrementAndGet();
+                return;
             }
         }
-        if (!foundOneDirtyPage) {
-            throw new DbException("All pages are dirty!");
-        }
-        if (lruPage == null) {
-            throw new DbException("There are no pages to evict in the buffer pool.");
-        }
+        throw new DbException("All pages are dirty!");
     }
-}
\ No newline at end of file
+}
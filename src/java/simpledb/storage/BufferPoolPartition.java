@@ -0,0 +1,171 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One shard of the BufferPool. Pages are assigned to a partition by hashing
+ * their PageId, and each partition has its own page table and replacement
+ * state, guarded by the partition's monitor. Threads that touch pages in
+ * different partitions therefore never contend.
+ * <p>
+ * A partition does not enforce a capacity of its own; the BufferPool keeps a
+ * pool-wide count of resident pages and asks partitions for victims when that
+ * count reaches its limit.
+ * <p>
+ * Pages brought in by read-ahead are remembered until they are first
+ * requested, so the partition can count prefetches that paid off and those
+ * that were evicted unused.
+ *
+ * @Threadsafe
+ */
+class BufferPoolPartition {
+    private final Map<PageId, Page> pages;
+    private final PageReplacementPolicy policy;
+    /** Prefetched pages that nobody has asked for yet. */
+    private final Set<PageId> prefetched;
+
+    /**
+     * @param policy the replacement policy for the pages of this partition
+     */
+    BufferPoolPartition(PageReplacementPolicy policy) {
+        this.pages = new HashMap<>();
+        this.policy = policy;
+        this.prefetched = new HashSet<>();
+    }
+
+    /**
+     * Look up a resident page, recording a hit if it is found.
+     *
+     * @return the page, or null if it is not resident
+     */
+    synchronized Page get(PageId pid) {
+        Page page = pages.get(pid);
+        if (page != null) {
+            policy.pageHit(pid);
+            if (prefetched.remove(pid)) {
+                policy.getStats().recordPrefetchHit();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Look up a resident page without touching the replacement state.
+     */
+    synchronized Page peek(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /**
+     * Add a page that is not resident yet. The caller must already have
+     * reserved a frame for it in the pool.
+     *
+     * @return the page already resident under the same id, in which case
+     *         nothing was added and the reserved frame is not used, or null
+     */
+    synchronized Page putIfAbsent(Page page) {
+        Page existing = pages.get(page.getId());
+        if (existing != null) {
+            policy.pageHit(page.getId());
+            return existing;
+        }
+        pages.put(page.getId(), page);
+        policy.pageAdded(page.getId());
+        return null;
+    }
+
+    /**
+     * Add a page read by read-ahead, like putIfAbsent, but without counting
+     * it as a miss or a hit.
+     *
+     * @return the page already resident under the same id, or null
+     */
+    synchronized Page putPrefetched(Page page) {
+        Page existing = pages.get(page.getId());
+        if (existing != null) {
+            return existing;
+        }
+        pages.put(page.getId(), page);
+        policy.pageAdded(page.getId());
+        policy.getStats().recordPrefetch();
+        prefetched.add(page.getId());
+        return null;
+    }
+
+    /**
+     * Replace the resident copy of a page.
+     *
+     * @return the copy that was replaced, or null if the page is not
+     *         resident, in which case nothing changed
+     */
+    synchronized Page replace(Page page) {
+        if (!pages.containsKey(page.getId())) {
+            return null;
+        }
+        return pages.put(page.getId(), page);
+    }
+
+    /**
+     * Drop a page from this partition.
+     *
+     * @return the page, or null if it was not resident
+     */
+    synchronized Page remove(PageId pid) {
+        Page page = pages.remove(pid);
+        if (page != null) {
+            policy.pageRemoved(pid);
+            forget(pid);
+        }
+        return page;
+    }
+
+    /**
+     * Evict one clean page chosen by the replacement policy. Dirty pages are
+     * never chosen (NO STEAL).
+     *
+     * @return the evicted page, or null if every page here is dirty
+     */
+    synchronized Page evictClean() {
+        PageId victim = policy.evict(pid -> {
+            Page pg = pages.get(pid);
+            return pg == null || pg.isDirty() == null;
+        });
+        if (victim == null) {
+            return null;
+        }
+        forget(victim);
+        return pages.remove(victim);
+    }
+
+    private void forget(PageId pid) {
+        if (prefetched.remove(pid)) {
+            policy.getStats().recordPrefetchWasted();
+        }
+    }
+
+    /**
+     * @return the ids of all pages in this partition that are currently dirty
+     */
+    synchronized List<PageId> dirtyPages() {
+        List<PageId> dirty = new ArrayList<>();
+        for (Page p : pages.values()) {
+            if (p.isDirty() != null) {
+                dirty.add(p.getId());
+            }
+        }
+        return dirty;
+    }
+
+    synchronized int size() {
+        return pages.size();
+    }
+
+    BufferPoolStats getStats() {
+        return policy.getStats();
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how well the BufferPool is caching pages.
+ * Each PageReplacementPolicy owns one instance, so different policies can be
+ * compared by replaying the same trace against pools built with each of them.
+ *
+ * @Threadsafe
+ */
+public class BufferPoolStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWasted = new AtomicLong();
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Reclassify the miss just recorded for a page as a prefetch: the page
+     * was brought in by read-ahead, not because somebody asked for it.
+     */
+    void recordPrefetch() {
+        misses.decrementAndGet();
+        prefetched.incrementAndGet();
+    }
+
+    void recordPrefetchHit() {
+        prefetchHits.incrementAndGet();
+    }
+
+    void recordPrefetchWasted() {
+        prefetchWasted.incrementAndGet();
+    }
+
+    /** Add the counters of other into this one. */
+    void add(BufferPoolStats other) {
+        hits.addAndGet(other.getHits());
+        misses.addAndGet(other.getMisses());
+        evictions.addAndGet(other.getEvictions());
+        prefetched.addAndGet(other.getPrefetched());
+        prefetchHits.addAndGet(other.getPrefetchHits());
+        prefetchWasted.addAndGet(other.getPrefetchWasted());
+    }
+
+    /** @return the number of page requests served from the pool */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of page requests that had to read the page from disk */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of pages evicted to make room for others */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** @return the number of pages read into the pool by read-ahead */
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    /**
+     * @return the number of prefetched pages that were requested while
+     *         resident; each of these is also counted as a hit
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /** @return the number of prefetched pages that left the pool unrequested */
+    public long getPrefetchWasted() {
+        return prefetchWasted.get();
+    }
+
+    /** @return hits / (hits + misses), or 0 if there were no requests yet */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Zero all counters. */
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        prefetched.set(0);
+        prefetchHits.set(0);
+        prefetchWasted.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d evictions=%d hitRatio=%.3f"
+                        + " prefetched=%d prefetchHits=%d prefetchWasted=%d",
+                getHits(), getMisses(), getEvictions(), getHitRatio(),
+                getPrefetched(), getPrefetchHits(), getPrefetchWasted());
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Every resident page owns a frame on a
+ * circular array with a reference bit that is set on each hit. To find a
+ * victim the hand sweeps the circle, clearing set bits and stopping at the
+ * first evictable page whose bit is already clear. A hit only flips a bit,
+ * which makes CLOCK cheaper than LRU on the hit path.
+ */
+public class ClockReplacementPolicy implements PageReplacementPolicy {
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final Map<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames;
+    private int hand;
+    private final BufferPoolStats stats = new BufferPoolStats();
+
+    /**
+     * @param capacity the number of frames on the clock; grows if more pages
+     *                 than this are ever resident at once
+     */
+    public ClockReplacementPolicy(int capacity) {
+        int n = Math.max(1, capacity);
+        this.frames = new PageId[n];
+        this.referenced = new boolean[n];
+        this.frameOf = new HashMap<>();
+        this.freeFrames = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            freeFrames.addLast(i);
+        }
+        this.hand = 0;
+    }
+
+    public void pageHit(PageId pid) {
+        stats.recordHit();
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+        }
+    }
+
+    public void pageAdded(PageId pid) {
+        stats.recordMiss();
+        if (frameOf.containsKey(pid)) {
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            grow();
+        }
+        int frame = freeFrames.removeFirst();
+        frames[frame] = pid;
+        // new pages start unreferenced so a one-off scan does not push out hot pages
+        referenced[frame] = false;
+        frameOf.put(pid, frame);
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced[frame] = false;
+            freeFrames.addLast(frame);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> canEvict) {
+        // two full sweeps: the first may only clear reference bits
+        for (int steps = 0; steps < 2 * frames.length; steps++) {
+            int frame = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[frame];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (canEvict.test(pid)) {
+                pageRemoved(pid);
+                stats.recordEviction();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void grow() {
+        int old = frames.length;
+        frames = Arrays.copyOf(frames, old * 2);
+        referenced = Arrays.copyOf(referenced, old * 2);
+        for (int i = old; i < frames.length; i++) {
+            freeFrames.addLast(i);
+        }
+    }
+
+    public int size() {
+        return frameOf.size();
+    }
+
+    public BufferPoolStats getStats() {
+        return stats;
+    }
+}
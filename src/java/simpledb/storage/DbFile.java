@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -24,6 +25,63 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into frame, a page-sized direct
+     * buffer lent by the BufferPool. Files that support it return a
+     * {@link FramedPage} that keeps its bytes in the frame and decodes them
+     * lazily; the default reads an ordinary page and leaves the frame unused.
+     * A file that overrides both variants must keep them consistent, since
+     * the BufferPool uses this one instead of readPage(PageId) when it has
+     * frames to lend.
+     *
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     */
+    default Page readPage(PageId id, ByteBuffer frame) {
+        return readPage(id);
+    }
+
+    /**
+     * Read several pages of this file from disk, e.g. for read-ahead. Files
+     * that can read runs of consecutive pages in one request should do so;
+     * the default reads the pages one at a time.
+     *
+     * @return the pages, in the order of pids
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> pids) {
+        List<Page> pages = new ArrayList<>(pids.size());
+        for (PageId pid : pids) {
+            pages.add(readPage(pid));
+        }
+        return pages;
+    }
+
+    /**
+     * Choose how this file reads and writes its pages. Files that only
+     * support the default RANDOM_ACCESS mode need not override this.
+     *
+     * @throws UnsupportedOperationException if the file does not support mode
+     */
+    default void setIoMode(IoMode mode) throws IOException {
+        if (mode != IoMode.RANDOM_ACCESS) {
+            throw new UnsupportedOperationException("I/O mode " + mode + " not supported by " + getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * @return how this file reads and writes its pages
+     */
+    default IoMode getIoMode() {
+        return IoMode.RANDOM_ACCESS;
+    }
+
+    /**
+     * Release any file handles held open by this file. The file remains
+     * usable and reopens them when it is next accessed.
+     */
+    default void close() throws IOException {
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -33,6 +91,20 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages to disk, e.g. for the page cleaner. Files that can
+     * write runs of consecutive pages in one request should do so; the
+     * default writes the pages one at a time.
+     *
+     * @param pages the pages to write, sorted by page number
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,15 @@
+package simpledb.storage;
+
+/**
+ * A Page that can keep its bytes in a PageFrame and decode them lazily.
+ *
+ * @see PageFrame
+ */
+public interface FramedPage extends Page {
+
+    /**
+     * @return the frame this page reads from, or null if the page was built
+     *         from a byte array and is fully decoded
+     */
+    PageFrame getFrame();
+}
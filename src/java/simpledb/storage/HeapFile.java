@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -32,10 +33,14 @@ public class HeapFile implements DbFile {
     private File file;
     private TupleDesc td;
     private int fid;
+    private final PageIo io;
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.file = f;
         this.td = td;
+        // RandomAccessFile reads used to leave a page past the end of the file
+        // empty, and callers rely on that in RANDOM_ACCESS mode
+        this.io = new PageIo(f, true);
     }
 
     /**
@@ -78,21 +83,60 @@ public class HeapFile implements DbFile {
         // some code goes here
 
         try {
-            RandomAccessFile file = new RandomAccessFile(this.file, "r");
-
             byte[] buffer = new byte[BufferPool.getPageSize()];
 
             // read to buffer at offset,length
-            file.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
-            file.read(buffer, 0, buffer.length);
-            file.close();
+            this.io.read((long) pid.getPageNumber() * BufferPool.getPageSize(), buffer);
 
             return new HeapPage((HeapPageId) pid, buffer);
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        try {
+            this.io.read((long) pid.getPageNumber() * BufferPool.getPageSize(), frame);
+        } catch (IOException e) {
             throw new RuntimeException(e);
+        }
+        return new HeapPage((HeapPageId) pid, new PageFrame(frame));
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public List<Page> readPages(List<PageId> pids) {
+        // subclasses that override readPage(PageId) get to see every read
+        if (getClass() != HeapFile.class) {
+            return DbFile.super.readPages(pids);
+        }
+        List<Page> pages = new ArrayList<>(pids.size());
+        try {
+            int start = 0;
+            while (start < pids.size()) {
+                // read each run of consecutive pages with one scattering read
+                int end = start + 1;
+                while (end < pids.size()
+                        && pids.get(end).getPageNumber() == pids.get(end - 1).getPageNumber() + 1) {
+                    end++;
+                }
+                byte[][] data = new byte[end - start][BufferPool.getPageSize()];
+                ByteBuffer[] buffers = new ByteBuffer[data.length];
+                for (int i = 0; i < data.length; i++) {
+                    buffers[i] = ByteBuffer.wrap(data[i]);
+                }
+                this.io.read((long) pids.get(start).getPageNumber() * BufferPool.getPageSize(), buffers);
+                for (int i = 0; i < data.length; i++) {
+                    pages.add(new HeapPage((HeapPageId) pids.get(start + i), data[i]));
+                }
+                start = end;
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return pages;
     }
 
     // see DbFile.java for javadocs
@@ -104,13 +148,52 @@ public class HeapFile implements DbFile {
 
         //todo last part
 
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        this.io.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), page.getPageData());
+    }
 
-            randomAccessFile.seek(page.getId().getPageNumber()*Database.getBufferPool().getPageSize());
-            randomAccessFile.write(page.getPageData());
+    // see DbFile.java for javadocs
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
+        // subclasses that override writePage(Page) get to see every write
+        if (getClass() != HeapFile.class) {
+            DbFile.super.writePages(pages);
+            return;
+        }
+        int start = 0;
+        while (start < pages.size()) {
+            // write each run of consecutive pages with one gathering write
+            int end = start + 1;
+            while (end < pages.size()
+                    && pages.get(end).getId().getPageNumber() == pages.get(end - 1).getId().getPageNumber() + 1) {
+                end++;
+            }
+            byte[][] data = new byte[end - start][];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = pages.get(start + i).getPageData();
+            }
+            this.io.write((long) pages.get(start).getId().getPageNumber() * BufferPool.getPageSize(), data);
+            start = end;
         }
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public void setIoMode(IoMode mode) throws IOException {
+        this.io.setMode(mode);
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public IoMode getIoMode() {
+        return this.io.getMode();
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public void close() throws IOException {
+        this.io.close();
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -143,9 +226,17 @@ public class HeapFile implements DbFile {
             }
         }
 
-        // If there are no existing pages, create a new page and add in the tuple
+        // If there are no existing pages, create a new page and add in the tuple.
+        // Lock it first, so that appends wait for transactions holding the whole
+        // table, such as an index build; if another transaction appended the
+        // page while we waited, look again for room
+        HeapPageId newPid = new HeapPageId(getId(), numPages());
+        Database.getBufferPool().lockPage(tid, newPid, Permissions.READ_WRITE);
+        if (newPid.getPageNumber() < numPages()) {
+            return insertTuple(tid, t);
+        }
         byte[] header = new byte[BufferPool.getPageSize()];
-        HeapPage newPage = new HeapPage(new HeapPageId(getId(), numPages()), header);
+        HeapPage newPage = new HeapPage(newPid, header);
         newPage.insertTuple(t);
         this.writePage(newPage);
 
@@ -185,6 +276,7 @@ public class HeapFile implements DbFile {
 
             private int outer;
             private Iterator<Tuple> innerIterator;
+            private ReadAhead readAhead;
 
             @Override
             // modified in lab2
@@ -212,11 +304,27 @@ public class HeapFile implements DbFile {
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
+                readAhead = new ReadAhead(Database.getBufferPool().getReadAheadLimit());
+                if (numPages() == 0) {
+                    // nothing to read, in any I/O mode; pages appended later
+                    // are found from page 0 on
+                    outer = -1;
+                    innerIterator = Collections.emptyIterator();
+                    return;
+                }
                 outer = 0;
                 innerIterator = getNewIterator();
             }
 
             private Iterator<Tuple> getNewIterator() {
+                int[] ahead = readAhead.access(outer, numPages());
+                if (ahead.length > 0) {
+                    List<PageId> pids = new ArrayList<>(ahead.length);
+                    for (int pgNo : ahead) {
+                        pids.add(new HeapPageId(getId(), pgNo));
+                    }
+                    Database.getBufferPool().prefetchPages(pids);
+                }
                 try {
                     return ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), outer), Permissions.READ_ONLY)).iterator();
                 } catch (TransactionAbortedException e) {
@@ -17,13 +17,15 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements FramedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
     final Tuple[] tuples;
     final int numSlots;
+    /** Source of tuples not decoded yet, or null if all are decoded. */
+    private final PageFrame frame;
     private TransactionId dirtyTid;
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
@@ -48,6 +50,7 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.frame = null;
 	    this.dirtyTid = null;
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -69,6 +72,44 @@ public class HeapPage implements Page {
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage over the page bytes held in a frame. Only the header
+     * is read up front; each tuple is decoded from the frame the first time
+     * it is accessed. The frame's contents are the before-image of the page.
+     *
+     * @see PageFrame
+     */
+    public HeapPage(HeapPageId id, PageFrame frame) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.frame = frame;
+        this.dirtyTid = null;
+        this.header = frame.read(0, getHeaderSize());
+        this.tuples = new Tuple[numSlots];
+    }
+
+    /**
+     * @return the frame this page decodes tuples from, or null
+     */
+    public PageFrame getFrame() {
+        return this.frame;
+    }
+
+    /**
+     * Return the tuple in slot i, decoding it from the frame if this is the
+     * first access. Empty slots give null.
+     */
+    private Tuple tuple(int i) {
+        Tuple t = tuples[i];
+        if (t == null && frame != null && isSlotUsed(i)) {
+            // concurrent readers may both decode the slot; either copy will do
+            t = readNextTuple(frame.stream(header.length + i * td.getSize(), td.getSize()), i);
+            tuples[i] = t;
+        }
+        return t;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -97,6 +138,10 @@ public class HeapPage implements Page {
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null) {
+                    // the frame still holds the image this page was read with
+                    oldDataRef = frame.copy();
+                }
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -110,7 +155,11 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        if (frame != null) {
+            frame.write(getPageData());
+        } else {
+            oldData = getPageData().clone();
+        }
         }
     }
 
@@ -200,7 +249,7 @@ public class HeapPage implements Page {
 
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = tuple(i).getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -381,7 +430,7 @@ public class HeapPage implements Page {
                 if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                return tuples[cur++];
+                return tuple(cur++);
             }
         };
     }
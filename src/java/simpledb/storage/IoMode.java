@@ -0,0 +1,19 @@
+package simpledb.storage;
+
+/**
+ * How a DbFile reads and writes its pages.
+ *
+ * @see PageIo
+ * @see simpledb.common.Catalog#setIoMode
+ */
+public enum IoMode {
+    /** Open, seek and close a RandomAccessFile for every page (the default). */
+    RANDOM_ACCESS,
+    /** Keep one FileChannel open and use positional reads and writes. */
+    CHANNEL,
+    /**
+     * Like CHANNEL, but also map the whole file into memory and serve reads
+     * (and writes to existing pages) from the mapping.
+     */
+    MMAP
+}
@@ -7,7 +7,14 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,12 +46,22 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is split into segment files, named after the log file with
+the LSN of their first record appended, e.g. log.00000000000000004096.
+Records are appended to the last segment, the tail, until the next one
+would take it past the segment size; then a new segment is started.
+A record never spans segments.
+
+<li> Records are addressed by log sequence number (LSN): the position of
+the record in the log as if no segment had ever been deleted.  An LSN
+stays valid until truncation deletes the segment holding it.
+
+<li> The log file itself holds a single long integer: the LSN of the
+last checkpoint record, or -1 if there are no checkpoints
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
@@ -52,31 +69,66 @@ records are variable length.
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN of the record.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each record is built in memory by a LogSerializer and appended
+with a single write.
+
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> UPDATE and DELTA records continue with a long integer prevLSN: the
+LSN of the previous record of the same transaction, its BEGIN record for
+its first change.  Following these chains, rollback reads only the
+records of the transaction it rolls back.
+
+<li>UPDATE RECORDS then consist of two entries, a before image and an
+after image.  These images are serialized Page objects, tagged with a
+byte that names their class, and can be accessed with the
+LogSerializer.readPage() and LogSerializer.putPage() methods.  See
+LogFile.print() for an example.
+
+<li> DELTA records log the same kind of change as UPDATE records, but
+hold only the byte ranges of the page that changed, before and after.
+logWrite() uses one whenever the change covers less than half the page;
+see LogSerializer.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record LSN for each active transaction; then an
+integer count of dirty pages, and an integer table id, an integer page
+number and a long integer recLSN (that of the oldest record whose change
+to the page may not be on disk) for each.
 
 </ul>
+
+<u> Group commit: </u>
+<p>
+
+Records are also numbered in the order they are appended.  A thread that needs its
+records on disk, e.g. to commit, waits until the number of its last
+record is durable.  The first such thread becomes the leader: it waits
+up to maxWait for up to maxBatch threads to join it, then forces the log
+once for all of them, outside the LogFile monitor so that others keep
+appending.  Threads that arrive while the leader is forcing form the next
+batch.  See setGroupCommit().
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    /** Holds the LSN of the last checkpoint. */
+    private final RandomAccessFile control;
+    /** The segment being appended to, and its first LSN; replaced with
+        both this and forceLock held. */
+    private RandomAccessFile tail;
+    private long tailStart;
+    /** The segment files by the LSN they start at. Protected by this. */
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,16 +136,45 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    /** The prevLSN of a change by a transaction that logged no BEGIN. */
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    /** The default size at which a new segment is started, in bytes. */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    long currentLsn = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    /** The last record of each transaction in tidToFirstLogRecord. Protected by this. */
+    private final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+
+    /** Builds the record being appended. Protected by this. */
+    private final LogSerializer out = new LogSerializer();
+
+    /** Number of records appended so far. */
+    private volatile long appendSeq = 0; //written with this held
+    /** Held while forcing the log, and while replacing the tail. */
+    private final Object forceLock = new Object();
+    /** Guards the group commit state below. */
+    private final ReentrantLock group = new ReentrantLock();
+    /** Signalled when a follower joins the batch being gathered. */
+    private final Condition batchGrew = group.newCondition();
+    /** Signalled when a force completes. */
+    private final Condition forced = group.newCondition();
+    private long durableSeq = 0; //protected by group
+    private boolean forcing = false; //protected by group
+    private int waiting = 0; //protected by group
+    private long maxWaitNanos = 0; //protected by group
+    private int maxBatch = 32; //protected by group
+    private long forceCount = 0; //protected by forceLock
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,7 +189,21 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        String prefix = f.getName() + ".";
+        File[] files = f.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File segment : files) {
+                String name = segment.getName();
+                if (name.startsWith(prefix)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(prefix.length())), segment);
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,14 +224,81 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            control.seek(0);
+            control.setLength(0);
+            control.writeLong(NO_CHECKPOINT_ID);
+            for (File segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            startSegment(0);
         }
     }
 
+    /** Start a new segment at lsn, and append to it from now on. */
+    private void startSegment(long lsn) throws IOException {
+        File f = new File(logFile.getAbsoluteFile().getParentFile(),
+                String.format("%s.%020d", logFile.getName(), lsn));
+        RandomAccessFile next = new RandomAccessFile(f, "rw");
+        next.setLength(0);
+        long upTo;
+        synchronized (forceLock) {
+            upTo = appendSeq;
+            if (tail != null) {
+                // forcing the new tail will not force the old one
+                tail.getChannel().force(true);
+                forceCount++;
+                tail.close();
+            }
+            tail = next;
+            tailStart = lsn;
+        }
+        group.lock();
+        try {
+            durableSeq = Math.max(durableSeq, upTo);
+        } finally {
+            group.unlock();
+        }
+        segments.put(lsn, f);
+        currentLsn = lsn;
+    }
+
+    /**
+     * Append the record out holds to the tail, or to a new segment if it
+     * would take the tail past the segment size.
+     *
+     * @return the LSN of the record
+     */
+    private long append() throws IOException {
+        if (currentLsn > tailStart && currentLsn - tailStart + out.size() > segmentSize) {
+            startSegment(currentLsn);
+        }
+        long lsn = currentLsn;
+        currentLsn = tailStart + out.append(tail.getChannel(), lsn - tailStart, lsn);
+        appendSeq++;
+        return lsn;
+    }
+
+    /**
+     * Set the size at which a new segment is started; a record larger than
+     * that gets a segment of its own.
+     */
+    public void setSegmentSize(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("need a positive segment size");
+        }
+        segmentSize = bytes;
+    }
+
+    /** @return the number of bytes the log's segments take up */
+    public synchronized long getSize() {
+        long size = 0;
+        for (File segment : segments.values()) {
+            size += segment.length();
+        }
+        return size;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -160,12 +322,11 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.begin(ABORT_RECORD, tid.getId());
+                append();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -175,117 +336,58 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.begin(COMMIT_RECORD, tid.getId());
+            append();
+            seq = appendSeq;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        // outside the monitor, so other committers can join the batch
+        awaitDurable(seq, true);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
+    /** Write an UPDATE or DELTA record to disk for the specified tid and page
         (with provided         before and after images.)
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, LSN = " + currentLsn);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
+           prevLSN
+           before page data (see LogSerializer.putPage)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+           a delta record has the changed byte ranges in place of the
+           page data (see LogSerializer.beginUpdate)
+        */
+        Long prev = tidToLastLogRecord.get(tid.getId());
+        out.beginUpdate(tid.getId(), prev != null ? prev : NO_LSN, before, after);
+        long lsn = append();
+        if (prev != null) {
+            tidToLastLogRecord.put(tid.getId(), lsn);
         }
-        return newPage;
 
+        Debug.log("WRITE LSN = " + currentLsn);
+        return lsn;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,170 +402,438 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        out.begin(BEGIN_RECORD, tid.getId());
+        long lsn = append();
+        tidToFirstLogRecord.put(tid.getId(), lsn);
+        tidToLastLogRecord.put(tid.getId(), lsn);
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + currentLsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: it flushes no pages and does not lock the
+        BufferPool.  It records the active transactions and the dirty page
+        table, i.e. the recLSN of every committed page that is not on disk
+        yet, which tells recovery where redo has to start.  Those pages are
+        then written in the background by the page cleaner, so the next
+        checkpoint can truncate further.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        BufferPool bp = Database.getBufferPool();
+        long cpLsn;
+        synchronized (this) {
+            preAppend();
+            out.begin(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.putInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.putLong(e.getKey());
+                out.putLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //and the dirty page table; the cleaner adds pages while
+            // holding this, so it cannot change under us
+            Map<PageId, Long> dirty = bp.getDirtyPageTable(this);
+            out.putInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                out.putInt(e.getKey().getTableId());
+                out.putInt(e.getKey().getPageNumber());
+                out.putLong(e.getValue());
             }
+            cpLsn = append();
         }
+        force();
+
+        //once the CP is on disk, point the log file at it, unless a
+        // checkpoint taken meanwhile got there first
+        synchronized (this) {
+            control.seek(0);
+            if (control.readLong() < cpLsn) {
+                control.seek(0);
+                control.writeLong(cpLsn);
+                control.getChannel().force(true);
+            }
+        }
+        bp.flushForCheckpoint();
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+        consumption: delete the segments that hold only records older than
+        any the last checkpoint needs.  This never blocks logging for
+        longer than it takes to read the checkpoint record. */
+    public void logTruncate() throws IOException {
+        List<File> unneeded = new ArrayList<>();
+        synchronized (this) {
+            preAppend();
+            Checkpoint cp = readCheckpoint();
+            if (cp == null) {
+                return;
+            }
+            long keepFrom = cp.keepFrom();
+            // the tail is never unneeded, as the checkpoint is there or later
+            while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= keepFrom) {
+                unneeded.add(segments.pollFirstEntry().getValue());
+            }
+        }
+        // nobody reads these any more
+        for (File segment : unneeded) {
+            Debug.log("TRUNCATING LOG SEGMENT " + segment);
+            if (!segment.delete()) {
+                throw new IOException("could not delete log segment " + segment);
+            }
+        }
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Rollback the specified transaction, setting the state of any
+        of pages it updated to their pre-updated state.  To preserve
+        transaction semantics, this should not be called on
+        transactions that have already committed (though this may not
+        be enforced by this method.)
+        <p>
+        This follows the transaction's prevLSN chain back from its last
+        record, so it reads none of the records of other transactions.
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        @param tid The transaction to rollback
+    */
+    public void rollback(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized(this) {
+                preAppend();
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("no BEGIN record for " + tid);
+                }
+                // walk back along the transaction's records to its BEGIN
+                Map<PageId, List<Step>> steps = new LinkedHashMap<>();
+                Map<Long, FileChannel> channels = new HashMap<>();
+                try {
+                    long lsn = tidToLastLogRecord.getOrDefault(tid.getId(), first);
+                    while (lsn != first && lsn != NO_LSN) {
+                        DataInputStream in = openRecord(channels, lsn);
+                        int type = in.readInt();
+                        in.readLong();
+                        lsn = in.readLong();
+                        addStep(steps, LogSerializer.readChange(type, in), false);
+                    }
+                } finally {
+                    for (FileChannel ch : channels.values()) {
+                        ch.close();
+                    }
+                }
+                replay(steps, 1);
             }
+        }
+    }
 
-            int numOutstanding = raf.readInt();
+    /**
+     * @return a stream over the record at lsn, read through a channel to
+     *         its segment that is kept in channels for the next record
+     */
+    private DataInputStream openRecord(Map<Long, FileChannel> channels, long lsn) throws IOException {
+        Map.Entry<Long, File> segment = segments.floorEntry(lsn);
+        if (segment == null) {
+            throw new IOException("LSN " + lsn + " precedes the log");
+        }
+        FileChannel ch = channels.get(segment.getKey());
+        if (ch == null) {
+            ch = new FileInputStream(segment.getValue()).getChannel();
+            channels.put(segment.getKey(), ch);
+        }
+        ch.position(lsn - segment.getKey());
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+    /** What scan() calls for each record. */
+    private interface RecordVisitor {
+        /**
+         * @param lsn the LSN of the record
+         * @param change the change logged, for UPDATE and DELTA records;
+         *               null otherwise
+         */
+        void visit(int type, long tid, long lsn, LogSerializer.Change change) throws IOException;
+    }
+
+    /** Counts the bytes read through it, so scan() knows where records end. */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
             }
+            return b;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
 
-        raf.seek(minLogRecord);
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+    /**
+     * @return a stream over the segment holding lsn, from lsn on
+     */
+    private DataInputStream open(long lsn) throws IOException {
+        return new DataInputStream(openCounting(lsn));
+    }
+
+    private CountingInputStream openCounting(long lsn) throws IOException {
+        Map.Entry<Long, File> segment = segments.floorEntry(lsn);
+        if (segment == null) {
+            throw new IOException("LSN " + lsn + " precedes the log");
+        }
+        FileInputStream in = new FileInputStream(segment.getValue());
+        in.getChannel().position(lsn - segment.getKey());
+        return new CountingInputStream(new BufferedInputStream(in));
+    }
+
+    /**
+     * Read the records from lsn on, up to the end of the log. Reading a
+     * segment stops at its first incomplete record.
+     *
+     * @return the LSN just past the last complete record
+     */
+    private long scan(long lsn, RecordVisitor visitor) throws IOException {
+        Long first = segments.floorKey(lsn);
+        if (first == null) {
+            throw new IOException("LSN " + lsn + " precedes the log");
+        }
+        long end = lsn;
+        for (long start : segments.tailMap(first, true).keySet()) {
+            long from = Math.max(lsn, start);
+            end = from;
+            CountingInputStream counted = openCounting(from);
+            try (DataInputStream in = new DataInputStream(counted)) {
+                while (true) {
+                    long recordLsn = from + counted.count;
+                    int type;
+                    long tid;
+                    LogSerializer.Change change = null;
+                    try {
+                        type = in.readInt();
+                        tid = in.readLong();
+                        switch (type) {
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                            in.readLong(); // prevLSN
+                            change = LogSerializer.readChange(type, in);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            new Checkpoint(recordLsn, in);
+                            break;
+                        }
+                        in.readLong();
+                    } catch (EOFException e) {
+                        break;
                     }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                    end = from + counted.count;
+                    visitor.visit(type, tid, recordLsn, change);
                 }
+            }
+        }
+        return end;
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** What a CHECKPOINT record holds. */
+    private static final class Checkpoint {
+        final long lsn;
+        /** The first record of each transaction active then. */
+        final Map<Long, Long> active = new HashMap<>();
+        final int numDirty;
+        /** Where redo starts: every change logged earlier is on disk. */
+        final long redoFrom;
+
+        /** Read the body of the record at lsn. */
+        Checkpoint(long lsn, DataInput in) throws IOException {
+            this.lsn = lsn;
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long tid = in.readLong();
+                active.put(tid, in.readLong());
+            }
+            numDirty = in.readInt();
+            long min = lsn;
+            for (int i = 0; i < numDirty; i++) {
+                in.readInt();
+                in.readInt();
+                min = Math.min(min, in.readLong());
+            }
+            redoFrom = min;
+        }
 
-            } catch (EOFException e) {
-                break;
+        /** @return the LSN of the oldest record recovery may need */
+        long keepFrom() {
+            long keep = redoFrom;
+            for (long first : active.values()) {
+                keep = Math.min(keep, first);
             }
+            return keep;
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** @return the last checkpoint, or null if there is none */
+    private Checkpoint readCheckpoint() throws IOException {
+        control.seek(0);
+        long cpLsn = control.length() < LONG_SIZE ? NO_CHECKPOINT_ID : control.readLong();
+        return cpLsn == NO_CHECKPOINT_ID ? null : readCheckpoint(cpLsn);
+    }
+
+    private Checkpoint readCheckpoint(long lsn) throws IOException {
+        try (DataInputStream in = open(lsn)) {
+            if (in.readInt() != CHECKPOINT_RECORD) {
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            }
+            in.readLong();
+            return new Checkpoint(lsn, in);
+        }
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** A logged change to redo or undo. */
+    private static final class Step {
+        final LogSerializer.Change change;
+        final boolean redo;
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Step(LogSerializer.Change change, boolean redo) {
+            this.change = change;
+            this.redo = redo;
+        }
     }
 
-    /** Rollback the specified transaction, setting the state of any
-        of pages it updated to their pre-updated state.  To preserve
-        transaction semantics, this should not be called on
-        transactions that have already committed (though this may not
-        be enforced by this method.)
+    private static void addStep(Map<PageId, List<Step>> steps, LogSerializer.Change change, boolean redo) {
+        steps.computeIfAbsent(change.pid, pid -> new ArrayList<>()).add(new Step(change, redo));
+    }
 
-        @param tid The transaction to rollback
-    */
-    public void rollback(TransactionId tid)
-        throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+    /**
+     * Apply the steps of each page, in order, to the page as it is on disk,
+     * and write the result. Pages are independent, so they are divided among
+     * up to threads workers by PageId.
+     */
+    private void replay(Map<PageId, List<Step>> steps, int threads) throws IOException {
+        List<Map.Entry<PageId, List<Step>>> pages = new ArrayList<>(steps.entrySet());
+        int workers = Math.max(1, Math.min(threads, pages.size()));
+        if (workers == 1) {
+            for (Map.Entry<PageId, List<Step>> e : pages) {
+                replay(e.getKey(), e.getValue());
+            }
+            return;
+        }
+        List<List<Map.Entry<PageId, List<Step>>>> shares = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            shares.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, List<Step>> e : pages) {
+            shares.get((e.getKey().hashCode() & Integer.MAX_VALUE) % workers).add(e);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "LogFile-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (List<Map.Entry<PageId, List<Step>>> share : shares) {
+                done.add(pool.submit(() -> {
+                    for (Map.Entry<PageId, List<Step>> e : share) {
+                        replay(e.getKey(), e.getValue());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during recovery");
+                }
             }
+        } finally {
+            pool.shutdownNow();
         }
     }
 
+    private static void replay(PageId pid, List<Step> steps) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        // the pool's copy is out of date; this also writes any committed
+        // copy the page cleaner still holds, so the disk copy is current
+        bp.discardPage(pid);
+        Page page = null;
+        boolean read = false;
+        // the data of page with the deltas since applied, if any
+        byte[] data = null;
+        LogSerializer.Change lastDelta = null;
+        for (Step s : steps) {
+            if (s.change.isFullImage()) {
+                page = s.change.image(s.redo);
+                data = null;
+                lastDelta = null;
+                read = true;
+                continue;
+            }
+            if (data == null) {
+                if (!read) {
+                    try {
+                        page = file.readPage(pid);
+                    } catch (IllegalArgumentException | NoSuchElementException e) {
+                        // past the end of the file
+                        page = null;
+                    }
+                    read = true;
+                }
+                data = page != null ? page.getPageData() : new byte[BufferPool.getPageSize()];
+            }
+            s.change.apply(data, s.redo);
+            lastDelta = s.change;
+        }
+        if (lastDelta != null) {
+            page = lastDelta.build(data);
+        }
+        if (page != null) {
+            bp.discardPage(pid);
+            file.writePage(page);
+        }
+    }
+
+    /**
+     * Set the number of threads recover() uses to redo and undo changes;
+     * by default, one per processor.
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one thread");
+        }
+        recoveryThreads = threads;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -471,7 +841,10 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            control.close();
+            synchronized (forceLock) {
+                tail.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,94 +854,268 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Analysis starts at the last checkpoint, which lists the
+        transactions active then and the dirty page table, and reads on
+        to find which of them and of those begun since committed. Redo
+        starts at the oldest recLSN in the dirty page table, or at the
+        checkpoint if it is older, since every change logged before that
+        is on disk; the changes of committed transactions logged from there
+        on are redone. The changes of the transactions that never finished
+        (losers) are undone, reading from the first record of the oldest
+        of them. Redo and undo are grouped by page, each page's redos in log
+        order followed by its undos in reverse order, and the pages are
+        divided among setRecoveryThreads() workers. Finally the losers
+        are logged as aborted, after the last complete record; anything
+        after that, torn by the crash, is cut off first.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (control.length() < LONG_SIZE) {
+                    control.setLength(0);
+                    control.writeLong(NO_CHECKPOINT_ID);
+                }
+                if (segments.isEmpty()) {
+                    startSegment(0);
+                } else {
+                    Map.Entry<Long, File> last = segments.lastEntry();
+                    synchronized (forceLock) {
+                        tail = new RandomAccessFile(last.getValue(), "rw");
+                        tailStart = last.getKey();
+                    }
+                }
+
+                // analysis
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                Checkpoint cp = readCheckpoint();
+                final long redoFrom;
+                if (cp != null) {
+                    tidToFirstLogRecord.putAll(cp.active);
+                    redoFrom = cp.redoFrom;
+                } else {
+                    redoFrom = segments.firstKey();
+                }
+                final Set<Long> committed = new HashSet<>();
+                long end = scan(redoFrom, (type, tid, lsn, change) -> {
+                    switch (type) {
+                    case BEGIN_RECORD:
+                        tidToFirstLogRecord.put(tid, lsn);
+                        break;
+                    case COMMIT_RECORD:
+                        committed.add(tid);
+                        tidToFirstLogRecord.remove(tid);
+                        break;
+                    case ABORT_RECORD:
+                        // rolled back before its ABORT record was written
+                        tidToFirstLogRecord.remove(tid);
+                        break;
+                    }
+                });
+                // records are appended after the last complete one
+                tail.setLength(end - tailStart);
+                currentLsn = end;
+                final Set<Long> losers = new HashSet<>(tidToFirstLogRecord.keySet());
+                long undoFrom = redoFrom;
+                for (long first : tidToFirstLogRecord.values()) {
+                    undoFrom = Math.min(undoFrom, first);
+                }
+
+                // redo and undo, page by page
+                final Map<PageId, List<Step>> steps = new HashMap<>();
+                final List<LogSerializer.Change> undo = new ArrayList<>();
+                scan(undoFrom, (type, tid, lsn, change) -> {
+                    if (change == null) {
+                        return;
+                    }
+                    if (lsn >= redoFrom && committed.contains(tid)) {
+                        addStep(steps, change, true);
+                    } else if (losers.contains(tid)) {
+                        undo.add(change);
+                    }
+                });
+                for (int i = undo.size() - 1; i >= 0; i--) {
+                    addStep(steps, undo.get(i), false);
+                }
+                replay(steps, recoveryThreads);
+
+                // so that the losers are not undone again after a later crash
+                for (long tid : losers) {
+                    out.begin(ABORT_RECORD, tid);
+                    append();
+                }
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+    public synchronized void print() throws IOException {
+        Checkpoint cp = readCheckpoint();
+        System.out.println("checkpoint record at LSN " + (cp == null ? NO_CHECKPOINT_ID : cp.lsn));
+        for (Map.Entry<Long, File> e : segments.entrySet()) {
+            System.out.println(e.getKey() + ": SEGMENT " + e.getValue().getName());
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+        scan(segments.firstKey(), (type, tid, lsn, change) -> {
+            System.out.println(lsn + ": RECORD TYPE " + type);
+            System.out.println(lsn + ": TID " + tid);
+            switch (type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                Checkpoint c = readCheckpoint(lsn);
+                System.out.println(lsn + ": NUMBER OF OUTSTANDING RECORDS: " + c.active.size());
+                for (Map.Entry<Long, Long> e : c.active.entrySet()) {
+                    System.out.println(lsn + ": TID: " + e.getKey() + " FIRST LOG RECORD: " + e.getValue());
+                }
+                System.out.println(lsn + ": NUMBER OF DIRTY PAGES: " + c.numDirty + " REDO FROM: " + c.redoFrom);
+                break;
+            case DELTA_RECORD:
+                System.out.println(" (DELTA)");
+                System.out.println(lsn + ": " + change);
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
+                System.out.println(lsn + ": " + change);
+                break;
+            }
+        });
+    }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        // callers may hold the monitor, in which case nobody else can
+        // append, so there is no point waiting for a batch to form
+        awaitDurable(appendSeq, false);
+    }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    /**
+     * Configure group commit.
+     *
+     * @param maxWaitMicros how long the leader of a batch waits for others
+     *                      to join before it forces the log; 0 forces right
+     *                      away, batching only the threads that arrived
+     *                      during the previous force
+     * @param maxBatch the number of waiting threads that ends the wait
+     *                 early; 1 turns group commit off, so that every thread
+     *                 forces the log itself
+     */
+    public void setGroupCommit(long maxWaitMicros, int maxBatch) {
+        if (maxWaitMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("need maxWaitMicros >= 0 and maxBatch >= 1");
+        }
+        group.lock();
+        try {
+            this.maxWaitNanos = maxWaitMicros * 1000;
+            this.maxBatch = maxBatch;
+        } finally {
+            group.unlock();
+        }
+    }
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    /** @return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forceCount;
+        }
+    }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    /** @return the number of the last record appended */
+    long getAppendSeq() {
+        return appendSeq;
+    }
 
-                    break;
+    /**
+     * Wait until records up to number seq are on disk, forcing the log as the
+     * leader of a batch if nobody else is.
+     *
+     * @param gather whether the leader may wait for others to join its batch
+     */
+    void awaitDurable(long seq, boolean gather) throws IOException {
+        while (true) {
+            boolean alone;
+            group.lock();
+            try {
+                if (durableSeq >= seq) {
+                    return;
+                }
+                alone = maxBatch <= 1;
+                if (forcing && !alone) {
+                    // follow: let the leader know we're here, then wait for it
+                    waiting++;
+                    try {
+                        batchGrew.signal();
+                        forced.await();
+                    } finally {
+                        waiting--;
+                    }
+                    continue;
+                }
+                if (!alone) {
+                    forcing = true;
+                    if (gather) {
+                        awaitBatch();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for log force");
+            } finally {
+                group.unlock();
+            }
+            long upTo = -1;
+            try {
+                synchronized (forceLock) {
+                    upTo = appendSeq;
+                    tail.getChannel().force(true);
+                    forceCount++;
+                }
+            } finally {
+                group.lock();
+                try {
+                    if (!alone) {
+                        forcing = false;
+                    }
+                    if (upTo > durableSeq) {
+                        durableSeq = upTo;
+                    }
+                    forced.signalAll();
+                } finally {
+                    group.unlock();
                 }
-
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * As leader, wait up to maxWait for maxBatch - 1 followers. Call with
+     * group held. An interrupted leader still forces the log for its batch.
+     */
+    private void awaitBatch() {
+        long left = maxWaitNanos;
+        while (waiting + 1 < maxBatch && left > 0) {
+            try {
+                left = batchGrew.awaitNanos(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
 }
@@ -0,0 +1,445 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Builds log records in a reusable direct buffer and appends each one to the
+ * log with a single channel write, and reads back the page images they hold.
+ * <p>
+ * A record is laid out as described in {@link LogFile}: an int type, a long
+ * transaction id, the body, and finally the long offset at which the record
+ * starts. Page images in the body begin with a one-byte tag naming the page
+ * and id classes, followed by the ints of the page id that the tag does not
+ * imply, an int length and the page data:
+ *
+ * <pre>
+ *   HEAP_PAGE                tableId pgNo
+ *   BTREE_ROOT_PTR_PAGE,
+ *   BTREE_INTERNAL_PAGE,
+ *   BTREE_LEAF_PAGE,
+ *   BTREE_HEADER_PAGE        tableId pgNo          (the category is the tag's)
+ *   OTHER_PAGE               UTF page class, UTF id class, int count, ints
+ * </pre>
+ *
+ * Pages of other classes are stored with their class names and rebuilt
+ * reflectively from a (PageId, byte[]) constructor.
+ * <p>
+ * A change to a page is logged as an UPDATE record holding both images, or,
+ * if it touched less than half the page, as a DELTA record holding only the
+ * byte ranges that differ: typically a few header bits and the slots of the
+ * tuples inserted or deleted. Splits and merges rewrite most of a page and
+ * keep full images. A DELTA body is the tag and id of the page, an int
+ * count of ranges, and for each range an int offset, an int length, and
+ * the bytes before and after. Only tagged pages are logged as deltas.
+ * <p>
+ * Not thread-safe; the LogFile monitor guards its instance.
+ */
+class LogSerializer {
+    static final byte OTHER_PAGE = 0;
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+
+    /** Ranges this close together are logged as one, saving a range header. */
+    private static final int MERGE_GAP = 2 * Integer.BYTES;
+
+    private ByteBuffer buf;
+
+    LogSerializer() {
+        // an update record holds two pages, plus a little
+        buf = ByteBuffer.allocateDirect(2 * BufferPool.getPageSize() + 64);
+    }
+
+    /**
+     * Start a new record, discarding anything not appended yet.
+     */
+    LogSerializer begin(int type, long tid) {
+        buf.clear();
+        return putInt(type).putLong(tid);
+    }
+
+    LogSerializer putInt(int v) {
+        reserve(Integer.BYTES);
+        buf.putInt(v);
+        return this;
+    }
+
+    LogSerializer putLong(long v) {
+        reserve(Long.BYTES);
+        buf.putLong(v);
+        return this;
+    }
+
+    /**
+     * Add the image of page p.
+     */
+    LogSerializer putPage(Page p) {
+        PageId pid = p.getId();
+        byte tag = tagOf(p);
+        if (tag == OTHER_PAGE) {
+            byte[] pageClass = modifiedUtf8(p.getClass().getName());
+            byte[] idClass = modifiedUtf8(pid.getClass().getName());
+            int[] idInts = pid.serialize();
+            reserve(1 + pageClass.length + idClass.length + Integer.BYTES * (1 + idInts.length));
+            buf.put(tag).put(pageClass).put(idClass).putInt(idInts.length);
+            for (int i : idInts) {
+                buf.putInt(i);
+            }
+        } else {
+            reserve(1 + 2 * Integer.BYTES);
+            buf.put(tag).putInt(pid.getTableId()).putInt(pid.getPageNumber());
+        }
+        byte[] data = p.getPageData();
+        reserve(Integer.BYTES + data.length);
+        buf.putInt(data.length).put(data);
+        return this;
+    }
+
+    /**
+     * Start the record logging the change of a page from before to after by
+     * transaction tid: a DELTA record if that is much smaller, else an
+     * UPDATE record. Either holds prevLsn, the LSN of the transaction's
+     * previous record, ahead of the change.
+     */
+    LogSerializer beginUpdate(long tid, long prevLsn, Page before, Page after) {
+        byte tag = tagOf(after);
+        if (tag != OTHER_PAGE && tagOf(before) == tag && before.getId().equals(after.getId())) {
+            byte[] from = before.getPageData();
+            byte[] to = after.getPageData();
+            int[] ranges = diff(from, to);
+            if (ranges != null) {
+                begin(LogFile.DELTA_RECORD, tid).putLong(prevLsn);
+                reserve(1 + 3 * Integer.BYTES);
+                buf.put(tag).putInt(after.getId().getTableId()).putInt(after.getId().getPageNumber());
+                buf.putInt(ranges.length / 2);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    int off = ranges[i];
+                    int len = ranges[i + 1];
+                    reserve(2 * Integer.BYTES + 2 * len);
+                    buf.putInt(off).putInt(len).put(from, off, len).put(to, off, len);
+                }
+                return this;
+            }
+        }
+        return begin(LogFile.UPDATE_RECORD, tid).putLong(prevLsn).putPage(before).putPage(after);
+    }
+
+    /**
+     * @return the ranges where a and b differ, as offset, length pairs, or
+     *         null if they cover half the page or more
+     */
+    static int[] diff(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return null;
+        }
+        int[] ranges = new int[8];
+        int n = 0;
+        int changed = 0;
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < a.length && a[i] != b[i]) {
+                i++;
+            }
+            if (n > 0 && start - (ranges[n - 2] + ranges[n - 1]) <= MERGE_GAP) {
+                changed += start - (ranges[n - 2] + ranges[n - 1]);
+                ranges[n - 1] = i - ranges[n - 2];
+            } else {
+                if (n == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, 2 * n);
+                }
+                ranges[n++] = start;
+                ranges[n++] = i - start;
+            }
+            changed += i - start;
+            if (2 * changed >= a.length) {
+                return null;
+            }
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    /**
+     * @return the size of the record begun last, once finished
+     */
+    int size() {
+        return buf.position() + Long.BYTES;
+    }
+
+    /**
+     * Finish the record begun last, giving it the LSN lsn, and write it to
+     * ch at offset.
+     *
+     * @return the offset just past the record
+     */
+    long append(FileChannel ch, long offset, long lsn) throws IOException {
+        putLong(lsn);
+        buf.flip();
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+        buf.clear();
+        return pos;
+    }
+
+    private void reserve(int n) {
+        if (buf.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(2 * buf.capacity(), buf.position() + n));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+    }
+
+    private static byte tagOf(Page p) {
+        Class<?> c = p.getClass();
+        if (c == HeapPage.class && p.getId().getClass() == HeapPageId.class) {
+            return HEAP_PAGE;
+        }
+        if (p.getId().getClass() != BTreePageId.class) {
+            return OTHER_PAGE;
+        }
+        if (c == BTreeRootPtrPage.class) {
+            return BTREE_ROOT_PTR_PAGE;
+        } else if (c == BTreeInternalPage.class) {
+            return BTREE_INTERNAL_PAGE;
+        } else if (c == BTreeLeafPage.class) {
+            return BTREE_LEAF_PAGE;
+        } else if (c == BTreeHeaderPage.class) {
+            return BTREE_HEADER_PAGE;
+        }
+        return OTHER_PAGE;
+    }
+
+    /** The encoding DataOutput.writeUTF() uses, length prefix included. */
+    private static byte[] modifiedUtf8(String s) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(s);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read a page image written by putPage().
+     */
+    static Page readPage(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        if (tag == OTHER_PAGE) {
+            return readOtherPage(in);
+        }
+        PageId pid = pageId(tag, in.readInt(), in.readInt());
+        return newPage(tag, pid, readData(in));
+    }
+
+    private static PageId pageId(byte tag, int tableId, int pgNo) throws IOException {
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        case BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        default:
+            throw new IOException("unknown page tag " + tag);
+        }
+    }
+
+    private static Page newPage(byte tag, PageId pid, byte[] data) throws IOException {
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPage((HeapPageId) pid, data);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage((BTreePageId) pid, data);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage((BTreePageId) pid, data, keyField(pid.getTableId()));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage((BTreePageId) pid, data, keyField(pid.getTableId()));
+        case BTREE_HEADER_PAGE:
+            return new BTreeHeaderPage((BTreePageId) pid, data);
+        default:
+            throw new IOException("unknown page tag " + tag);
+        }
+    }
+
+    /**
+     * The change to one page logged by an UPDATE or DELTA record, which can
+     * be redone or undone on the page as it is now.
+     */
+    static final class Change {
+        final PageId pid;
+        /** Full images, for UPDATE records. */
+        private final Page before;
+        private final Page after;
+        /** Ranges, for DELTA records. */
+        private final byte tag;
+        private final int[] ranges;
+        private final byte[][] from;
+        private final byte[][] to;
+
+        private Change(Page before, Page after) {
+            this.pid = after.getId();
+            this.before = before;
+            this.after = after;
+            this.tag = OTHER_PAGE;
+            this.ranges = null;
+            this.from = null;
+            this.to = null;
+        }
+
+        private Change(byte tag, PageId pid, int[] ranges, byte[][] from, byte[][] to) {
+            this.pid = pid;
+            this.before = null;
+            this.after = null;
+            this.tag = tag;
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+        }
+
+        /** @return whether the record holds full page images */
+        boolean isFullImage() {
+            return ranges == null;
+        }
+
+        /**
+         * @return the full image after the change (redo) or before it
+         */
+        Page image(boolean redo) {
+            return redo ? after : before;
+        }
+
+        /**
+         * Apply a delta, or take it back, on the data of a page in place.
+         * Saves rebuilding the page for each of a run of deltas.
+         */
+        void apply(byte[] data, boolean redo) {
+            byte[][] bytes = redo ? to : from;
+            for (int i = 0; i < bytes.length; i++) {
+                System.arraycopy(bytes[i], 0, data, ranges[2 * i], ranges[2 * i + 1]);
+            }
+        }
+
+        /**
+         * @return the page of a delta with the given data
+         */
+        Page build(byte[] data) throws IOException {
+            return newPage(tag, pid, data);
+        }
+
+        @Override
+        public String toString() {
+            if (isFullImage()) {
+                return "full images of " + pid;
+            }
+            StringBuilder sb = new StringBuilder("delta of " + pid + ":");
+            for (int i = 0; i < ranges.length; i += 2) {
+                sb.append(" [").append(ranges[i]).append(", +").append(ranges[i + 1]).append(")");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Read the body of an UPDATE or DELTA record.
+     *
+     * @param type the type of the record
+     */
+    static Change readChange(int type, DataInput in) throws IOException {
+        if (type == LogFile.UPDATE_RECORD) {
+            Page before = readPage(in);
+            Page after = readPage(in);
+            return new Change(before, after);
+        }
+        byte tag = in.readByte();
+        PageId pid = pageId(tag, in.readInt(), in.readInt());
+        int n = in.readInt();
+        int[] ranges = new int[2 * n];
+        byte[][] from = new byte[n][];
+        byte[][] to = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            ranges[2 * i] = in.readInt();
+            ranges[2 * i + 1] = in.readInt();
+            from[i] = new byte[ranges[2 * i + 1]];
+            in.readFully(from[i]);
+            to[i] = new byte[ranges[2 * i + 1]];
+            in.readFully(to[i]);
+        }
+        return new Change(tag, pid, ranges, from, to);
+    }
+
+    private static byte[] readData(DataInput in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    private static int keyField(int tableId) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            throw new IOException("table " + tableId + " is not a B+ tree");
+        }
+        return ((BTreeFile) f).keyField();
+    }
+
+    private static Page readOtherPage(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        String idClassName = in.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Class<?> pageClass = Class.forName(pageClassName);
+
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++) {
+                idArgs[i] = in.readInt();
+            }
+            PageId pid = (PageId) idConsts[0].newInstance(idArgs);
+
+            // pages may have other constructors too; use the (id, bytes) one
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class) {
+                    pageConst = c;
+                }
+            }
+            if (pageConst == null) {
+                throw new IOException("no (PageId, byte[]) constructor for " + pageClassName);
+            }
+            return (Page) pageConst.newInstance(pid, readData(in));
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("cannot rebuild " + pageClassName, e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Least-recently-used replacement. Pages are kept in an access-ordered
+ * LinkedHashMap, so a hit moves the page to the most-recently-used end in O(1)
+ * and the victim is the first evictable page from the least-recently-used end.
+ */
+public class LruReplacementPolicy implements PageReplacementPolicy {
+    private final LinkedHashMap<PageId, PageId> order;
+    private final BufferPoolStats stats = new BufferPoolStats();
+
+    public LruReplacementPolicy() {
+        this.order = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public void pageHit(PageId pid) {
+        stats.recordHit();
+        order.get(pid);
+    }
+
+    public void pageAdded(PageId pid) {
+        stats.recordMiss();
+        order.put(pid, pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId evict(Predicate<PageId> canEvict) {
+        Iterator<PageId> iter = order.keySet().iterator();
+        while (iter.hasNext()) {
+            PageId pid = iter.next();
+            if (canEvict.test(pid)) {
+                iter.remove();
+                stats.recordEviction();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return order.size();
+    }
+
+    public BufferPoolStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,353 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes back the pages of committed transactions in the background, so that
+ * commit only has to force the log.
+ * <p>
+ * At commit the BufferPool logs each page the transaction dirtied and hands
+ * the cleaner an immutable snapshot of it; the page in the pool is then clean
+ * and may be modified by the next transaction or evicted. Each snapshot
+ * remembers the log record that describes it, and is only written once that
+ * record is on disk (write-ahead logging), forcing the log if need be. Once the number of
+ * pending snapshots reaches the high watermark, a background thread writes
+ * the oldest ones until no more than the low watermark remain. Each batch is
+ * sorted by (tableId, pageNo) and handed to {@link DbFile#writePages}, so
+ * runs of consecutive pages go out in a single write.
+ * <p>
+ * Each pending page also remembers its recLSN, the LSN of the oldest log
+ * record whose change is not on disk yet; together these make up the dirty
+ * page table a checkpoint records. After a checkpoint, the cleaner writes
+ * the pages that were pending at the time in the background, a few at a
+ * time, so that the next checkpoint can truncate more of the log.
+ * <p>
+ * A pending snapshot is the newest committed version of its page, and the
+ * disk copy is stale until it is written. Whoever reads the page from disk
+ * must call writeIfPending() first, and whoever writes the page through
+ * another path must use write(), which drops the snapshot it supersedes.
+ * <p>
+ * A background write that fails leaves its pages pending, and the failure is
+ * rethrown by the next call to clean(), writeIfPending() or
+ * flushForCheckpoint(), so that it reaches a caller.
+ *
+ * @Threadsafe
+ */
+class PageCleaner {
+    /**
+     * A committed page waiting to be written, the file it belongs to, and the
+     * log record that must be durable first.
+     */
+    private static class Pending {
+        final DbFile file;
+        final Page snapshot;
+        final LogFile log;
+        final long logSeq;
+        final long recLsn;
+
+        Pending(DbFile file, Page snapshot, LogFile log, long logSeq, long recLsn) {
+            this.file = file;
+            this.snapshot = snapshot;
+            this.log = log;
+            this.logSeq = logSeq;
+            this.recLsn = recLsn;
+        }
+
+        void write() throws IOException {
+            log.awaitDurable(logSeq, false);
+            file.writePage(snapshot);
+        }
+    }
+
+    /** Pages written per batch when flushing for a checkpoint. */
+    private static final int CHECKPOINT_BATCH = 32;
+
+    private static final Comparator<Pending> DISK_ORDER =
+            Comparator.<Pending>comparingInt(p -> p.snapshot.getId().getTableId())
+                    .thenComparingInt(p -> p.snapshot.getId().getPageNumber());
+
+    private final int numPages;
+    /** Oldest first. Guarded by this. */
+    private final LinkedHashMap<PageId, Pending> pending;
+    private int lowWatermark; // guarded by this
+    private int highWatermark; // guarded by this
+    private boolean scheduled; // guarded by this
+    /** The failure of a background write not reported yet. Guarded by this. */
+    private IOException backgroundFailure;
+    /** Pages pending at the last checkpoint and not written since. Guarded by this. */
+    private final Set<PageId> checkpointPages = new LinkedHashSet<>();
+    /** Held while writing, so writes of the same page never overtake each other. */
+    private final Object io = new Object();
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * @param numPages the capacity of the owning pool; also the most pending
+     *                 snapshots allowed before committers start writing
+     *                 pages themselves
+     * @param low the low watermark, in pages
+     * @param high the high watermark, in pages
+     */
+    PageCleaner(int numPages, int low, int high) {
+        this.numPages = numPages;
+        this.pending = new LinkedHashMap<>();
+        setWatermarks(low, high);
+        this.writer = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1), r -> {
+                    Thread t = new Thread(r, "BufferPool-cleaner");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void setWatermarks(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("need 0 <= low <= high, got " + low + ", " + high);
+        }
+        this.lowWatermark = low;
+        this.highWatermark = Math.max(1, high);
+    }
+
+    synchronized int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    synchronized int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return the number of committed pages not written to disk yet
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized boolean isPending(PageId pid) {
+        return pending.containsKey(pid);
+    }
+
+    /**
+     * Queue committed snapshots for writing. Called with the log's monitor
+     * held, so that a checkpoint sees either both the log records and the
+     * snapshots, or neither.
+     *
+     * @param log the log that holds the records describing the snapshots
+     * @param logSeq the number of the last of those records
+     * @param recLsns the LSN of the record describing each snapshot
+     * @return whether the cleaner has fallen so far behind that the caller
+     *         should help out by calling clean() once it has released the
+     *         log's monitor
+     */
+    synchronized boolean add(DbFile file, List<Page> snapshots, List<Long> recLsns, LogFile log, long logSeq) {
+        for (int i = 0; i < snapshots.size(); i++) {
+            Page snapshot = snapshots.get(i);
+            long recLsn = recLsns.get(i);
+            // re-insert, so a page committed again counts as new; its
+            // older change is still not on disk, though
+            Pending old = pending.remove(snapshot.getId());
+            if (old != null && old.log == log) {
+                recLsn = Math.min(recLsn, old.recLsn);
+            }
+            pending.put(snapshot.getId(), new Pending(file, snapshot, log, logSeq, recLsn));
+        }
+        boolean behind = pending.size() >= numPages;
+        if (!behind && pending.size() >= highWatermark) {
+            schedule();
+        }
+        return behind;
+    }
+
+    private void schedule() {
+        assert Thread.holdsLock(this);
+        if (!scheduled) {
+            scheduled = true;
+            writer.execute(this::cleanInBackground);
+        }
+    }
+
+    /**
+     * @return the recLSN of each page pending for log
+     */
+    synchronized Map<PageId, Long> dirtyPages(LogFile log) {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (Pending p : pending.values()) {
+            if (p.log == log) {
+                dirty.put(p.snapshot.getId(), p.recLsn);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Start writing every page pending now in the background, a batch at a
+     * time, however few are pending.
+     */
+    synchronized void flushForCheckpoint() throws IOException {
+        checkBackgroundFailure();
+        checkpointPages.addAll(pending.keySet());
+        if (!checkpointPages.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private synchronized List<Pending> nextCheckpointBatch() {
+        List<Pending> batch = new ArrayList<>();
+        Iterator<PageId> it = checkpointPages.iterator();
+        while (batch.size() < CHECKPOINT_BATCH && it.hasNext()) {
+            Pending p = pending.get(it.next());
+            it.remove();
+            if (p != null) {
+                batch.add(p);
+            }
+        }
+        return batch;
+    }
+
+    private void cleanInBackground() {
+        try {
+            while (true) {
+                cleanTo(getLowWatermark());
+                List<Pending> batch = nextCheckpointBatch();
+                if (!batch.isEmpty()) {
+                    synchronized (io) {
+                        write(batch);
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    // commits made while we were writing may have refilled it
+                    if (pending.size() < highWatermark && checkpointPages.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                scheduled = false;
+                if (backgroundFailure == null) {
+                    backgroundFailure = e;
+                } else {
+                    backgroundFailure.addSuppressed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Throw the failure of a background write, if there was one since the
+     * last call, and forget it.
+     */
+    private synchronized void checkBackgroundFailure() throws IOException {
+        IOException e = backgroundFailure;
+        if (e != null) {
+            backgroundFailure = null;
+            throw new IOException("page cleaner failed to write pages in the background", e);
+        }
+    }
+
+    /**
+     * Write the oldest pending snapshots until at most target remain.
+     * Snapshots that fail to write stay pending.
+     *
+     * @throws IOException if a write fails, here or earlier in the background
+     */
+    void clean(int target) throws IOException {
+        checkBackgroundFailure();
+        cleanTo(target);
+    }
+
+    private void cleanTo(int target) throws IOException {
+        synchronized (io) {
+            List<Pending> batch = new ArrayList<>();
+            synchronized (this) {
+                Iterator<Pending> it = pending.values().iterator();
+                while (pending.size() - batch.size() > target && it.hasNext()) {
+                    batch.add(it.next());
+                }
+            }
+            write(batch);
+        }
+    }
+
+    /**
+     * Write a batch of pending snapshots in disk order, coalescing runs of
+     * pages. Call with io held.
+     */
+    private void write(List<Pending> batch) throws IOException {
+        batch.sort(DISK_ORDER);
+        int start = 0;
+        while (start < batch.size()) {
+            int end = start + 1;
+            while (end < batch.size() && batch.get(end).file == batch.get(start).file) {
+                end++;
+            }
+            List<Page> pages = new ArrayList<>(end - start);
+            for (Pending p : batch.subList(start, end)) {
+                pages.add(p.snapshot);
+                p.log.awaitDurable(p.logSeq, false);
+            }
+            batch.get(start).file.writePages(pages);
+            synchronized (this) {
+                for (Pending p : batch.subList(start, end)) {
+                    // unless committed again in the meantime
+                    pending.remove(p.snapshot.getId(), p);
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Write the pending snapshot of a page, if there is one, so the copy on
+     * disk is current.
+     *
+     * @throws IOException if the write fails, or an earlier one did in the
+     *         background
+     */
+    void writeIfPending(PageId pid) throws IOException {
+        checkBackgroundFailure();
+        if (!isPending(pid)) {
+            // a snapshot stays pending until it has been written
+            return;
+        }
+        synchronized (io) {
+            Pending p;
+            synchronized (this) {
+                p = pending.get(pid);
+            }
+            if (p != null) {
+                p.write();
+                synchronized (this) {
+                    pending.remove(pid, p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a page that is newer than any pending snapshot of it, dropping
+     * that snapshot.
+     */
+    void write(DbFile file, Page page) throws IOException {
+        synchronized (io) {
+            synchronized (this) {
+                pending.remove(page.getId());
+            }
+            file.writePage(page);
+        }
+    }
+}
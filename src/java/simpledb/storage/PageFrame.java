@@ -0,0 +1,96 @@
+package simpledb.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The raw bytes of one page, kept in a ByteBuffer instead of being decoded
+ * into tuples up front. Pages read through the BufferPool's frame arena keep
+ * their on-disk image in a direct (off-heap) frame, decode tuples from it the
+ * first time they are accessed, and use it as their before-image.
+ * <p>
+ * When the BufferPool gives up such a page it detaches the frame: the bytes
+ * are copied to the Java heap so anyone still holding the page can keep
+ * reading it, and the direct buffer goes back to the arena for reuse.
+ *
+ * @Threadsafe
+ */
+public class PageFrame {
+    private volatile ByteBuffer buf;
+
+    /**
+     * @param buf the page bytes, starting at index 0; the buffer's position
+     *            and limit are ignored
+     */
+    public PageFrame(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Copy len bytes starting at offset out of the frame.
+     */
+    public byte[] read(int offset, int len) {
+        while (true) {
+            ByteBuffer b = buf;
+            byte[] out = new byte[len];
+            ByteBuffer view = b.duplicate();
+            view.position(offset);
+            view.get(out);
+            // if the frame was detached while we read, the direct buffer may
+            // already hold another page; read again from the heap copy
+            if (b == buf) {
+                return out;
+            }
+        }
+    }
+
+    /**
+     * @return a stream over len bytes starting at offset
+     */
+    public DataInputStream stream(int offset, int len) {
+        return new DataInputStream(new ByteArrayInputStream(read(offset, len)));
+    }
+
+    /**
+     * @return a copy of the whole frame
+     */
+    public byte[] copy() {
+        return read(0, buf.capacity());
+    }
+
+    /**
+     * Overwrite the frame with data, starting at index 0. Only the
+     * transaction holding the page exclusively may do this.
+     */
+    public void write(byte[] data) {
+        ByteBuffer view = buf.duplicate();
+        view.position(0);
+        view.put(data);
+    }
+
+    /**
+     * @return true if the bytes still live in an off-heap buffer
+     */
+    public boolean isOffHeap() {
+        return buf.isDirect();
+    }
+
+    /**
+     * Move the bytes to the heap and hand back the direct buffer they were in.
+     *
+     * @return the direct buffer, or null if the frame was not off-heap
+     */
+    ByteBuffer detach() {
+        ByteBuffer b = buf;
+        if (!b.isDirect()) {
+            return null;
+        }
+        byte[] copy = new byte[b.capacity()];
+        ByteBuffer view = b.duplicate();
+        view.position(0);
+        view.get(copy);
+        buf = ByteBuffer.wrap(copy);
+        return b;
+    }
+}
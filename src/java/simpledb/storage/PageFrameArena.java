@@ -0,0 +1,61 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A fixed set of page-sized direct ByteBuffers the BufferPool reads pages
+ * into. The memory is allocated once, in slabs, outside the Java heap, so a
+ * large pool does not add to GC work.
+ *
+ * @Threadsafe
+ */
+class PageFrameArena {
+    /** Frames carved out of each direct allocation. */
+    private static final int FRAMES_PER_SLAB = 1024;
+
+    private final int pageSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+    /**
+     * @param numFrames number of frames to allocate
+     * @param pageSize size of each frame in bytes
+     */
+    PageFrameArena(int numFrames, int pageSize) {
+        this.pageSize = pageSize;
+        this.free = new ConcurrentLinkedQueue<>();
+        for (int allocated = 0; allocated < numFrames; allocated += FRAMES_PER_SLAB) {
+            int frames = Math.min(FRAMES_PER_SLAB, numFrames - allocated);
+            ByteBuffer slab = ByteBuffer.allocateDirect(frames * pageSize);
+            for (int i = 0; i < frames; i++) {
+                slab.limit((i + 1) * pageSize);
+                slab.position(i * pageSize);
+                free.add(slab.slice());
+            }
+        }
+    }
+
+    /**
+     * @return a free frame, or null if all frames are in use or pages are no
+     *         longer the size this arena was built for
+     */
+    ByteBuffer acquire() {
+        if (pageSize != BufferPool.getPageSize()) {
+            return null;
+        }
+        ByteBuffer frame = free.poll();
+        if (frame != null) {
+            frame.clear();
+        }
+        return frame;
+    }
+
+    /**
+     * Give a frame back. Its contents are left as they are.
+     */
+    void release(ByteBuffer frame) {
+        if (frame.capacity() == pageSize) {
+            free.add(frame);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Positional page I/O on one file, in one of the IoModes. DbFiles delegate
+ * their page reads and writes here so that the mode can be switched per
+ * table.
+ * <p>
+ * In CHANNEL and MMAP mode the channel is opened on first use and stays open
+ * until close() or a mode change; using the file again after close() simply
+ * reopens it. In MMAP mode the mapping covers the file as it was when the
+ * mapping was made and is redone when a read goes past its end, e.g. after
+ * pages were appended. Files of 2GB or more are read through the channel.
+ * <p>
+ * A read past the end of the file throws, except in RANDOM_ACCESS mode on a
+ * PageIo made to zero-fill short reads: there the bytes past the end read as
+ * zeros, as RandomAccessFile.read left them for HeapFile.
+ *
+ * @Threadsafe
+ */
+public class PageIo {
+    private final File file;
+    private volatile IoMode mode;
+    private FileChannel channel; // guarded by this
+    private volatile MappedByteBuffer map;
+    private final boolean zeroFillShortReads;
+
+    /**
+     * @param file the file to read and write; starts in RANDOM_ACCESS mode
+     */
+    public PageIo(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file the file to read and write; starts in RANDOM_ACCESS mode
+     * @param zeroFillShortReads whether a RANDOM_ACCESS read past the end of
+     *        the file fills the rest of its buffers with zeros, rather than
+     *        throwing
+     */
+    public PageIo(File file, boolean zeroFillShortReads) {
+        this.file = file;
+        this.mode = IoMode.RANDOM_ACCESS;
+        this.zeroFillShortReads = zeroFillShortReads;
+    }
+
+    public IoMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Switch to another mode, closing the channel of the current one.
+     */
+    public synchronized void setMode(IoMode mode) throws IOException {
+        if (mode != this.mode) {
+            close();
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Fill dst, from its position to its limit, with the bytes of the file
+     * starting at offset. dst's position is left where it was.
+     *
+     * @throws IllegalArgumentException if the file ends before dst is full,
+     *         unless the mode and this PageIo zero-fill short reads
+     */
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        ByteBuffer view = dst.duplicate();
+        switch (mode) {
+        case MMAP:
+            MappedByteBuffer m = mapping(offset + view.remaining());
+            if (m != null) {
+                ByteBuffer src = m.duplicate();
+                src.limit((int) offset + view.remaining());
+                src.position((int) offset);
+                view.put(src);
+                return;
+            }
+            readFully(channel(), offset, view, false);
+            return;
+        case CHANNEL:
+            readFully(channel(), offset, view, false);
+            return;
+        case RANDOM_ACCESS:
+        default:
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                readFully(raf.getChannel(), offset, view, zeroFillShortReads);
+            }
+        }
+    }
+
+    /**
+     * Read data.length bytes of the file starting at offset into data.
+     *
+     * @throws IllegalArgumentException if the file ends before data is full,
+     *         unless the mode and this PageIo zero-fill short reads
+     */
+    public void read(long offset, byte[] data) throws IOException {
+        read(offset, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Fill each of dsts in turn, from its position to its limit, with the
+     * bytes of the file starting at offset, in a single scattering read where
+     * the mode allows. The positions of dsts are left where they were.
+     *
+     * @throws IllegalArgumentException if the file ends before dsts are full,
+     *         unless the mode and this PageIo zero-fill short reads
+     */
+    public void read(long offset, ByteBuffer[] dsts) throws IOException {
+        ByteBuffer[] views = new ByteBuffer[dsts.length];
+        long total = 0;
+        for (int i = 0; i < dsts.length; i++) {
+            views[i] = dsts[i].duplicate();
+            total += views[i].remaining();
+        }
+        switch (mode) {
+        case MMAP:
+            if (mapping(offset + total) != null) {
+                long pos = offset;
+                for (ByteBuffer dst : dsts) {
+                    read(pos, dst);
+                    pos += dst.remaining();
+                }
+                return;
+            }
+            scatterChannel(offset, views, total);
+            return;
+        case CHANNEL:
+            scatterChannel(offset, views, total);
+            return;
+        case RANDOM_ACCESS:
+        default:
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                scatter(raf.getChannel(), offset, views, total, zeroFillShortReads);
+            }
+        }
+    }
+
+    /**
+     * Write data to the file starting at offset, extending the file if needed.
+     */
+    public void write(long offset, byte[] data) throws IOException {
+        switch (mode) {
+        case MMAP:
+            MappedByteBuffer m = map;
+            if (m != null && offset + data.length <= m.capacity()) {
+                ByteBuffer dst = m.duplicate();
+                dst.position((int) offset);
+                dst.put(data);
+                return;
+            }
+            writeFully(channel(), offset, ByteBuffer.wrap(data));
+            return;
+        case CHANNEL:
+            writeFully(channel(), offset, ByteBuffer.wrap(data));
+            return;
+        case RANDOM_ACCESS:
+        default:
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(offset);
+                raf.write(data);
+            }
+        }
+    }
+
+    /**
+     * Write each of data in turn to the file starting at offset, in a single
+     * gathering write where the mode allows, extending the file if needed.
+     */
+    public void write(long offset, byte[][] data) throws IOException {
+        ByteBuffer[] srcs = new ByteBuffer[data.length];
+        long total = 0;
+        for (int i = 0; i < data.length; i++) {
+            srcs[i] = ByteBuffer.wrap(data[i]);
+            total += data[i].length;
+        }
+        switch (mode) {
+        case MMAP:
+            MappedByteBuffer m = map;
+            if (m != null && offset + total <= m.capacity()) {
+                ByteBuffer dst = m.duplicate();
+                dst.position((int) offset);
+                for (ByteBuffer src : srcs) {
+                    dst.put(src);
+                }
+                return;
+            }
+            gatherChannel(offset, srcs, total);
+            return;
+        case CHANNEL:
+            gatherChannel(offset, srcs, total);
+            return;
+        case RANDOM_ACCESS:
+        default:
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                gather(raf.getChannel(), offset, srcs, total);
+            }
+        }
+    }
+
+    /**
+     * Close the channel and drop the mapping, if any.
+     */
+    public synchronized void close() throws IOException {
+        map = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    /*
+     * Scattering reads and gathering writes use the channel's position, which
+     * positional reads and writes neither use nor move; holding the lock keeps
+     * other scatters and gathers from moving it in between.
+     */
+    private synchronized void scatterChannel(long offset, ByteBuffer[] dsts, long total) throws IOException {
+        scatter(channel(), offset, dsts, total, false);
+    }
+
+    private synchronized void gatherChannel(long offset, ByteBuffer[] srcs, long total) throws IOException {
+        gather(channel(), offset, srcs, total);
+    }
+
+    /**
+     * @return a mapping covering at least the first end bytes of the file, or
+     *         null if the file is shorter than that or too large to map
+     */
+    private MappedByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer m = map;
+        if (m != null && end <= m.capacity()) {
+            return m;
+        }
+        synchronized (this) {
+            m = map;
+            if (m != null && end <= m.capacity()) {
+                return m;
+            }
+            long size = channel().size();
+            if (end > size || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            m = channel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map = m;
+            return m;
+        }
+    }
+
+    private static void readFully(FileChannel ch, long offset, ByteBuffer dst, boolean zeroFill) throws IOException {
+        long pos = offset;
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, pos);
+            if (n < 0) {
+                pastEnd(new ByteBuffer[]{dst}, zeroFill);
+                return;
+            }
+            pos += n;
+        }
+    }
+
+    private static void scatter(FileChannel ch, long offset, ByteBuffer[] dsts, long total, boolean zeroFill)
+            throws IOException {
+        ch.position(offset);
+        while (total > 0) {
+            long n = ch.read(dsts);
+            if (n < 0) {
+                pastEnd(dsts, zeroFill);
+                return;
+            }
+            total -= n;
+        }
+    }
+
+    /**
+     * Handle a read that reached the end of the file before dsts were full:
+     * zero what is left of them if zeroFill, else throw.
+     */
+    private static void pastEnd(ByteBuffer[] dsts, boolean zeroFill) {
+        if (!zeroFill) {
+            throw new IllegalArgumentException("Read past end of table");
+        }
+        // the buffers may be recycled frames, so their old bytes must go
+        for (ByteBuffer dst : dsts) {
+            while (dst.hasRemaining()) {
+                dst.put((byte) 0);
+            }
+        }
+    }
+
+    private static void gather(FileChannel ch, long offset, ByteBuffer[] srcs, long total) throws IOException {
+        ch.position(offset);
+        while (total > 0) {
+            total -= ch.write(srcs);
+        }
+    }
+
+    private static void writeFully(FileChannel ch, long offset, ByteBuffer src) throws IOException {
+        long pos = offset;
+        while (src.hasRemaining()) {
+            pos += ch.write(src, pos);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * PageReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame. The BufferPool tells the policy about every hit,
+ * every page it brings in and every page it drops for other reasons, and asks
+ * it for a victim when the pool is full.
+ * <p>
+ * Every operation is expected to run in O(1) (amortized over pages that
+ * cannot currently be evicted). Implementations are not thread-safe; the
+ * BufferPool serializes all calls to a given policy instance.
+ *
+ * @see BufferPool
+ */
+public interface PageReplacementPolicy {
+
+    /** The replacement policies a BufferPool can be constructed with. */
+    enum Kind {
+        LRU, CLOCK, TWO_QUEUE;
+
+        /**
+         * @param capacity the number of pages the owning pool can hold
+         * @return a new, empty policy of this kind
+         */
+        public PageReplacementPolicy create(int capacity) {
+            switch (this) {
+            case CLOCK:
+                return new ClockReplacementPolicy(capacity);
+            case TWO_QUEUE:
+                return new TwoQueueReplacementPolicy(capacity);
+            case LRU:
+            default:
+                return new LruReplacementPolicy();
+            }
+        }
+    }
+
+    /**
+     * Record an access to a page that is already resident (a cache hit).
+     */
+    void pageHit(PageId pid);
+
+    /**
+     * Record that a page has just been brought into the pool (a cache miss).
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Forget a page that left the pool without being chosen as a victim,
+     * e.g. through BufferPool.discardPage().
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a victim among the resident pages, forget it and return it.
+     *
+     * @param canEvict tells whether a candidate may be evicted right now
+     *                 (dirty pages may not be under NO STEAL)
+     * @return the victim, or null if no resident page can be evicted
+     */
+    PageId evict(Predicate<PageId> canEvict);
+
+    /**
+     * @return the number of pages this policy is currently tracking
+     */
+    int size();
+
+    /**
+     * @return the hit/miss/eviction counters of this policy
+     */
+    BufferPoolStats getStats();
+}
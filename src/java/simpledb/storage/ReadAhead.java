@@ -0,0 +1,74 @@
+package simpledb.storage;
+
+/**
+ * Spots sequential access in the page reads of one scan and decides which
+ * pages to prefetch. Once the scan reads consecutive pages, the window of
+ * pages requested ahead of it starts at INITIAL_WINDOW pages and doubles
+ * every time the scan comes within half a window of the end of what was
+ * requested, up to the limit the BufferPool allows. A jump anywhere else
+ * resets the window, so random access never prefetches.
+ * <p>
+ * Not thread-safe; each scan owns its own instance.
+ *
+ * @see BufferPool#prefetchPages
+ */
+class ReadAhead {
+    static final int INITIAL_WINDOW = 4;
+    private static final int[] NONE = new int[0];
+
+    private final int maxWindow;
+    private int last;
+    private int window;
+    /** Pages before this one have been requested already. */
+    private int requestedUpTo;
+
+    /**
+     * @param maxWindow the largest number of pages to prefetch at once;
+     *                  0 disables read-ahead
+     */
+    ReadAhead(int maxWindow) {
+        this.maxWindow = maxWindow;
+        // a scan that starts at the beginning of the file is sequential
+        this.last = -1;
+        this.window = 0;
+        this.requestedUpTo = 0;
+    }
+
+    /**
+     * Record that the scan is about to read page pgNo.
+     *
+     * @param pgNo the page being read
+     * @param numPages the number of pages in the file
+     * @return the numbers of the pages to prefetch now, possibly none
+     */
+    int[] access(int pgNo, int numPages) {
+        if (maxWindow <= 0) {
+            return NONE;
+        }
+        boolean sequential = pgNo == last + 1;
+        last = pgNo;
+        if (!sequential) {
+            window = 0;
+            requestedUpTo = pgNo + 1;
+            return NONE;
+        }
+        if (window == 0) {
+            window = Math.min(INITIAL_WINDOW, maxWindow);
+        } else if (requestedUpTo - pgNo > window / 2) {
+            return NONE;
+        } else {
+            window = Math.min(window * 2, maxWindow);
+        }
+        int from = Math.max(requestedUpTo, pgNo + 1);
+        int to = Math.min(numPages, pgNo + 1 + window);
+        if (from >= to) {
+            return NONE;
+        }
+        requestedUpTo = to;
+        int[] pages = new int[to - from];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = from + i;
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha, VLDB '94), a scan-resistant policy.
+ * <p>
+ * Pages seen for the first time enter a small FIFO queue (A1in). Pages evicted
+ * from A1in are remembered, without their data, in a ghost queue (A1out). A
+ * page that misses again while its id is still in A1out has proven to be
+ * re-referenced and goes to the main LRU queue (Am). A sequential scan
+ * therefore only churns A1in and leaves the hot pages in Am alone.
+ */
+public class TwoQueueReplacementPolicy implements PageReplacementPolicy {
+    private final int maxIn;
+    private final int maxOut;
+    private final LinkedHashMap<PageId, PageId> in;
+    private final LinkedHashMap<PageId, PageId> out;
+    private final LinkedHashMap<PageId, PageId> main;
+    private final BufferPoolStats stats = new BufferPoolStats();
+
+    /**
+     * @param capacity the number of pages the owning pool can hold; A1in is
+     *                 sized to a quarter of it and A1out to half of it
+     */
+    public TwoQueueReplacementPolicy(int capacity) {
+        this.maxIn = Math.max(1, capacity / 4);
+        this.maxOut = Math.max(1, capacity / 2);
+        this.in = new LinkedHashMap<>();
+        this.out = new LinkedHashMap<>();
+        this.main = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public void pageHit(PageId pid) {
+        stats.recordHit();
+        // hits in A1in are deliberately ignored; correlated references
+        // right after a page is loaded should not promote it
+        main.get(pid);
+    }
+
+    public void pageAdded(PageId pid) {
+        stats.recordMiss();
+        if (in.containsKey(pid) || main.containsKey(pid)) {
+            return;
+        }
+        if (out.remove(pid) != null) {
+            main.put(pid, pid);
+        } else {
+            in.put(pid, pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (in.remove(pid) == null) {
+            main.remove(pid);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> canEvict) {
+        PageId victim;
+        if (in.size() > maxIn || main.isEmpty()) {
+            victim = evictFromIn(canEvict);
+            if (victim == null) {
+                victim = evictFrom(main, canEvict);
+            }
+        } else {
+            victim = evictFrom(main, canEvict);
+            if (victim == null) {
+                victim = evictFromIn(canEvict);
+            }
+        }
+        if (victim != null) {
+            stats.recordEviction();
+        }
+        return victim;
+    }
+
+    private PageId evictFromIn(Predicate<PageId> canEvict) {
+        PageId victim = evictFrom(in, canEvict);
+        if (victim != null) {
+            out.put(victim, victim);
+            if (out.size() > maxOut) {
+                Iterator<PageId> oldest = out.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return victim;
+    }
+
+    private static PageId evictFrom(LinkedHashMap<PageId, PageId> queue, Predicate<PageId> canEvict) {
+        Iterator<PageId> iter = queue.keySet().iterator();
+        while (iter.hasNext()) {
+            PageId pid = iter.next();
+            if (canEvict.test(pid)) {
+                iter.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return in.size() + main.size();
+    }
+
+    public BufferPoolStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb.transaction;
+
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Breaks deadlocks among the transactions waiting in a LockManager, in the
+ * background, so that a request that has to wait does no more than record
+ * what it waits for.
+ * <p>
+ * While any request waits, the detector wakes up every few milliseconds,
+ * snapshots the wait-for graph (each waiting transaction waits for the
+ * holders and the queued requests ahead of it that it conflicts with) and
+ * looks for cycles. In each cycle it
+ * aborts the youngest transaction, the one that has done the least work:
+ * the victim is marked and its waiting request woken, so that the request
+ * throws TransactionAbortedException.
+ * <p>
+ * The graph is read without stopping anybody, so before aborting, the
+ * detector checks that every member of the cycle is still in the very wait
+ * it was in when the snapshot was taken. A transaction that waits holds on
+ * to its locks and its place in the queue, so the cycle was real at that
+ * point.
+ *
+ * @Threadsafe
+ */
+class DeadlockDetector implements Runnable {
+    /** How often to look for cycles while some request waits, in milliseconds. */
+    static final long DEFAULT_INTERVAL = 5;
+
+    private final LockManager lockManager;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long interval = DEFAULT_INTERVAL;
+
+    DeadlockDetector(LockManager lockManager) {
+        this.lockManager = lockManager;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "LockManager-deadlock-detector");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        this.timer.allowCoreThreadTimeOut(true);
+    }
+
+    void setInterval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("interval must be positive, got " + millis);
+        }
+        this.interval = millis;
+    }
+
+    /** Make sure a detection runs soon. Called by every request that starts waiting. */
+    void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            timer.schedule(this, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void run() {
+        // a request that starts waiting from now on schedules the next run
+        scheduled.set(false);
+        try {
+            detect();
+        } finally {
+            if (!lockManager.waitingFor.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /** Find the cycles in the current wait-for graph and abort one transaction in each. */
+    void detect() {
+        Map<TransactionId, LockManager.Wait> waits = new HashMap<>(lockManager.waitingFor);
+        if (waits.size() < 2) {
+            return;
+        }
+        Map<TransactionId, List<TransactionId>> graph = new HashMap<>();
+        for (Map.Entry<TransactionId, LockManager.Wait> e : waits.entrySet()) {
+            List<TransactionId> blockers = new ArrayList<>();
+            for (TransactionId blocker : lockManager.blockers(e.getKey(), e.getValue())) {
+                // only a waiting transaction can be part of a cycle
+                if (waits.containsKey(blocker)) {
+                    blockers.add(blocker);
+                }
+            }
+            graph.put(e.getKey(), blockers);
+        }
+
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = cycle.get(0);
+            long lastWait = Long.MIN_VALUE;
+            boolean current = true;
+            for (TransactionId tid : cycle) {
+                if (victim.isOlderThan(tid)) {
+                    victim = tid;
+                }
+                LockManager.Wait w = waits.get(tid);
+                lastWait = Math.max(lastWait, w.since);
+                current &= lockManager.waitingFor.get(tid) == w;
+            }
+            if (current && lockManager.abort(victim, waits.get(victim))) {
+                lockManager.stats.recordDeadlock(System.nanoTime() - lastWait);
+            }
+            // whether aborted or gone already, the victim no longer closes any cycle
+            graph.remove(victim);
+        }
+    }
+
+    /** @return the transactions on some cycle in graph, or null if there is none */
+    private static List<TransactionId> findCycle(Map<TransactionId, List<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) {
+                continue;
+            }
+            // iterative depth-first search; path holds the transactions on the stack
+            List<TransactionId> path = new ArrayList<>();
+            Deque<Iterator<TransactionId>> stack = new ArrayDeque<>();
+            Set<TransactionId> onPath = new HashSet<>();
+            path.add(start);
+            onPath.add(start);
+            stack.push(graph.get(start).iterator());
+            while (!stack.isEmpty()) {
+                Iterator<TransactionId> next = stack.peek();
+                if (!next.hasNext()) {
+                    stack.pop();
+                    TransactionId finished = path.remove(path.size() - 1);
+                    onPath.remove(finished);
+                    done.add(finished);
+                    continue;
+                }
+                TransactionId tid = next.next();
+                if (onPath.contains(tid)) {
+                    return new ArrayList<>(path.subList(path.indexOf(tid), path.size()));
+                }
+                if (done.contains(tid) || !graph.containsKey(tid)) {
+                    continue;
+                }
+                path.add(tid);
+                onPath.add(tid);
+                stack.push(graph.get(tid).iterator());
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,32 @@
+package simpledb.transaction;
+
+/**
+ * How a LockManager keeps transactions waiting for each other's locks from
+ * waiting forever.
+ */
+public enum DeadlockPolicy {
+    /**
+     * Let any request wait, and have a DeadlockDetector look for cycles in
+     * the wait-for graph in the background, aborting the youngest
+     * transaction of each.
+     */
+    DETECT,
+
+    /**
+     * A transaction may only wait for younger transactions: a request that
+     * conflicts with a lock held by an older transaction aborts ("dies")
+     * instead of waiting. Age is as in {@link TransactionId#isOlderThan}, so
+     * a transaction retried with {@link TransactionId#TransactionId(TransactionId)}
+     * keeps its age and does not die forever.
+     */
+    WAIT_DIE,
+
+    /**
+     * A transaction may only wait for older transactions: a request that
+     * conflicts with a lock held by a younger transaction aborts that
+     * transaction ("wounds" it) and waits for its locks. A wounded
+     * transaction that is not waiting is aborted at its next lock request,
+     * and may still commit if it makes none.
+     */
+    WOUND_WAIT
+}
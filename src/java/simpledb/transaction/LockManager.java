@@ -2,201 +2,436 @@ package simpledb.transaction;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import simpledb.common.Permissions;
+import java.util.concurrent.atomic.AtomicBoolean;
 import simpledb.storage.PageId;
 
 public class LockManager {
-  // Essentially, LockManager tracks which locks each transactions holds and checks if locks should be granted to a transaction
-
-  // Map to store locks associated with each page
+  // Essentially, LockManager tracks which locks each transactions holds and checks if locks should be granted to a transaction.
+  // An uncontended request is granted with one CAS on the page's lock word (see ReadWriteLock); a request that has to
+  // wait records what it waits for in waitingFor. Under DeadlockPolicy.DETECT the DeadlockDetector looks for cycles in
+  // the background; under WAIT_DIE and WOUND_WAIT a waiting request compares its age with that of its blockers instead.
+  // A waiting request is blocked by the holders it conflicts with, and by the conflicting requests queued ahead of it.
+  // Locking is multi-granular: before locking a page, a transaction takes an intention lock (IS or IX) on the page's
+  // table. Once it holds page locks on more than escalationThreshold pages of a table, it tries to swap them for one
+  // lock on the whole table, S if it only reads the table and X otherwise, so that a big scan holds one lock instead of
+  // thousands. Escalation never waits; if another transaction holds a conflicting lock on the table, the transaction
+  // keeps its page locks and tries again after as many pages more.
+  // Page locks are dropped from pageLockManager once idle: whenever the map has doubled since the last sweep, it is
+  // swept, and each lock nobody holds or waits for is retired and removed. A request that finds its lock retired
+  // looks the page up again, creating a fresh lock.
+
+  // How often a waiting request compares itself with its blockers again under WAIT_DIE and WOUND_WAIT, in milliseconds:
+  // a wounded transaction notices within this time, and so does a request that missed a holder still being recorded
+  static final long PREVENTION_RECHECK = 2;
+
+  // How many page locks a transaction may hold on one table before they are escalated to a table lock
+  public static final int DEFAULT_ESCALATION_THRESHOLD = 1024;
+
+  // pageLockManager is not swept while smaller than this
+  static final int MIN_SWEEP_SIZE = 1024;
+
+  // Map to store locks associated with each page; read without locking
   Map<PageId, ReadWriteLock> pageLockManager;
 
-  // Dependency graph to track dependencies between transactions to detect deadlocks
-  Map<TransactionId, Set<TransactionId>> dependencyGraph;
+  // Sweep pageLockManager once it grows past this many locks; only one thread sweeps at a time
+  private volatile int sweepAt = MIN_SWEEP_SIZE;
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+
+  // What each waiting transaction waits for
+  final Map<TransactionId, Wait> waitingFor;
+
+  // Map to keep track of pages held by each transaction, and whether exclusively. A transaction records a page after the
+  // lock is granted and forgets it before releasing the lock, so a holder found here may hold the lock, but never waits for it
+  Map<TransactionId, Map<PageId, Boolean>> pagesHeldByTransactionId;
+
+  // Map to store locks associated with each table, by table id
+  private final Map<Integer, TableLock> tableLocks;
+
+  // The table locks held by each transaction, by table id. A transaction holding a table in mode X keeps recording the
+  // pages it writes there, so that BufferPool knows which pages to flush or discard, but holds no lock on them
+  private final Map<TransactionId, Map<Integer, TableHeld>> tablesHeldByTransactionId;
+
+  // Transactions chosen to break a deadlock. Every request of a victim fails until it releases its locks, so that a
+  // caller that swallows the exception cannot carry on with the transaction
+  private final Set<TransactionId> victims;
+
+  final LockStats stats;
+  private final DeadlockDetector detector;
+  private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+
+  // How long a request may wait before its transaction aborts, in milliseconds; 0 to wait as long as it takes
+  private volatile long timeout = 0;
+
+  private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
 
-  // Map to keep track of pages held by each transaction
-  Map<TransactionId, Set<PageId>> pagesHeldByTransactionId;
+  // The mode a transaction holds a table in, and how many page locks it holds there; changed only by the transaction
+  static final class TableHeld {
+    volatile TableLock.Mode mode;
+    int pages;
+  }
+
+  // One wait for a lock, from the moment the request found it could not be granted until it was granted or gave up;
+  // either for a page lock (pid, lock, exclusive, upgrade) or for a table lock (table, mode)
+  static final class Wait {
+    final PageId pid;
+    final ReadWriteLock lock;
+    final boolean exclusive;
+    final boolean upgrade;
+    final TableLock table;
+    final TableLock.Mode mode;
+    final long since;
+
+    Wait(PageId pid, ReadWriteLock lock, boolean exclusive, boolean upgrade) {
+      this(pid, lock, exclusive, upgrade, null, null);
+    }
+
+    Wait(TableLock table, TableLock.Mode mode) {
+      this(null, null, false, false, table, mode);
+    }
+
+    private Wait(PageId pid, ReadWriteLock lock, boolean exclusive, boolean upgrade, TableLock table,
+                 TableLock.Mode mode) {
+      this.pid = pid;
+      this.lock = lock;
+      this.exclusive = exclusive;
+      this.upgrade = upgrade;
+      this.table = table;
+      this.mode = mode;
+      this.since = System.nanoTime();
+    }
+
+    // Make the waiting request check again whether it is blocked
+    void wake() {
+      if (table != null) table.wake();
+      else lock.wake();
+    }
+  }
 
   public LockManager() {
-    // Initialize the data structures to store locks, dependencies and pages held by each transaction
+    // Initialize the data structures to store locks, waiting transactions and pages held by each transaction
       pageLockManager = new ConcurrentHashMap<>();
-      dependencyGraph = new ConcurrentHashMap<>();
+      waitingFor = new ConcurrentHashMap<>();
       pagesHeldByTransactionId = new ConcurrentHashMap<>();
+      tableLocks = new ConcurrentHashMap<>();
+      tablesHeldByTransactionId = new ConcurrentHashMap<>();
+      victims = ConcurrentHashMap.newKeySet();
+      stats = new LockStats();
+      detector = new DeadlockDetector(this);
   }
 
   public void obtainReadLock(TransactionId tid, PageId pid)
   throws TransactionAbortedException {
 
-    ReadWriteLock lock;
-
-    // Check if the transaction already holds the lock
-    synchronized (this) {
+    checkVictim(tid);
+    Map<PageId, Boolean> held = obtainOrCreatePagesHeld(tid);
 
-      // Obtaining lock associated with page id (or creating it)
-      lock = obtainOrCreateLock(pid);
+    // If the transaction already holds the lock, shared or exclusive, return and exit function
+    if (held.containsKey(pid)) return;
 
-      // If the transaction already holds the lock, return and exit function
-      if (lock.isHolder(tid)) return;
+    // Intention first; a lock on the whole table that lets us read it makes the page lock unnecessary
+    TableHeld table = obtainTableLock(tid, pid.getTableId(), TableLock.Mode.IS);
+    if (table.mode.covers(TableLock.Mode.S)) return;
 
-      // If the lock is held by another transaction and is exclusive, there could be potential deadlock situation and need to account for that
-      if (!lock.getHolders().isEmpty() && lock.isExclusive()) {
+    // Obtaining lock associated with page id (or creating it). Fast path: one CAS; otherwise queue up, and if the lock
+    // has been retired meanwhile, start over with a fresh one
+    while (true) {
+      ReadWriteLock lock = obtainOrCreateLock(pid);
+      if (lock.tryReadLock() || await(tid, new Wait(pid, lock, false, false))) break;
+      pageLockManager.remove(pid, lock);
+    }
+    held.put(pid, false);
+    countPage(tid, pid.getTableId(), table, held);
+  }
 
-        // Add the transaction to the dependency graph
-        dependencyGraph.put(tid, lock.getHolders());
+  public void obtainWriteLock(TransactionId tid, PageId pid)
+  throws TransactionAbortedException {
 
-        // If deadlock exists
-        if (isDeadLock(tid)) {
+    checkVictim(tid);
+    Map<PageId, Boolean> held = obtainOrCreatePagesHeld(tid);
+    Boolean exclusive = held.get(pid);
 
-          // Remove the transaction from the dependency graph and abort
-          dependencyGraph.remove(tid);
-          throw new TransactionAbortedException();
-        }
-      }
-    }    
+    // If the current transaction id already holds an exclusive lock, return and exit function
+    if (exclusive != null && exclusive) return;
 
-    // Acquire the read lock on the page for given transaction
-    lock.readLock(tid);
+    // Intention first; with the whole table locked exclusively, the page is only recorded
+    TableHeld table = obtainTableLock(tid, pid.getTableId(), TableLock.Mode.IX);
+    if (table.mode == TableLock.Mode.X) {
+      held.put(pid, true);
+      return;
+    }
 
-    synchronized (this) {
-      // Remove the transaction from the dependency graph and add page to set of pages held by transaction
-      dependencyGraph.remove(tid);
-      obtainOrCreatePagesHeld(tid).add(pid);
+    // Obtaining lock associated with page id (or creating it), as above. A shared lock we hold is upgraded in place; as
+    // we hold it, it cannot be retired
+    boolean upgrade = exclusive != null;
+    while (true) {
+      ReadWriteLock lock = obtainOrCreateLock(pid);
+      if ((upgrade ? lock.tryUpgrade() : lock.tryWriteLock()) || await(tid, new Wait(pid, lock, true, upgrade))) break;
+      pageLockManager.remove(pid, lock);
     }
+    held.put(pid, true);
+    if (!upgrade) countPage(tid, pid.getTableId(), table, held);
   }
 
-  public void obtainWriteLock(TransactionId tid, PageId pid)
+  // Lock the whole table shared, so that tid reads it without page locks and nobody else changes it until tid completes
+  public void obtainTableReadLock(TransactionId tid, int tableId)
   throws TransactionAbortedException {
-    
-    ReadWriteLock lock;
-
-    synchronized (this) {
-
-      // Obtaining lock associated with page id (or creating it)
-      lock = obtainOrCreateLock(pid);
-
-      // If the current transaction id already holds an exclusive lock, return and exit function
-      if (lock.isExclusive() && lock.isHolder(tid))
-          return;
+    checkVictim(tid);
+    // Recorded like a page holder, so that the table lock is released even if tid locks no page
+    obtainOrCreatePagesHeld(tid);
+    obtainTableLock(tid, tableId, TableLock.Mode.S);
+  }
 
-      // If the lock is held by another transaction, check for potential deadlock
-      if (!lock.getHolders().isEmpty()){
+  // Make sure tid holds the table in mode, or a mode covering it, waiting if need be
+  private TableHeld obtainTableLock(TransactionId tid, int tableId, TableLock.Mode mode)
+  throws TransactionAbortedException {
+    Map<Integer, TableHeld> tables = tablesHeldByTransactionId.get(tid);
+    if (tables == null) tables = tablesHeldByTransactionId.computeIfAbsent(tid, t -> new ConcurrentHashMap<>());
+    TableHeld table = tables.get(tableId);
+    if (table != null && table.mode.covers(mode)) return table;
+
+    TableLock lock = obtainOrCreateTableLock(tableId);
+    if (!lock.tryLock(tid, mode)) {
+      await(tid, new Wait(lock, mode));
+    }
+    if (table == null) {
+      table = new TableHeld();
+      table.mode = mode;
+      tables.put(tableId, table);
+    } else {
+      table.mode = table.mode.join(mode);
+    }
+    return table;
+  }
 
-        // Add the transaction to the dependency graph
-        dependencyGraph.put(tid, lock.getHolders());
+  // Count a page newly locked under table, and escalate to a table lock every escalationThreshold pages
+  private void countPage(TransactionId tid, int tableId, TableHeld table, Map<PageId, Boolean> held) {
+    if (++table.pages % escalationThreshold != 0) return;
+
+    // Only read so far: S covers it all. Otherwise X, which leaves nothing to lock on the table
+    TableLock.Mode mode = table.mode == TableLock.Mode.IS ? TableLock.Mode.S : TableLock.Mode.X;
+    if (!tableLocks.get(tableId).tryLock(tid, mode)) return;
+    table.mode = table.mode.join(mode);
+    stats.recordEscalation();
+
+    // The table lock covers the page locks now. Shared pages are forgotten; exclusive ones stay recorded, as they may
+    // be dirty, but lose their lock
+    for (Map.Entry<PageId, Boolean> e : held.entrySet()) {
+      PageId pid = e.getKey();
+      if (pid.getTableId() != tableId) continue;
+      boolean exclusive = e.getValue();
+      if (!exclusive) held.remove(pid);
+      pageLockManager.get(pid).unlock(exclusive);
+    }
+    table.pages = 0;
+  }
 
-        // Assert if tid is in dependencyGraph
+  // Wait for a lock that could not be granted right away, until it is granted, the transaction is chosen to break a
+  // deadlock, or the request times out; false if the page lock turned out to be retired
+  private boolean await(TransactionId tid, Wait w) throws TransactionAbortedException {
+    DeadlockPolicy policy = this.policy;
+    waitingFor.put(tid, w);
+    if (policy == DeadlockPolicy.DETECT) detector.schedule();
+    try {
+      long recheck = policy == DeadlockPolicy.DETECT ? 0 : PREVENTION_RECHECK;
+      ReadWriteLock.Blocked blocked = () -> {
+        checkVictim(tid);
+        if (policy != DeadlockPolicy.DETECT) prevent(policy, tid, w);
+      };
+      if (w.table == null) return w.lock.lock(w.exclusive, w.upgrade, tid, recheck, timeout, blocked);
+      w.table.lock(tid, w.mode, recheck, timeout, blocked);
+      return true;
+    } finally {
+      waitingFor.remove(tid);
+    }
+  }
 
-        // If deadlock exists
-        if (isDeadLock(tid)) {
-          // Remove the transaction from the dependency graph and abort
-          dependencyGraph.remove(tid);
-          throw new TransactionAbortedException();
-        }
+  // Compare tid, about to wait in w, with its blockers: under WAIT_DIE it dies if any of them is older, under
+  // WOUND_WAIT it wounds those that are younger. Either way it only ever waits in one direction of age, so no cycle can
+  // form
+  private void prevent(DeadlockPolicy policy, TransactionId tid, Wait w) throws TransactionAbortedException {
+    for (TransactionId blocker : blockers(tid, w)) {
+      boolean older = blocker.isOlderThan(tid);
+      if (policy == DeadlockPolicy.WAIT_DIE && older) {
+        stats.recordPreventionAbort();
+        throw new TransactionAbortedException();
       }
+      // The wounded transaction finds out at its next check; waking it here could take lock monitors out of order
+      if (policy == DeadlockPolicy.WOUND_WAIT && !older && victims.add(blocker))
+        stats.recordPreventionAbort();
     }
+  }
 
-    // Acquires a write lock on the page for the given transaction (tid)
-    lock.writeLock(tid);
+  private void checkVictim(TransactionId tid) throws TransactionAbortedException {
+    if (!victims.isEmpty() && victims.contains(tid)) throw new TransactionAbortedException();
+  }
 
-    synchronized (this) {
-      // Remove the transaction from the dependency graph and add page to set of pages held by transaction
-      dependencyGraph.remove(tid);
-      obtainOrCreatePagesHeld(tid).add(pid);
+  // Abort tid, which the DeadlockDetector found in a cycle while in wait w; false if tid has stopped waiting since, or
+  // was aborted already and has not got round to leaving the cycle
+  boolean abort(TransactionId tid, Wait w) {
+    if (!victims.add(tid)) return false;
+    if (waitingFor.get(tid) != w) {
+      // Granted or given up in the meantime, so the cycle is gone
+      victims.remove(tid);
+      return false;
     }
+    w.wake();
+    return true;
   }
 
+  public void releaseLock(TransactionId tid, PageId pid) {
 
-  public synchronized void releaseLock(TransactionId tid, PageId pid) {
+    // If the transaction holds no locks, there is nothing to release
+    Map<PageId, Boolean> held = pagesHeldByTransactionId.get(tid);
+    if (held == null) return;
 
-    // If page id is not present in the map, there is no locks associated with it and we return early
-    if (!pageLockManager.containsKey(pid)) return;
+    // Forget the page first, then release the lock, unless the table lock covers it
+    Boolean exclusive = held.remove(pid);
+    if (exclusive == null) return;
+    TableHeld table = tableHeld(tid, pid.getTableId());
+    if (table != null && table.mode == TableLock.Mode.X) return;
+    if (table != null) table.pages--;
+    pageLockManager.get(pid).unlock(exclusive);
+  }
 
-    // Retrieves the lock associated with the page id
-    ReadWriteLock lock = pageLockManager.get(pid);
+  public void releaseAllLocks(TransactionId tid) {
 
-    // Release the lock
-    lock.releaseLock(tid);
+    // Once its locks are gone, a victim has been rolled back
+    victims.remove(tid);
 
-    // Removes the specified page (pid) from the set of pages held by the transaction.
-    pagesHeldByTransactionId.get(tid).remove(pid);
-  }
+    // Page locks first, then the table locks they were taken under
+    Map<PageId, Boolean> held = pagesHeldByTransactionId.remove(tid);
+    Map<Integer, TableHeld> tables = tablesHeldByTransactionId.remove(tid);
 
-  public synchronized void releaseAllLocks(TransactionId tid) {
+    // For each page held by the transaction, release the lock, unless the table lock covers it
+    if (held != null) {
+      for (PageId pid : held.keySet()) {
+        Boolean exclusive = held.remove(pid);
+        if (exclusive == null) continue;
+        TableHeld table = tables == null ? null : tables.get(pid.getTableId());
+        if (table == null || table.mode != TableLock.Mode.X) pageLockManager.get(pid).unlock(exclusive);
+      }
+    }
+    if (tables != null) {
+      for (Integer tableId : tables.keySet()) tableLocks.get(tableId).unlock(tid);
+    }
+  }
 
-    // If the transaction id is not present in the map, there are no locks associated with it and we return early
-    if (!pagesHeldByTransactionId.containsKey(tid)) return;
+  private TableHeld tableHeld(TransactionId tid, int tableId) {
+    Map<Integer, TableHeld> tables = tablesHeldByTransactionId.get(tid);
+    return tables == null ? null : tables.get(tableId);
+  }
 
-    // Retrieves the set of pages held by the transaction
-    Set<PageId> pages = pagesHeldByTransactionId.get(tid);
+  private ReadWriteLock obtainOrCreateLock(PageId pid) {
+    // Look the lock up without locking; create it if the page has none yet
+    ReadWriteLock lock = pageLockManager.get(pid);
+    if (lock == null) {
+      lock = pageLockManager.computeIfAbsent(pid, p -> new ReadWriteLock());
+      if (pageLockManager.size() > sweepAt) sweep();
+    }
+    return lock;
+  }
 
-    // For each page in the set of pages held by the transaction, release the lock
-    for (Object pid : pages.toArray()) {
-      releaseLock(tid, (PageId) pid);
+  // Drop the idle page locks, so that the map stays within twice the number of locks in use
+  private void sweep() {
+    if (!sweeping.compareAndSet(false, true)) return;
+    try {
+      for (Map.Entry<PageId, ReadWriteLock> e : pageLockManager.entrySet()) {
+        if (e.getValue().retire()) pageLockManager.remove(e.getKey(), e.getValue());
+      }
+      sweepAt = Math.max(MIN_SWEEP_SIZE, 2 * pageLockManager.size());
+    } finally {
+      sweeping.set(false);
     }
+  }
 
-    // Removes the transaction id from the map
-    pagesHeldByTransactionId.remove(tid);
-  } 
+  private TableLock obtainOrCreateTableLock(int tableId) {
+    TableLock lock = tableLocks.get(tableId);
+    if (lock == null) lock = tableLocks.computeIfAbsent(tableId, t -> new TableLock());
+    return lock;
+  }
+
+  private Map<PageId, Boolean> obtainOrCreatePagesHeld(TransactionId tid) {
+    // If the transaction id is not present in the map, create a new map and add it; once per transaction
+    Map<PageId, Boolean> held = pagesHeldByTransactionId.get(tid);
+    if (held == null) held = pagesHeldByTransactionId.computeIfAbsent(tid, t -> new ConcurrentHashMap<>());
+    return held;
+  }
 
-  private synchronized ReadWriteLock obtainOrCreateLock(PageId pid) {
-    // If the page id is not present in the map, create a new lock and add it to the map
-    if (!pageLockManager.containsKey(pid)) {
-      pageLockManager.put(pid, new ReadWriteLock());
+  // The transactions tid waits for in w: those recorded as holding the page in a conflicting mode, and those whose
+  // conflicting requests are queued ahead of tid's
+  List<TransactionId> blockers(TransactionId tid, Wait w) {
+    Set<TransactionId> blockers = new LinkedHashSet<>();
+    if (w.table != null) {
+      for (Object blocker : w.table.blockers(tid, w.mode)) blockers.add((TransactionId) blocker);
+      blockers.remove(tid);
+      return new ArrayList<>(blockers);
+    }
+    for (Map.Entry<TransactionId, Map<PageId, Boolean>> e : pagesHeldByTransactionId.entrySet()) {
+      Boolean exclusive = e.getValue().get(w.pid);
+      if (exclusive != null && (w.exclusive || exclusive)) blockers.add(e.getKey());
+    }
+    for (Map.Entry<Object, Boolean> e : w.lock.waitersAhead(tid).entrySet()) {
+      if (w.exclusive || e.getValue()) blockers.add((TransactionId) e.getKey());
     }
+    blockers.remove(tid);
+    return new ArrayList<>(blockers);
+  }
 
-    // Return the lock associated with the page id
-    return pageLockManager.get(pid);
+  public boolean holdsLock(TransactionId tid, PageId pid) {
+    Map<PageId, Boolean> held = pagesHeldByTransactionId.get(tid);
+    if (held != null && held.containsKey(pid)) return true;
+    TableHeld table = tableHeld(tid, pid.getTableId());
+    return table != null && table.mode.covers(TableLock.Mode.S);
   }
 
+  // True if some transaction holds an exclusive lock on the page or its table, i.e. the copy on disk may hold
+  // uncommitted data
+  public boolean isWriteLocked(PageId pid) {
+    ReadWriteLock lock = pageLockManager.get(pid);
+    if (lock != null && lock.isExclusive()) return true;
+    TableLock table = tableLocks.get(pid.getTableId());
+    return table != null && table.isExclusive();
+  }
 
-  private synchronized Set<PageId> obtainOrCreatePagesHeld(TransactionId tid) {
-    // If the transaction id is not present in the map, create a new set and add it to the map
-    if (!pagesHeldByTransactionId.containsKey(tid)) {
-      pagesHeldByTransactionId.put(tid, new HashSet<PageId>());
-    }
+  // Requests that start waiting from now on follow the new policy
+  public void setDeadlockPolicy(DeadlockPolicy policy) {
+    this.policy = policy;
+  }
 
-    // Return the set of pages held by the transaction
-    return pagesHeldByTransactionId.get(tid);
+  public DeadlockPolicy getDeadlockPolicy() {
+    return policy;
   }
 
-  
-  private boolean isDeadLock(TransactionId tid) {
-    Set<TransactionId> visitedTransactions = new HashSet<>();
-    Queue<TransactionId> transactionQueue = new LinkedList<>();
-    visitedTransactions.add(tid);
-    transactionQueue.offer(tid);
-    
-    while (!transactionQueue.isEmpty()) {
-      TransactionId currentTransaction = transactionQueue.poll();
-        
-      if (!dependencyGraph.containsKey(currentTransaction)) 
-        continue;
-        
-      assert !dependencyGraph.get(currentTransaction).isEmpty();
-      for (TransactionId adjacentTransaction : dependencyGraph.get(currentTransaction)) {
-          if (adjacentTransaction.equals(currentTransaction)) 
-            continue;
+  // Requests that start waiting from now on give up, aborting their transaction, after millis; 0 for no limit
+  public void setLockTimeout(long millis) {
+    if (millis < 0) throw new IllegalArgumentException("timeout must not be negative, got " + millis);
+    this.timeout = millis;
+  }
 
-          if (!visitedTransactions.contains(adjacentTransaction)) {
-            visitedTransactions.add(adjacentTransaction);
-            transactionQueue.offer(adjacentTransaction);
-          } else {
-            // Deadlock detected!
-            return true;
-          }
-      }
-    }
-    return false;
+  // From now on, a transaction escalates to a table lock once it holds page locks on this many pages of the table
+  public void setEscalationThreshold(int pages) {
+    if (pages < 1) throw new IllegalArgumentException("threshold must be positive, got " + pages);
+    this.escalationThreshold = pages;
+  }
+
+  // How often the DeadlockDetector looks for cycles while some request waits
+  public void setDeadlockDetectionInterval(long millis) {
+    detector.setInterval(millis);
+  }
+
+  // The number of page locks in pageLockManager, in use or not swept yet
+  public int getNumPageLocks() {
+    return pageLockManager.size();
   }
 
-  public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-    if (!pagesHeldByTransactionId.containsKey(tid)) return false;
-    return pagesHeldByTransactionId.get(tid).contains(pid);
+  public LockStats getStats() {
+    return stats;
   }
 
   public Set<PageId> getPagesHeldBy(TransactionId tid) {
-    if (pagesHeldByTransactionId.containsKey(tid))
-      return pagesHeldByTransactionId.get(tid);
+    Map<PageId, Boolean> held = pagesHeldByTransactionId.get(tid);
+    if (held != null)
+      return held.keySet();
     return null;
   }
 }
@@ -0,0 +1,70 @@
+package simpledb.transaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the deadlocks the LockManager has broken, or prevented,
+ * and the page locks it has escalated to table locks.
+ *
+ * @Threadsafe
+ */
+public class LockStats {
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong detectionNanos = new AtomicLong();
+    private final AtomicLong maxDetectionNanos = new AtomicLong();
+    private final AtomicLong preventionAborts = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    /**
+     * @param latencyNanos how long the cycle existed before it was found:
+     *                     the time since its last member started waiting
+     */
+    void recordDeadlock(long latencyNanos) {
+        deadlocks.incrementAndGet();
+        detectionNanos.addAndGet(latencyNanos);
+        maxDetectionNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    /** Count a transaction that died, or was wounded, under WAIT_DIE or WOUND_WAIT. */
+    void recordPreventionAbort() {
+        preventionAborts.incrementAndGet();
+    }
+
+    /** Count a transaction's page locks on a table replaced by one table lock. */
+    void recordEscalation() {
+        escalations.incrementAndGet();
+    }
+
+    /** @return the number of wait-for cycles found, each broken by one abort */
+    public long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    /** @return the total time the deadlocks found existed before they were found */
+    public long getDetectionNanos() {
+        return detectionNanos.get();
+    }
+
+    /** @return the longest time a deadlock existed before it was found */
+    public long getMaxDetectionNanos() {
+        return maxDetectionNanos.get();
+    }
+
+    /** @return the number of transactions that died or were wounded to prevent a deadlock */
+    public long getPreventionAborts() {
+        return preventionAborts.get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalations() {
+        return escalations.get();
+    }
+
+    @Override
+    public String toString() {
+        long n = getDeadlocks();
+        return String.format("deadlocks=%d mean detection=%.1fms max detection=%.1fms prevention aborts=%d escalations=%d",
+                n, n == 0 ? 0.0 : getDetectionNanos() / 1e6 / n, getMaxDetectionNanos() / 1e6, getPreventionAborts(),
+                getEscalations());
+    }
+}
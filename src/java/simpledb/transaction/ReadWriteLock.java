@@ -1,129 +1,262 @@
 package simpledb.transaction;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * The lock on one page, as a single lock word: the number of shared holders,
+ * a bit for an exclusive holder, and a bit saying some request is queued.
+ * <p>
+ * An uncontended grant or release is one CAS on the word. A request that
+ * cannot be granted sets the waiters bit, joins a FIFO queue and parks. While
+ * the bit is set the fast paths grant nothing, so a new request cannot
+ * overtake the queue, and every release takes this object's monitor to hand
+ * the lock on: the first request in the queue is granted as soon as it is
+ * compatible with the holders, together with the shared requests right
+ * behind it if it is shared, and only the threads granted are unparked. An
+ * upgrade, whose holder blocks everybody in the queue anyway, goes to the
+ * front of the queue.
+ * <p>
+ * The lock does not know who holds it; LockManager does. Queued requests
+ * carry an owner, so that LockManager can tell who waits behind whom.
+ * <p>
+ * An idle lock, with no holders and nobody queued, can be retired so that
+ * LockManager may drop it: a third bit is set with one CAS from an all-zero
+ * word, and from then on nothing is ever granted. A request that finds the
+ * lock retired fails, and the caller looks the page's lock up again.
+ */
 public class ReadWriteLock {
-    Set<TransactionId> holders;
-    Map<TransactionId, Boolean> requests;// requester, isExclusive
-    boolean exclusive;
-    private int numberOfReaders;
-    private int numberOfWriters;
-
-    public ReadWriteLock() {
-        this.holders = new HashSet<>();
-        this.requests = new HashMap<>();
-        this.exclusive = false;
-        this.numberOfReaders = 0;
-        this.numberOfWriters = 0;
+    static final long EXCLUSIVE = 1L << 62;
+    static final long WAITERS = 1L << 61;
+    static final long RETIRED = 1L << 60;
+    static final long READERS = RETIRED - 1;
 
+    /** A queued request. */
+    private static final class Waiter {
+        final boolean exclusive;
+        final boolean upgrade;
+        final Object owner;
+        final Thread thread = Thread.currentThread();
+        volatile boolean granted;
+
+        Waiter(boolean exclusive, boolean upgrade, Object owner) {
+            this.exclusive = exclusive;
+            this.upgrade = upgrade;
+            this.owner = owner;
+        }
     }
 
-    public void readLock(TransactionId tid) {
-        if (this.holders.contains(tid) && this.exclusive == false)
-            return;
-        this.requests.put(tid, false);
-        synchronized (this) {
-            try {
-                while (numberOfWriters != 0) {
-                    this.wait();
-                }
-                ++this.numberOfReaders;
-                this.holders.add(tid);
-                this.exclusive = false;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    private final AtomicLong state = new AtomicLong();
+    /** Requests not granted yet, in the order they will be. Guarded by this. */
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+    /** Grant a shared lock if nobody holds the lock exclusively or waits, and it is not retired. */
+    boolean tryReadLock() {
+        while (true) {
+            long s = state.get();
+            if ((s & (EXCLUSIVE | WAITERS | RETIRED)) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(s, s + 1)) {
+                return true;
             }
         }
-        this.requests.remove(tid);
     }
 
-    public void writeLock(TransactionId tid) {
-        if (this.holders.contains(tid) && this.exclusive)
-            return;
-        if (this.requests.containsKey(tid) && this.requests.get(tid))
-            return;
-        this.requests.put(tid, true);
-        synchronized (this) {
-            try {
-                if (this.holders.contains(tid)) {
-                    while (this.holders.size() > 1) {
-                        this.wait();
+    /** Grant an exclusive lock if nobody holds the lock or waits, and it is not retired. */
+    boolean tryWriteLock() {
+        return state.compareAndSet(0, EXCLUSIVE);
+    }
+
+    /** Turn the caller's shared lock into an exclusive one if it is the only holder. */
+    boolean tryUpgrade() {
+        return state.compareAndSet(1, EXCLUSIVE);
+    }
+
+    /**
+     * Queue a request and wait until it is granted. Before each wait,
+     * blocked is called with this object's monitor held; see {@link #wake}.
+     *
+     * @param exclusive whether an exclusive lock is wanted
+     * @param upgrade whether the caller holds a shared lock to upgrade
+     * @param owner who the request is for, as reported by {@link #waitersAhead}
+     * @param recheck if positive, call blocked again after waiting this
+     *                many milliseconds even if nothing woke the request
+     * @param timeout if positive, give up after waiting this many milliseconds
+     * @return true once granted, or false right away if the lock is retired
+     * @throws TransactionAbortedException if blocked throws it, if the
+     *         request times out, or if the thread is interrupted while waiting
+     */
+    boolean lock(boolean exclusive, boolean upgrade, Object owner, long recheck, long timeout, Blocked blocked)
+            throws TransactionAbortedException {
+        Waiter w = new Waiter(exclusive, upgrade, owner);
+        long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000 : 0;
+        boolean done = false;
+        try {
+            synchronized (this) {
+                // from now on only releases change the word, and they hand the lock on under the monitor; nor can
+                // the lock be retired
+                long s;
+                do {
+                    s = state.get();
+                    if ((s & RETIRED) != 0) {
+                        done = true;
+                        return false;
+                    }
+                } while (!state.compareAndSet(s, s | WAITERS));
+                if (upgrade) {
+                    queue.addFirst(w);
+                } else {
+                    queue.addLast(w);
+                }
+                // the lock may have been released since the fast path failed
+                grantWaiters();
+            }
+            while (!w.granted) {
+                synchronized (this) {
+                    if (w.granted) {
+                        break;
                     }
-                    this.releaseReadLockWithoutNoitfyAll(tid);
+                    blocked.check();
+                    if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                        throw new TransactionAbortedException();
+                    }
+                }
+                long nanos = recheck > 0 ? recheck * 1000000 : Long.MAX_VALUE;
+                if (deadline != 0) {
+                    nanos = Math.min(nanos, deadline - System.nanoTime());
+                }
+                if (nanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else if (nanos > 0) {
+                    LockSupport.parkNanos(this, nanos);
+                }
+                if (Thread.interrupted() && !w.granted) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
                 }
-                while (this.numberOfReaders != 0 || this.numberOfWriters != 0)
-                    this.wait();
-                ++numberOfWriters;
-                this.holders.add(tid);
-                this.exclusive = true;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            }
+            done = true;
+            return true;
+        } finally {
+            if (!done) {
+                cancel(w);
             }
         }
-        requests.remove(tid);
     }
 
-    public void releaseReadLockWithoutNoitfyAll(TransactionId tid) {
-        if (this.holders.contains(tid) == false) {
-            return;
+    /** Take a request that gives up out of the queue, or return the lock if it was granted meanwhile. */
+    private synchronized void cancel(Waiter w) {
+        if (!w.granted) {
+            queue.remove(w);
+        } else if (w.upgrade) {
+            // back to the shared lock the caller still holds
+            state.getAndUpdate(s -> (s & WAITERS) | 1);
         } else {
-            synchronized (this) {
-                --this.numberOfReaders;
-                this.holders.remove(tid);
-            }
+            state.addAndGet(w.exclusive ? -EXCLUSIVE : -1);
         }
+        // whoever was behind it may go now
+        grantWaiters();
     }
 
-    public void releaseReadLock(TransactionId tid) {
-        if (this.holders.contains(tid) == false) {
-            return;
+    /** Grant the requests at the front of the queue that are compatible with the holders. Call with the monitor held. */
+    private void grantWaiters() {
+        Waiter w;
+        while ((w = queue.peekFirst()) != null && grant(w.exclusive, w.upgrade)) {
+            queue.pollFirst();
+            w.granted = true;
+            LockSupport.unpark(w.thread);
         }
-        synchronized (this) {
-            --this.numberOfReaders;
-            this.holders.remove(tid);
-            notifyAll();
+        if (queue.isEmpty()) {
+            state.getAndUpdate(s -> s & ~WAITERS);
         }
     }
 
-    public void releaseWriteLock(TransactionId tid) {
-        if (this.holders.contains(tid) == false || this.exclusive == false) {
-            return;
-        }
-        synchronized (this) {
-            --this.numberOfWriters;
-            holders.remove(tid);
-            notifyAll();
+    /** Try to grant a queued request. Call with the monitor held. */
+    private boolean grant(boolean exclusive, boolean upgrade) {
+        while (true) {
+            long s = state.get();
+            long holders = s & ~WAITERS;
+            long next;
+            if (!exclusive) {
+                if ((s & EXCLUSIVE) != 0) {
+                    return false;
+                }
+                next = s + 1;
+            } else if (holders == (upgrade ? 1 : 0)) {
+                next = EXCLUSIVE | (s & WAITERS);
+            } else {
+                return false;
+            }
+            if (state.compareAndSet(s, next)) {
+                return true;
+            }
         }
     }
 
-    public void releaseLock(TransactionId tid) {
-        if (this.exclusive) {
-            this.releaseWriteLock(tid);
-        } else {
-            this.releaseReadLock(tid);
+    /** Release a lock granted by any of the above. */
+    void unlock(boolean exclusive) {
+        long s = state.addAndGet(exclusive ? -EXCLUSIVE : -1);
+        if ((s & WAITERS) != 0) {
+            synchronized (this) {
+                grantWaiters();
+            }
         }
     }
 
-    public boolean isExclusive() {
-        return exclusive;
+    /**
+     * Retire the lock if nobody holds it or waits for it. A retired lock
+     * grants nothing ever again.
+     *
+     * @return whether the lock was retired by this call
+     */
+    boolean retire() {
+        return state.compareAndSet(0, RETIRED);
+    }
+
+    /**
+     * Make the queued requests check again whether they are blocked. Whatever
+     * makes a check throw must happen before this is called.
+     */
+    synchronized void wake() {
+        for (Waiter w : queue) {
+            LockSupport.unpark(w.thread);
+        }
     }
 
-    public Map<TransactionId, Boolean> getRequests() {
-        return this.requests;
+    /**
+     * @return the owners of the requests queued ahead of owner's, and
+     *         whether each is exclusive, front first; none if owner has no
+     *         request queued, having been granted the lock or given up
+     */
+    synchronized Map<Object, Boolean> waitersAhead(Object owner) {
+        Map<Object, Boolean> ahead = new LinkedHashMap<>();
+        for (Waiter w : queue) {
+            if (w.owner.equals(owner)) {
+                return ahead;
+            }
+            ahead.put(w.owner, w.exclusive);
+        }
+        return Collections.emptyMap();
     }
 
-    public Set<TransactionId> getRequesters() {
-        return this.requests.keySet();
+    /** @return whether some transaction holds the lock exclusively */
+    public boolean isExclusive() {
+        return (state.get() & EXCLUSIVE) != 0;
     }
 
-    public Set<TransactionId> getHolders() {
-        return this.holders;
+    /** @return the number of transactions holding the lock shared */
+    public int getReaders() {
+        return (int) (state.get() & READERS);
     }
 
-    public boolean isHolder(TransactionId tid) {
-        return this.holders.contains(tid);
+    /** What a waiting request checks before it waits (again). */
+    interface Blocked {
+        /** @throws TransactionAbortedException if the request must give up */
+        void check() throws TransactionAbortedException;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,185 @@
+package simpledb.transaction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lock on one table, for multi-granularity locking: a transaction takes
+ * an intention lock (IS or IX) on a table before locking its pages shared or
+ * exclusive, or locks the whole table (S, SIX or X) and then needs no page
+ * locks for what the table lock covers.
+ * <p>
+ * Unlike page locks, a table lock is taken and changed at most a few times
+ * per transaction and table, so it is simply guarded by this object's
+ * monitor, and waiting requests wait on it. They are granted in FIFO order;
+ * a conversion, whose holder blocks the queue anyway, goes first.
+ */
+public class TableLock {
+
+    /** The lock modes, from weakest to strongest. */
+    public enum Mode {
+        IS, IX, S, SIX, X;
+
+        // COMPATIBLE[a][b]: a may be held while another transaction holds b
+        private static final boolean[][] COMPATIBLE = {
+                //       IS     IX     S      SIX    X
+                /* IS */ {true, true, true, true, false},
+                /* IX */ {true, true, false, false, false},
+                /* S  */ {true, false, true, false, false},
+                /* SIX*/ {true, false, false, false, false},
+                /* X  */ {false, false, false, false, false},
+        };
+
+        public boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode granting everything this and other grant */
+        public Mode join(Mode other) {
+            if (this == other) {
+                return this;
+            }
+            if ((this == IX && other == S) || (this == S && other == IX)) {
+                return SIX;
+            }
+            return ordinal() > other.ordinal() ? this : other;
+        }
+
+        /** @return whether this mode grants everything other grants */
+        public boolean covers(Mode other) {
+            return join(other) == this;
+        }
+    }
+
+    /** A queued request. */
+    private static final class Request {
+        final Object owner;
+        final Mode mode;
+
+        Request(Object owner, Mode mode) {
+            this.owner = owner;
+            this.mode = mode;
+        }
+    }
+
+    /** The mode each holder holds. Guarded by this. */
+    private final Map<Object, Mode> holders = new HashMap<>();
+    /** Requests not granted yet, in the order they will be. Guarded by this. */
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    /** Holders in mode X. */
+    private volatile int exclusive = 0;
+
+    /**
+     * Grant owner mode, joined with what it holds already, if nobody waits
+     * and no other holder conflicts.
+     */
+    synchronized boolean tryLock(Object owner, Mode mode) {
+        return queue.isEmpty() && grant(owner, mode);
+    }
+
+    /**
+     * Queue a request and wait until it is granted. Before each wait, blocked
+     * is called with this object's monitor held; see {@link #wake}.
+     *
+     * @param owner who the request is for
+     * @param mode the mode wanted, joined with what owner holds already
+     * @param recheck if positive, call blocked again after waiting this
+     *                many milliseconds even if nothing woke the request
+     * @param timeout if positive, give up after waiting this many milliseconds
+     * @throws TransactionAbortedException if blocked throws it, if the
+     *         request times out, or if the thread is interrupted while waiting
+     */
+    synchronized void lock(Object owner, Mode mode, long recheck, long timeout, ReadWriteLock.Blocked blocked)
+            throws TransactionAbortedException {
+        Request r = new Request(owner, mode);
+        if (holders.containsKey(owner)) {
+            queue.addFirst(r);
+        } else {
+            queue.addLast(r);
+        }
+        long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000 : 0;
+        try {
+            while (queue.peekFirst() != r || !grant(owner, mode)) {
+                blocked.check();
+                long millis = recheck;
+                if (deadline != 0) {
+                    long left = (deadline - System.nanoTime()) / 1000000;
+                    if (left <= 0) {
+                        throw new TransactionAbortedException();
+                    }
+                    millis = millis > 0 ? Math.min(millis, left) : left;
+                }
+                wait(millis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } finally {
+            // granted or not, the next request may go now
+            queue.remove(r);
+            notifyAll();
+        }
+    }
+
+    /** Grant owner mode if no other holder conflicts. Call with the monitor held. */
+    private boolean grant(Object owner, Mode mode) {
+        Mode held = holders.get(owner);
+        Mode next = held == null ? mode : held.join(mode);
+        for (Map.Entry<Object, Mode> e : holders.entrySet()) {
+            if (!e.getKey().equals(owner) && !next.compatibleWith(e.getValue())) {
+                return false;
+            }
+        }
+        holders.put(owner, next);
+        if (next == Mode.X && held != Mode.X) {
+            exclusive++;
+        }
+        return true;
+    }
+
+    /** Release whatever owner holds. */
+    synchronized void unlock(Object owner) {
+        if (holders.remove(owner) == Mode.X) {
+            exclusive--;
+        }
+        if (!queue.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /** Make the queued requests check again whether they are blocked. */
+    synchronized void wake() {
+        notifyAll();
+    }
+
+    /**
+     * @return the holders, other than owner, whose modes conflict with mode
+     *         joined with what owner holds, and the owners of the requests
+     *         queued ahead of owner's, which are granted first
+     */
+    synchronized List<Object> blockers(Object owner, Mode mode) {
+        Mode held = holders.get(owner);
+        Mode next = held == null ? mode : held.join(mode);
+        List<Object> blockers = new ArrayList<>();
+        for (Map.Entry<Object, Mode> e : holders.entrySet()) {
+            if (!e.getKey().equals(owner) && !next.compatibleWith(e.getValue())) {
+                blockers.add(e.getKey());
+            }
+        }
+        for (Request r : queue) {
+            if (r.owner.equals(owner)) {
+                break;
+            }
+            blockers.add(r.owner);
+        }
+        return blockers;
+    }
+
+    /** @return whether some transaction holds the whole table exclusively */
+    public boolean isExclusive() {
+        return exclusive > 0;
+    }
+}
@@ -47,19 +47,15 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                // Write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                // Log the dirty pages for this transaction; the page cleaner
+                // writes them out later
+                Database.getBufferPool().writeBackPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
-            // Release locks and flush pages if needed
+            // Release locks
             Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
-            // Write commit log record
-            if (!abort) {
-                Database.getLogFile().logCommit(tid);
-            }
-
             // Setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
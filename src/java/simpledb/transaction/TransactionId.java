@@ -12,15 +12,40 @@ public class TransactionId implements Serializable {
 
     static final AtomicLong counter = new AtomicLong(0);
     final long myid;
+    /** The id of the first attempt of this transaction; see isOlderThan. */
+    final long age;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        age = myid;
+    }
+
+    /**
+     * Create the id for another attempt at an aborted transaction. It is a
+     * new transaction as far as locks and the log are concerned, but keeps
+     * the age of the first attempt, so that a transaction aborted to break
+     * or prevent a deadlock does not become the youngest, and the likeliest
+     * victim, each time it is retried.
+     *
+     * @param restartOf the id of the aborted attempt
+     */
+    public TransactionId(TransactionId restartOf) {
+        myid = counter.getAndIncrement();
+        age = restartOf.age;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return whether this transaction started before other, counting
+     *         from the first attempt of each
+     */
+    public boolean isOlderThan(TransactionId other) {
+        return age < other.age || (age == other.age && myid < other.myid);
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
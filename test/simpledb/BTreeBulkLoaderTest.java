@@ -0,0 +1,316 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+	}
+
+	private static BTreeFile emptyBTreeFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	/**
+	 * Count the leaves of the tree and check that the tuples in them are in key order.
+	 */
+	private int countLeaves(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId pid = rootPtr.getRootId();
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			pid = ((BTreeInternalPage) bf.readPage(pid)).iterator().next().getLeftChild();
+		}
+		int leaves = 0;
+		Field prev = null;
+		while (pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(pid);
+			Iterator<Tuple> it = leaf.iterator();
+			while (it.hasNext()) {
+				Field key = it.next().getField(0);
+				assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, key));
+				prev = key;
+			}
+			leaves++;
+			pid = leaf.getRightSiblingId();
+		}
+		return leaves;
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.sort() with more runs than one
+	 */
+	@Test
+	public void sortRuns() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples);
+		BTreeBulkLoader.SortedRuns sorted = BTreeBulkLoader.sort(hf.iterator(tid), hf.getTupleDesc(), 0, 64);
+		try {
+			assertEquals(1000, sorted.size());
+			assertEquals(16, sorted.numRuns());
+
+			tuples.sort(Comparator.comparing(t -> t.get(0)));
+			sorted.open();
+			for (int pass = 0; pass < 2; pass++) {
+				int count = 0;
+				while (sorted.hasNext()) {
+					List<Integer> t = SystemTestUtil.tupleToList(sorted.next());
+					assertEquals(tuples.get(count).get(0), t.get(0));
+					count++;
+				}
+				assertEquals(1000, count);
+				sorted.rewind();
+			}
+			sorted.close();
+		} finally {
+			sorted.delete();
+		}
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() with the pages filled to different degrees
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+
+		BTreeFile full = emptyBTreeFile();
+		BTreeFile threeQuarters = emptyBTreeFile();
+		BTreeBulkLoader.SortedRuns sorted = BTreeBulkLoader.sort(hf.iterator(tid), hf.getTupleDesc(), 0, 5000);
+		try {
+			BTreeBulkLoader.load(full, sorted, sorted.size(), 1.0);
+			BTreeBulkLoader.load(threeQuarters, sorted, sorted.size(), 0.75);
+		} finally {
+			sorted.delete();
+		}
+
+		for (BTreeFile bf : new BTreeFile[]{full, threeQuarters}) {
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+			SystemTestUtil.matchTuples(bf, tuples);
+		}
+
+		// 20000 tuples, 502 to a full leaf and 376 to one three quarters full, but
+		// for the last, which takes the 448 left as they cannot be shared
+		assertEquals(40, countLeaves(full));
+		assertEquals(53, countLeaves(threeQuarters));
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() counting the input itself, and for input too small to split
+	 */
+	@Test
+	public void smallInputs() throws Exception {
+		BTreeFile empty = emptyBTreeFile();
+		HeapFile none = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeBulkLoader.load(empty, none.iterator(tid), 1.0);
+		assertEquals(1, empty.numPages());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) empty.readPage(BTreeRootPtrPage.getId(empty.getId()));
+		assertEquals(BTreePageId.LEAF, rootPtr.getRootId().pgcateg());
+
+		BTreeFile one = emptyBTreeFile();
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile single = SystemTestUtil.createRandomHeapFile(2, 1, null, tuples);
+		BTreeBulkLoader.load(one, single.iterator(tid), 1.0);
+		assertEquals(1, one.numPages());
+		SystemTestUtil.matchTuples(one, tuples);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() given input out of order
+	 */
+	@Test(expected = DbException.class)
+	public void unsortedInput() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+		BTreeBulkLoader.load(emptyBTreeFile(), hf.iterator(tid), 1.0);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() into a file that is not empty
+	 */
+	@Test(expected = DbException.class)
+	public void nonEmptyFile() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeBulkLoader.load(bf, hf.iterator(tid), 1.0);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex()
+	 */
+	@Test
+	public void createIndex() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+		File f = File.createTempFile("index", ".dat");
+		f.delete();
+		f.deleteOnExit();
+
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, f, 1, 0.9, "index");
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(bf.getId(), Database.getCatalog().getTableId("index"));
+		assertEquals(1, bf.keyField());
+
+		TransactionId t = new TransactionId();
+		BTreeChecker.checkRep(bf, t, new HashMap<>(), true);
+		Database.getBufferPool().transactionComplete(t);
+		SystemTestUtil.matchTuples(bf, tuples);
+		assertEquals(Utility.getTupleDesc(2), bf.getTupleDesc());
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex() keeping out a transaction
+	 * that appends a page to the table while the index is built
+	 */
+	@Test
+	public void createIndexBlocksAppends() throws Exception {
+		// 504 tuples fill a page, so the insert below has to append one
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, tuples);
+		File f = File.createTempFile("index", ".dat");
+		f.delete();
+		f.deleteOnExit();
+
+		BTreeFile bf = BTreeBulkLoader.createIndex(tid, hf, f, 0, 1.0, "index");
+		final TransactionId writer = new TransactionId();
+		final List<Throwable> errors = new ArrayList<>();
+		Thread append = new Thread(() -> {
+			try {
+				Database.getBufferPool().insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[]{7, 7}));
+			} catch (Throwable e) {
+				errors.add(e);
+			}
+		});
+		append.start();
+		append.join(200);
+		assertTrue(append.isAlive());
+		assertEquals(4, hf.numPages());
+
+		// the index holds the table as it was when it was built
+		Database.getBufferPool().transactionComplete(tid);
+		append.join();
+		assertTrue(errors.isEmpty());
+		Database.getBufferPool().transactionComplete(writer);
+		assertEquals(5, hf.numPages());
+		SystemTestUtil.matchTuples(bf, tuples);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex() failing part way through
+	 * the scan of the table
+	 */
+	@Test
+	public void createIndexFailure() throws Exception {
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+		HeapFile hf = new HeapFile(table.getFile(), table.getTupleDesc()) {
+			@Override
+			public DbFileIterator iterator(TransactionId tid) {
+				DbFileIterator it = super.iterator(tid);
+				return new AbstractDbFileIterator() {
+					private int read;
+
+					@Override
+					public void open() throws DbException, TransactionAbortedException {
+						it.open();
+					}
+
+					@Override
+					protected Tuple readNext() throws DbException, TransactionAbortedException {
+						if (++read > 500) {
+							throw new DbException("scan failed");
+						}
+						return it.hasNext() ? it.next() : null;
+					}
+
+					@Override
+					public void rewind() throws DbException, TransactionAbortedException {
+						it.rewind();
+					}
+
+					@Override
+					public void close() {
+						it.close();
+						super.close();
+					}
+				};
+			}
+		};
+		Database.getCatalog().addTable(hf, "broken");
+		File f = File.createTempFile("index", ".dat");
+		f.delete();
+		f.deleteOnExit();
+
+		try {
+			BTreeBulkLoader.createIndex(tid, hf, f, 0, 1.0, "brokenIndex");
+			fail("expected the scan to fail");
+		} catch (DbException e) {
+			assertEquals("scan failed", e.getMessage());
+		}
+		assertFalse(f.exists());
+		// a BTreeFile takes its id from its file
+		for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); ) {
+			assertNotEquals(f.getAbsoluteFile().hashCode(), (int) it.next());
+		}
+		try {
+			Database.getCatalog().getTableId("brokenIndex");
+			fail("expected no index in the catalog");
+		} catch (NoSuchElementException e) {
+		}
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.createIndex() into a file that is not
+	 * empty, which is left as it was
+	 */
+	@Test
+	public void createIndexNonEmptyFile() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		BTreeFile other = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+		long length = other.getFile().length();
+
+		try {
+			BTreeBulkLoader.createIndex(tid, hf, other.getFile(), 0, 1.0, "otherIndex");
+			fail("expected the file to be refused");
+		} catch (DbException e) {
+		}
+		assertEquals(length, other.getFile().length());
+		try {
+			Database.getCatalog().getTableId("otherIndex");
+			fail("expected no index in the catalog");
+		} catch (NoSuchElementException e) {
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -124,6 +125,35 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for the B-link fields: BTreeInternalPage.setRightSiblingId(),
+	 * setLowKey() and setHighKey()
+	 */
+	@Test public void setRightSiblingAndFenceKeys() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(null, page.getRightSiblingId());
+		assertEquals(null, page.getLowKey());
+		assertEquals(null, page.getHighKey());
+
+		BTreePageId id = new BTreePageId(pid.getTableId(), 3, BTreePageId.INTERNAL);
+		page.setRightSiblingId(id);
+		page.setHighKey(new IntField(70000));
+
+		// the fields survive a round trip through the page data
+		page = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(id, page.getRightSiblingId());
+		assertEquals(null, page.getLowKey());
+		assertEquals(new IntField(70000), page.getHighKey());
+		assertEquals(481, page.getNumEmptySlots());
+
+		try {
+			page.setRightSiblingId(new BTreePageId(pid.getTableId(), 3, BTreePageId.LEAF));
+			throw new Exception("should not be able to set rightSibling to leaf node; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.iterator()
 	 */
@@ -179,7 +209,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 	}
 
 	/**
@@ -192,7 +222,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 21; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 21; i < 504; ++i)
+		for (int i = 21; i < 502; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -246,7 +276,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 501 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
@@ -321,6 +351,48 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		checkFindChild(page);
+
+		// leave holes in the slots, and check again
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 == 0)
+				page.deleteKeyAndRightChild(e);
+		}
+		checkFindChild(page);
+	}
+
+	/**
+	 * Compare findChild() with a linear search through the entries, for keys
+	 * around each key on the page.
+	 */
+	private void checkFindChild(BTreeInternalPage page) {
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+		for (BTreeEntry e : entries) {
+			int key = ((IntField) e.getKey()).getValue();
+			for (int k = key - 1; k <= key + 1; k++) {
+				IntField f = new IntField(k);
+				BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+				for (BTreeEntry candidate : entries) {
+					if (candidate.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+						expected = candidate.getLeftChild();
+						break;
+					}
+				}
+				assertEquals(expected, page.findChild(f));
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
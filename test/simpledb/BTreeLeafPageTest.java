@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -347,6 +348,54 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot()
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		checkFindSlot(page);
+
+		// leave holes in the slots, and check again
+		Iterator<Tuple> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (i++ % 3 == 0)
+				page.deleteTuple(t);
+		}
+		checkFindSlot(page);
+		assertEquals(page.getMaxTuples(), page.findSlot(Predicate.Op.GREATER_THAN, new IntField(70000)));
+	}
+
+	/**
+	 * Compare iterating from findSlot() with a linear search through the
+	 * tuples, for keys around each key on the page.
+	 */
+	private void checkFindSlot(BTreeLeafPage page) {
+		List<Tuple> tuples = new ArrayList<>();
+		page.iterator().forEachRemaining(tuples::add);
+		for (Tuple t : tuples) {
+			int key = ((IntField) t.getField(0)).getValue();
+			for (int k = key - 1; k <= key + 1; k++) {
+				IntField f = new IntField(k);
+				for (Predicate.Op op : new Predicate.Op[] {Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+					Tuple expected = null;
+					for (Tuple candidate : tuples) {
+						if (candidate.getField(0).compare(op, f)) {
+							expected = candidate;
+							break;
+						}
+					}
+					Iterator<Tuple> found = page.iterator(page.findSlot(op, f));
+					if (expected == null)
+						assertFalse(found.hasNext());
+					else
+						assertEquals(expected, found.next());
+				}
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
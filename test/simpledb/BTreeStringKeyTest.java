@@ -0,0 +1,357 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+	private static final int TUPLES = 20000;
+
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		// room for a whole tree, so that one transaction can build it
+		Database.resetBufferPool(4096);
+		tid = new TransactionId();
+	}
+
+	private static BTreeFile emptyBTreeFile() throws Exception {
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static String key(int i) {
+		return String.format("user/%08d/profile", i);
+	}
+
+	private static Tuple tuple(int i) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key(i), Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private static StringField field(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	/**
+	 * Build a tree by inserting the given number of tuples with keys sharing a long prefix, in random order.
+	 */
+	private BTreeFile insertRandom(int tuples) throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < tuples; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, new Random(25));
+		for (int i : order) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(i));
+		}
+		return bf;
+	}
+
+	/**
+	 * Return the internal pages on each level of the tree, from the root down.
+	 */
+	private List<List<BTreeInternalPage>> internalLevels(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		List<List<BTreeInternalPage>> levels = new ArrayList<>();
+		List<BTreePageId> pids = Collections.singletonList(rootPtr.getRootId());
+		while (pids.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			List<BTreeInternalPage> level = new ArrayList<>();
+			List<BTreePageId> children = new ArrayList<>();
+			for (BTreePageId pid : pids) {
+				BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				level.add(p);
+				Iterator<BTreeEntry> it = p.iterator();
+				BTreeEntry e = it.next();
+				children.add(e.getLeftChild());
+				children.add(e.getRightChild());
+				while (it.hasNext()) {
+					children.add(it.next().getRightChild());
+				}
+			}
+			levels.add(level);
+			pids = children;
+		}
+		return levels;
+	}
+
+	/**
+	 * Check that the tree holds the tuples whose numbers are given, in key order.
+	 */
+	private void checkTuples(BTreeFile bf, List<Integer> expected) throws Exception {
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			int i = expected.get(count++);
+			assertEquals(field(key(i)), t.getField(0));
+			assertEquals(new IntField(i), t.getField(1));
+		}
+		it.close();
+		assertEquals(expected.size(), count);
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.getSeparator()
+	 */
+	@Test
+	public void separators() {
+		assertEquals(field("user/00012"), BTreeInternalPage.getSeparator(field("user/000119/x"), field("user/000120/y")));
+		assertEquals(field("b"), BTreeInternalPage.getSeparator(field("apple"), field("banana")));
+		// a prefix of the right key: one more character is needed
+		assertEquals(field("app"), BTreeInternalPage.getSeparator(field("ap"), field("apple")));
+		// equal keys, or only the last character differing, leave the right key as it is
+		assertEquals(field("same"), BTreeInternalPage.getSeparator(field("same"), field("same")));
+		assertEquals(field("abc"), BTreeInternalPage.getSeparator(field("abb"), field("abc")));
+		assertEquals(new IntField(7), BTreeInternalPage.getSeparator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * Unit test for a BTreeInternalPage with string keys stored in as many bytes as they take
+	 */
+	@Test
+	public void variableLengthPage() throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertTrue(page.hasVariableLengthKeys());
+		// as many of the longest keys fit as when all keys took the same room
+		int longest = page.getNumEmptySlots();
+		assertEquals(page.getMaxSpace() / (1 + Type.STRING_LEN + 4), longest);
+
+		// short keys fit in the hundreds
+		int child = 2;
+		int n = 0;
+		while (page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(field(String.format("k%04d", n++)),
+					new BTreePageId(bf.getId(), child - 1, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), child, BTreePageId.LEAF)));
+			child++;
+		}
+		assertTrue(n > 10 * longest);
+		assertEquals(n, page.getNumEntries());
+		assertEquals(n * (1 + 5 + 4), page.getUsedSpace());
+		assertFalse(page.hasRoomForLongerKey());
+		page.setLowKey(field("a"));
+		page.setHighKey(field("z"));
+
+		// the page reads back the same
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(field("a"), copy.getLowKey());
+		assertEquals(field("z"), copy.getHighKey());
+		Iterator<BTreeEntry> it = page.iterator();
+		Iterator<BTreeEntry> copyIt = copy.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry c = copyIt.next();
+			assertEquals(e.getKey(), c.getKey());
+			assertEquals(e.getLeftChild(), c.getLeftChild());
+			assertEquals(e.getRightChild(), c.getRightChild());
+		}
+		assertFalse(copyIt.hasNext());
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+
+		// a key too long for the bytes left does not fit, though slots are free
+		StringBuilder sb = new StringBuilder("k9999");
+		while (sb.length() < Type.STRING_LEN) {
+			sb.append('x');
+		}
+		try {
+			copy.insertEntry(new BTreeEntry(field(sb.toString()), new BTreePageId(bf.getId(), child - 1, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), child, BTreePageId.LEAF)));
+			fail("expected the page to be full");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Unit test for BTreeFileEncoder.convertToInternalPage() with string keys, which
+	 * refuses entries that do not all fit rather than leave some out
+	 */
+	@Test
+	public void encodeVariableLengthPage() throws Exception {
+		BTreeFile bf = emptyBTreeFile();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		int longest = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0).getNumEmptySlots();
+		List<BTreeEntry> entries = new ArrayList<>();
+		for (int i = 0; i <= longest; i++) {
+			StringBuilder sb = new StringBuilder(String.format("k%04d", i));
+			while (sb.length() < Type.STRING_LEN) {
+				sb.append('x');
+			}
+			entries.add(new BTreeEntry(field(sb.toString()), new BTreePageId(bf.getId(), i + 1, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF)));
+		}
+
+		try {
+			BTreeFileEncoder.convertToInternalPage(new ArrayList<>(entries), BufferPool.getPageSize(),
+					Type.STRING_TYPE, BTreePageId.LEAF);
+			fail("expected the entries not to fit");
+		} catch (RuntimeException e) {
+			// expected
+		}
+
+		// one fewer fits
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries.subList(0, longest), BufferPool.getPageSize(),
+				Type.STRING_TYPE, BTreePageId.LEAF);
+		assertEquals(longest, new BTreeInternalPage(pid, data, 0).getNumEntries());
+	}
+
+	/**
+	 * Insert and delete many string keys, checking that internal pages stay between half
+	 * full and full by bytes, and that the tree is one level shallower than with keys all
+	 * taking 132 bytes
+	 */
+	@Test
+	public void insertAndDelete() throws Exception {
+		BTreeFile bf = insertRandom(TUPLES);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> all = new ArrayList<>();
+		for (int i = 0; i < TUPLES; i++) {
+			all.add(i);
+		}
+		checkTuples(bf, all);
+
+		// about a thousand leaves: 28 of them to a page of full-length keys would take three
+		// levels of internal pages, but their separators, such as "user/000123", take two
+		List<List<BTreeInternalPage>> levels = internalLevels(bf);
+		assertEquals(2, levels.size());
+		for (BTreeInternalPage p : levels.get(1)) {
+			assertTrue(p.getNumEntries() > 100);
+			assertTrue(p.getUsedSpace() <= p.getMaxSpace());
+		}
+
+		// find a key through the index
+		DbFileIterator found = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, field(key(12345))));
+		found.open();
+		assertTrue(found.hasNext());
+		assertEquals(new IntField(12345), found.next().getField(1));
+		assertFalse(found.hasNext());
+		found.close();
+
+		// delete three quarters of the tuples, making pages steal and merge
+		List<Tuple> doomed = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(1)).getValue() % 4 != 0) {
+				doomed.add(t);
+			}
+		}
+		it.close();
+		Collections.shuffle(doomed, new Random(25));
+		for (Tuple t : doomed) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> left = new ArrayList<>();
+		for (int i = 0; i < TUPLES; i += 4) {
+			left.add(i);
+		}
+		checkTuples(bf, left);
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() with string keys, filling internal pages by bytes
+	 */
+	@Test
+	public void bulkLoad() throws Exception {
+		BTreeFile source = insertRandom(TUPLES);
+		BTreeFile bf = emptyBTreeFile();
+		BTreeBulkLoader.load(bf, source.iterator(tid), 1.0);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		List<Integer> all = new ArrayList<>();
+		for (int i = 0; i < TUPLES; i++) {
+			all.add(i);
+		}
+		checkTuples(bf, all);
+
+		// 20000 tuples make 667 full leaves, whose separators, of 12 characters, fill pages
+		// below the root over 200 to a page, leaving room for a longer key; only the last
+		// is left with fewer
+		List<List<BTreeInternalPage>> levels = internalLevels(bf);
+		assertEquals(2, levels.size());
+		List<BTreeInternalPage> pages = levels.get(1);
+		assertEquals(4, pages.size());
+		for (BTreeInternalPage p : pages.subList(0, pages.size() - 1)) {
+			assertTrue(p.getNumEntries() > 200);
+			assertTrue(p.hasRoomForLongerKey());
+			assertFalse(p.isBelowMinOccupancy());
+		}
+	}
+
+	/**
+	 * Unit test for BTreeBulkLoader.load() with as many tuples as leave no room
+	 * for the separator of the last leaf on its internal page, so that the last
+	 * page on that level starts with the last leaf as its only child
+	 */
+	@Test
+	public void bulkLoadLastPageOverflows() throws Exception {
+		int n = 6225;
+		BTreeFile source = insertRandom(n);
+		BTreeFile bf = emptyBTreeFile();
+		BTreeBulkLoader.load(bf, source.iterator(tid), 1.0);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		List<Integer> all = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			all.add(i);
+		}
+		checkTuples(bf, all);
+
+		// the last page took the last entry of the page before it
+		List<BTreeInternalPage> pages = internalLevels(bf).get(1);
+		assertEquals(2, pages.size());
+		assertEquals(1, pages.get(1).getNumEntries());
+
+		// the last leaf is reached through the index
+		DbFileIterator found = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, field(key(n - 1))));
+		found.open();
+		assertTrue(found.hasNext());
+		assertEquals(new IntField(n - 1), found.next().getField(1));
+		found.close();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(n));
+		all.add(n);
+		checkTuples(bf, all);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolPartitionTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // two int columns fit 504 tuples on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        assertEquals(PAGES, hf.numPages());
+    }
+
+    /**
+     * The page limit applies to the whole pool, not to each partition
+     */
+    @Test public void capacityIsPoolWide() throws Exception {
+        BufferPool bp = new BufferPool(5, 4, PageReplacementPolicy.Kind.LRU);
+        assertEquals(4, bp.getNumPartitions());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(PAGES, bp.getStats().getMisses());
+        assertEquals(PAGES - 5, bp.getStats().getEvictions());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Concurrent readers all see the same page objects and every page is
+     * read from disk once
+     */
+    @Test public void concurrentReaders() throws Exception {
+        final BufferPool bp = new BufferPool(PAGES, 4, PageReplacementPolicy.Kind.CLOCK);
+        final int threads = 4;
+        final Page[][] seen = new Page[threads][PAGES];
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            workers.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int round = 0; round < 2; round++) {
+                        for (int i = 0; i < PAGES; i++) {
+                            seen[me][i] = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    bp.transactionComplete(tid);
+                }
+            }));
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int t = 1; t < threads; t++) {
+            for (int i = 0; i < PAGES; i++) {
+                assertSame(seen[0][i], seen[t][i]);
+            }
+        }
+        assertEquals(PAGES, bp.getStats().getMisses());
+        assertEquals(threads * 2 * PAGES - PAGES, bp.getStats().getHits());
+        assertEquals(0, bp.getStats().getEvictions());
+    }
+
+    // counts reads, and makes them slow enough for misses to overlap
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Concurrent misses on the same page are served by a single disk read
+     */
+    @Test public void concurrentMissesReadOnce() throws Exception {
+        final SlowHeapFile slow = new SlowHeapFile(hf);
+        Database.getCatalog().addTable(slow, "slow");
+        final BufferPool bp = new BufferPool(PAGES, 4, PageReplacementPolicy.Kind.LRU);
+        final PageId pid = new HeapPageId(slow.getId(), 3);
+        final int threads = 8;
+        final Page[] seen = new Page[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            workers.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    start.await();
+                    seen[me] = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    bp.transactionComplete(tid);
+                }
+            }));
+        }
+        for (Thread w : workers) w.start();
+        start.countDown();
+        for (Thread w : workers) w.join();
+
+        assertEquals(1, slow.reads.get());
+        for (int t = 0; t < threads; t++) {
+            assertNotNull(seen[t]);
+            assertSame(seen[0], seen[t]);
+        }
+        assertEquals(1, bp.getStats().getMisses());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPartitionTest.class);
+    }
+}
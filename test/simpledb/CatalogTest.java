@@ -96,6 +96,24 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for Catalog.removeTable()
+     */
+    @Test public void removeTable() {
+        Database.getCatalog().removeTable(id1);
+        try {
+            Database.getCatalog().getTableId(nameThisTestRun);
+            Assert.fail("Should not find a removed table");
+        } catch (NoSuchElementException e) {
+            // Expected to get here
+        }
+        assertEquals(id2, Database.getCatalog().getTableId(name));
+
+        // removing it again does nothing
+        Database.getCatalog().removeTable(id1);
+        assertEquals(id2, Database.getCatalog().getTableId(name));
+    }
+
     /**
      * JUnit suite target
      */
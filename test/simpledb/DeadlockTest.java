@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -14,6 +17,7 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.DeadlockPolicy;
 import simpledb.transaction.TransactionId;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -219,6 +223,83 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * t1 acquires p0.write; t2 acquires p1.write; t1 attempts p1.write; t2
+   * attempts p0.write. The background detector aborts t2, the younger one,
+   * and t1 goes on.
+   */
+  @Test public void testYoungestAborted() throws Exception {
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+
+    // allow initial write locks to acquire
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write0.acquired() && lg2Write1.acquired());
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    // the grabber of the victim releases its locks
+    lg2Write0.join(WAIT_INTERVAL * 10);
+    lg1Write1.join(WAIT_INTERVAL * 10);
+    assertNotNull(lg2Write0.getError());
+    assertTrue(lg1Write1.acquired());
+    assertEquals(1, bp.getLockStats().getDeadlocks());
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Under WAIT_DIE, t1 acquires p0.write; t2 acquires p1.write; t1 attempts
+   * p1.write and waits for the younger t2; t2 attempts p0.write and dies
+   * rather than wait for the older t1.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write0.acquired() && lg2Write1.acquired());
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write1.acquired());
+    assertNull(lg1Write1.getError());
+
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2Write0.join(WAIT_INTERVAL * 10);
+    lg1Write1.join(WAIT_INTERVAL * 10);
+    assertNotNull(lg2Write0.getError());
+    assertTrue(lg1Write1.acquired());
+    assertEquals(0, bp.getLockStats().getDeadlocks());
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Under WOUND_WAIT, t1 acquires p0.write; t2 acquires p1.write; t2
+   * attempts p0.write and waits for the older t1; t1 attempts p1.write and
+   * wounds the younger t2, whose waiting request aborts.
+   */
+  @Test public void testWoundWait() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write0.acquired() && lg2Write1.acquired());
+
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write0.acquired());
+    assertNull(lg2Write0.getError());
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    lg2Write0.join(WAIT_INTERVAL * 10);
+    lg1Write1.join(WAIT_INTERVAL * 10);
+    assertNotNull(lg2Write0.getError());
+    assertTrue(lg1Write1.acquired());
+    assertEquals(0, bp.getLockStats().getDeadlocks());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -3,7 +3,11 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -11,6 +15,8 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -193,6 +199,122 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock requested after a waiting write lock waits behind it, so
+   * readers cannot starve the writer; the writer is granted first once the
+   * page is released.
+   */
+  @Test public void readerQueuesBehindWriter() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+
+    TransactionId tid3 = new TransactionId();
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT * 10);
+    assertTrue(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT * 10);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * With a lock timeout, a request that waits too long aborts.
+   */
+  @Test public void lockTimeout() throws Exception {
+    bp.setLockTimeout(TIMEOUT / 2);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    t.start();
+    t.join(TIMEOUT * 10);
+    assertFalse(t.acquired());
+    assertNotNull(t.getError());
+
+    // the lock is still usable afterwards
+    bp.transactionComplete(tid1);
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Past the escalation threshold, a reader's page locks become a shared
+   * lock on the table: it covers every page, other readers still get in,
+   * and writers wait.
+   */
+  @Test public void readLocksEscalate() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(0, bp.getLockStats().getEscalations());
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(1, bp.getLockStats().getEscalations());
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(new TransactionId(), p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A writer's page locks escalate to an exclusive lock on the table; the
+   * pages it dirtied are still flushed when it commits.
+   */
+  @Test public void writeLocksEscalate() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE).markDirty(true, tid1);
+    bp.getPage(tid1, p1, Permissions.READ_WRITE).markDirty(true, tid1);
+    assertEquals(1, bp.getLockStats().getEscalations());
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, false);
+
+    bp.transactionComplete(tid1, true);
+    assertNull(bp.getPage(tid2, p0, Permissions.READ_ONLY).isDirty());
+    assertNull(bp.getPage(tid2, p1, Permissions.READ_ONLY).isDirty());
+  }
+
+  /**
+   * Unit test for LockManager.
+   * Locks on pages nobody holds any more are dropped, while a lock in use
+   * survives and keeps blocking.
+   */
+  @Test public void idleLocksReclaimed() throws Exception {
+    LockManager lm = new LockManager();
+    lm.setLockTimeout(TIMEOUT / 2);
+    lm.obtainWriteLock(tid1, p0);
+    int pages = 10000;
+    for (int i = 0; i < pages; i++) {
+      PageId pid = new HeapPageId(-1, i);
+      lm.obtainReadLock(tid2, pid);
+      lm.releaseLock(tid2, pid);
+    }
+    assertTrue(lm.getNumPageLocks() < pages / 2);
+
+    TransactionId tid3 = new TransactionId();
+    try {
+      lm.obtainReadLock(tid3, p0);
+      fail("p0 should still be locked by tid1");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    lm.releaseAllLocks(tid1);
+    lm.releaseAllLocks(tid3);
+    lm.obtainReadLock(tid3, p0);
+    assertTrue(lm.holdsLock(tid3, p0));
+  }
+
   /**
    * JUnit suite target
    */
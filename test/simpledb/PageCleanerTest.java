@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // two int columns fit 504 tuples on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(50);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /** Delete the first tuple on a page and commit. */
+    private void deleteFirst(int pgNo) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, pid(pgNo), Permissions.READ_ONLY);
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid);
+    }
+
+    private int emptyOnDisk(int pgNo) {
+        return ((HeapPage) hf.readPage(pid(pgNo))).getNumEmptySlots();
+    }
+
+    /**
+     * Commit leaves page writes to the cleaner, and flushPendingWrites()
+     * writes them
+     */
+    @Test public void commitDefersWrites() throws Exception {
+        bp.setDirtyWatermarks(0, 1);
+        deleteFirst(0);
+        assertEquals(1, bp.getPendingWrites());
+        assertEquals(0, emptyOnDisk(0));
+
+        TransactionId tid = new TransactionId();
+        assertEquals(1, ((HeapPage) bp.getPage(tid, pid(0), Permissions.READ_ONLY)).getNumEmptySlots());
+        bp.transactionComplete(tid);
+
+        bp.flushPendingWrites();
+        assertEquals(0, bp.getPendingWrites());
+        assertEquals(1, emptyOnDisk(0));
+    }
+
+    /**
+     * Reaching the high watermark starts the cleaner, which writes the oldest
+     * pages until the low watermark is reached
+     */
+    @Test public void highWatermarkStartsCleaner() throws Exception {
+        // 50 pages: high watermark at 3 pages, low at 1
+        bp.setDirtyWatermarks(0.02, 0.06);
+        deleteFirst(2);
+        deleteFirst(0);
+        assertEquals(2, bp.getPendingWrites());
+        deleteFirst(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getPendingWrites() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, bp.getPendingWrites());
+        assertEquals(1, emptyOnDisk(2));
+        assertEquals(1, emptyOnDisk(0));
+        assertEquals(0, emptyOnDisk(1));
+        assertEquals(0, emptyOnDisk(3));
+    }
+
+    /**
+     * A page re-read from disk after its committed copy left the pool has
+     * the committed contents, even if the cleaner had not written it yet
+     */
+    @Test public void abortKeepsCommittedPage() throws Exception {
+        bp.setDirtyWatermarks(0, 1);
+        deleteFirst(0);
+
+        TransactionId t2 = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(t2, pid(0), Permissions.READ_ONLY);
+        List<Tuple> doomed = new ArrayList<>();
+        page.iterator().forEachRemaining(doomed::add);
+        for (Tuple t : doomed.subList(0, 10)) {
+            bp.deleteTuple(t2, t);
+        }
+        bp.transactionComplete(t2, false);
+
+        TransactionId t3 = new TransactionId();
+        assertEquals(1, ((HeapPage) bp.getPage(t3, pid(0), Permissions.READ_ONLY)).getNumEmptySlots());
+        bp.transactionComplete(t3);
+    }
+
+    /**
+     * A background write that fails leaves its pages pending, and the next
+     * caller to flush them hears of the failure
+     */
+    @Test public void backgroundFailureIsReported() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        HeapFile flaky = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public void writePages(List<Page> pages) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("disk full");
+                }
+                super.writePages(pages);
+            }
+        };
+        Database.getCatalog().addTable(flaky, SystemTestUtil.getUUID());
+
+        // 50 pages: high watermark at 3 pages, so the third commit starts the cleaner
+        bp.setDirtyWatermarks(0.02, 0.06);
+        deleteFirst(2);
+        deleteFirst(0);
+        deleteFirst(1);
+        IOException reported = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (reported == null && System.currentTimeMillis() < deadline) {
+            try {
+                bp.flushPendingWrites();
+            } catch (IOException e) {
+                // until the cleaner has failed, our own writes fail directly
+                if (e.getCause() != null) {
+                    reported = e;
+                }
+            }
+        }
+        assertNotNull(reported);
+        assertEquals("disk full", reported.getCause().getMessage());
+        assertEquals(3, bp.getPendingWrites());
+        assertEquals(0, emptyOnDisk(1));
+
+        // reported once; the pages are written once the disk recovers
+        failing.set(false);
+        bp.flushPendingWrites();
+        assertEquals(0, bp.getPendingWrites());
+        assertEquals(1, emptyOnDisk(1));
+    }
+
+    /**
+     * Writing a run of pages at once matches writing them one by one
+     */
+    @Test public void writePagesCoalesces() throws Exception {
+        for (IoMode mode : IoMode.values()) {
+            hf.setIoMode(mode);
+            List<Page> pages = new ArrayList<>();
+            for (int i : new int[] {0, 1, 3}) {
+                HeapPage page = (HeapPage) hf.readPage(pid(i));
+                page.deleteTuple(page.iterator().next());
+                pages.add(page);
+            }
+            hf.writePages(pages);
+            for (Page page : pages) {
+                assertArrayEquals(mode.toString(), page.getPageData(), hf.readPage(page.getId()).getPageData());
+            }
+        }
+        assertEquals(IoMode.values().length, emptyOnDisk(3));
+        assertEquals(0, emptyOnDisk(2));
+        hf.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageFrameTest extends SimpleDbTestBase {
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data);
+        return buf;
+    }
+
+    private static List<String> contents(Iterator<Tuple> it) {
+        List<String> out = new ArrayList<>();
+        while (it.hasNext()) {
+            out.add(it.next().toString());
+        }
+        return out;
+    }
+
+    private HeapPageId addExampleTable() {
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        return new HeapPageId(-1, -1);
+    }
+
+    /**
+     * A HeapPage over an off-heap frame reads the same tuples as one built
+     * from a byte array
+     */
+    @Test public void heapPageOverFrame() throws Exception {
+        HeapPageId pid = addExampleTable();
+        HeapPage eager = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA.clone());
+        HeapPage lazy = new HeapPage(pid, new PageFrame(direct(HeapPageReadTest.EXAMPLE_DATA)));
+
+        assertTrue(lazy.getFrame().isOffHeap());
+        assertEquals(eager.getNumEmptySlots(), lazy.getNumEmptySlots());
+        assertEquals(contents(eager.iterator()), contents(lazy.iterator()));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, lazy.getPageData());
+    }
+
+    /**
+     * The frame is the before-image until setBeforeImage() moves it forward
+     */
+    @Test public void frameIsBeforeImage() throws Exception {
+        HeapPageId pid = addExampleTable();
+        HeapPage page = new HeapPage(pid, new PageFrame(direct(HeapPageReadTest.EXAMPLE_DATA)));
+
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+        assertFalse(java.util.Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData()));
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Pages evicted from an off-heap pool stay readable by whoever still
+     * holds them
+     */
+    @Test public void evictedPagesAreDetached() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = new BufferPool(5, 2, PageReplacementPolicy.Kind.LRU, true);
+        TransactionId tid = new TransactionId();
+
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(first.getFrame().isOffHeap());
+        for (int i = 1; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertFalse(first.getFrame().isOffHeap());
+
+        HeapPage fromDisk = (HeapPage) hf.readPage(first.getId());
+        assertEquals(contents(fromDisk.iterator()), contents(first.iterator()));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * BTreeFile reads leaf pages into frames
+     */
+    @Test public void btreeLeafOverFrame() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20, null, null, 0);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreePageId leafId = rootPtr.getRootId();
+        assertEquals(BTreePageId.LEAF, leafId.pgcateg());
+
+        BTreeLeafPage eager = (BTreeLeafPage) bf.readPage(leafId);
+        BTreeLeafPage lazy = (BTreeLeafPage) bf.readPage(leafId, ByteBuffer.allocateDirect(BufferPool.getPageSize()));
+        assertTrue(lazy.getFrame().isOffHeap());
+        assertEquals(20, lazy.getNumTuples());
+        assertEquals(contents(eager.iterator()), contents(lazy.iterator()));
+        assertEquals(contents(eager.reverseIterator()), contents(lazy.reverseIterator()));
+        assertArrayEquals(eager.getPageData(), lazy.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFrameTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageIoTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // two int columns fit 504 tuples on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+    }
+
+    private static List<String> contents(HeapPage page) {
+        List<String> out = new ArrayList<>();
+        page.iterator().forEachRemaining(t -> out.add(t.toString()));
+        return out;
+    }
+
+    /**
+     * Every mode reads the same pages, and sees pages written in any other mode
+     */
+    @Test public void modesAgree() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage expected = (HeapPage) hf.readPage(pid);
+        for (IoMode mode : IoMode.values()) {
+            hf.setIoMode(mode);
+            assertEquals(mode, hf.getIoMode());
+            assertArrayEquals(mode.toString(), expected.getPageData(), hf.readPage(pid).getPageData());
+
+            HeapPage page = (HeapPage) hf.readPage(pid);
+            page.deleteTuple(page.iterator().next());
+            hf.writePage(page);
+            expected = page;
+        }
+        hf.setIoMode(IoMode.RANDOM_ACCESS);
+        assertEquals(contents(expected), contents((HeapPage) hf.readPage(pid)));
+    }
+
+    /**
+     * A mapped file sees pages appended after it was mapped
+     */
+    @Test public void mmapSeesAppendedPages() throws Exception {
+        hf.setIoMode(IoMode.MMAP);
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        HeapPageId pid = new HeapPageId(hf.getId(), hf.numPages());
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        hf.writePage(page);
+
+        assertEquals(4, hf.numPages());
+        assertEquals(contents(page), contents((HeapPage) hf.readPage(pid)));
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 4));
+            fail("read past the end of the file");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        hf.close();
+    }
+
+    /**
+     * In RANDOM_ACCESS mode a HeapFile reads a page past the end of the file,
+     * or the missing tail of a short last page, as zeros
+     */
+    @Test public void randomAccessZeroFillsPastEnd() throws Exception {
+        HeapPage empty = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 5));
+        assertArrayEquals(HeapPage.createEmptyPageData(), empty.getPageData());
+        assertFalse(empty.iterator().hasNext());
+
+        byte[] last = hf.readPage(new HeapPageId(hf.getId(), 2)).getPageData();
+        try (RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw")) {
+            raf.setLength(raf.length() - 100);
+        }
+        byte[] expected = Arrays.copyOf(Arrays.copyOf(last, last.length - 100), last.length);
+        assertArrayEquals(expected, hf.readPage(new HeapPageId(hf.getId(), 2)).getPageData());
+
+        hf.setIoMode(IoMode.CHANNEL);
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 2));
+            fail("read past the end of the file");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        hf.close();
+    }
+
+    /**
+     * A scan of an empty table returns nothing in every mode
+     */
+    @Test public void emptyTableScan() throws Exception {
+        File f = File.createTempFile("empty", ".dat");
+        f.deleteOnExit();
+        HeapFile empty = Utility.openHeapFile(2, f);
+        assertEquals(0, empty.numPages());
+        for (IoMode mode : IoMode.values()) {
+            empty.setIoMode(mode);
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = empty.iterator(tid);
+            it.open();
+            assertFalse(mode.toString(), it.hasNext());
+            it.rewind();
+            assertFalse(mode.toString(), it.hasNext());
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+            // a page cached by one mode would hide the next mode's read
+            Database.getBufferPool().discardPage(new HeapPageId(empty.getId(), 0));
+            assertEquals(0, empty.numPages());
+        }
+        empty.close();
+    }
+
+    /**
+     * The mode is chosen per table through the catalog
+     */
+    @Test public void catalogSetsMode() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Database.getCatalog().setIoMode(hf.getId(), IoMode.CHANNEL);
+        assertEquals(IoMode.CHANNEL, Database.getCatalog().getIoMode(hf.getId()));
+        assertEquals(IoMode.RANDOM_ACCESS, Database.getCatalog().getIoMode(other.getId()));
+
+        HeapFile copy = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(copy, SystemTestUtil.getUUID(), "", IoMode.MMAP);
+        assertEquals(IoMode.MMAP, copy.getIoMode());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageIoTest.class);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.PageReplacementPolicy;
+
+import static org.junit.Assert.*;
+
+public class PageReplacementPolicyTest {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * LRU evicts the least recently used evictable page
+     */
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        PageReplacementPolicy p = PageReplacementPolicy.Kind.LRU.create(3);
+        p.pageAdded(pid(0));
+        p.pageAdded(pid(1));
+        p.pageAdded(pid(2));
+        p.pageHit(pid(0));
+
+        assertEquals(pid(1), p.evict(x -> true));
+        // page 2 is pinned, so 0 goes next
+        assertEquals(pid(0), p.evict(x -> !x.equals(pid(2))));
+        assertEquals(1, p.size());
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance
+     */
+    @Test public void clockSecondChance() {
+        PageReplacementPolicy p = PageReplacementPolicy.Kind.CLOCK.create(3);
+        p.pageAdded(pid(0));
+        p.pageAdded(pid(1));
+        p.pageAdded(pid(2));
+        p.pageHit(pid(0));
+
+        assertEquals(pid(1), p.evict(x -> true));
+        p.pageAdded(pid(3));
+        assertEquals(pid(2), p.evict(x -> true));
+    }
+
+    /**
+     * 2Q keeps re-referenced pages in its main queue while a scan goes by
+     */
+    @Test public void twoQueueIsScanResistant() {
+        PageReplacementPolicy p = PageReplacementPolicy.Kind.TWO_QUEUE.create(4);
+        // page 0 is loaded, evicted, and loaded again: it is now hot
+        p.pageAdded(pid(0));
+        assertEquals(pid(0), p.evict(x -> true));
+        p.pageAdded(pid(0));
+
+        for (int i = 1; i < 20; i++) {
+            p.pageAdded(pid(i));
+            if (p.size() > 4) {
+                assertNotEquals(pid(0), p.evict(x -> true));
+            }
+        }
+        assertEquals(4, p.size());
+    }
+
+    /**
+     * evict returns null when nothing can be evicted
+     */
+    @Test public void nothingEvictable() {
+        for (PageReplacementPolicy.Kind kind : PageReplacementPolicy.Kind.values()) {
+            PageReplacementPolicy p = kind.create(2);
+            p.pageAdded(pid(0));
+            p.pageAdded(pid(1));
+            assertNull(kind.toString(), p.evict(x -> false));
+            assertEquals(kind.toString(), 2, p.size());
+        }
+    }
+
+    /**
+     * hits, misses and evictions are counted per policy
+     */
+    @Test public void stats() {
+        for (PageReplacementPolicy.Kind kind : PageReplacementPolicy.Kind.values()) {
+            PageReplacementPolicy p = kind.create(2);
+            p.pageAdded(pid(0));
+            p.pageHit(pid(0));
+            p.pageHit(pid(0));
+            p.pageAdded(pid(1));
+            p.evict(x -> true);
+            assertEquals(2, p.getStats().getHits());
+            assertEquals(2, p.getStats().getMisses());
+            assertEquals(1, p.getStats().getEvictions());
+            assertEquals(0.5, p.getStats().getHitRatio(), 1e-9);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // two int columns fit 504 tuples on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+    }
+
+    private List<PageId> pids(int from, int to) {
+        List<PageId> pids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            pids.add(new HeapPageId(hf.getId(), i));
+        }
+        return pids;
+    }
+
+    private static void awaitPrefetched(BufferPool bp, long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getStats().getPrefetched() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, bp.getStats().getPrefetched());
+    }
+
+    /**
+     * A run of pages read with one vectored read matches reading them one by one
+     */
+    @Test public void readPagesMatchesReadPage() throws Exception {
+        List<PageId> pids = pids(2, 7);
+        pids.add(new HeapPageId(hf.getId(), 11));
+        for (IoMode mode : IoMode.values()) {
+            hf.setIoMode(mode);
+            List<Page> pages = hf.readPages(pids);
+            assertEquals(pids.size(), pages.size());
+            for (int i = 0; i < pids.size(); i++) {
+                assertEquals(pids.get(i), pages.get(i).getId());
+                assertArrayEquals(mode.toString(), hf.readPage(pids.get(i)).getPageData(), pages.get(i).getPageData());
+            }
+        }
+        hf.close();
+    }
+
+    /**
+     * Prefetched pages are counted as hits once requested, and as wasted
+     * if they leave the pool unrequested
+     */
+    @Test public void prefetchStats() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.prefetchPages(pids(0, 10));
+        awaitPrefetched(bp, 10);
+        assertEquals(0, bp.getStats().getMisses());
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 5; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.discardPage(new HeapPageId(hf.getId(), 9));
+        bp.transactionComplete(tid);
+
+        BufferPoolStats stats = bp.getStats();
+        assertEquals(0, stats.getMisses());
+        assertEquals(6, stats.getHits());
+        assertEquals(5, stats.getPrefetchHits());
+        assertEquals(1, stats.getPrefetchWasted());
+    }
+
+    /**
+     * Pages locked exclusively may hold uncommitted data on disk, so they
+     * are not prefetched
+     */
+    @Test public void writeLockedPagesSkipped() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        TransactionId tid = new TransactionId();
+        PageId locked = new HeapPageId(hf.getId(), 1);
+        bp.getPage(tid, locked, Permissions.READ_WRITE);
+        bp.discardPage(locked);
+
+        bp.prefetchPages(pids(0, 3));
+        awaitPrefetched(bp, 2);
+        bp.getPage(tid, locked, Permissions.READ_WRITE);
+        assertEquals(2, bp.getStats().getMisses());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * A sequential scan reads every page once, through read-ahead or on
+     * demand, and none of its prefetches go to waste
+     */
+    @Test public void scanPrefetches() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        assertTrue(bp.getReadAheadLimit() > 0);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+
+        assertEquals(504 * PAGES, n);
+        BufferPoolStats stats = bp.getStats();
+        assertEquals(PAGES, stats.getMisses() + stats.getPrefetched());
+        assertEquals(stats.getPrefetched(), stats.getPrefetchHits());
+        assertEquals(0, stats.getPrefetchWasted());
+    }
+
+    /**
+     * Tiny pools don't prefetch at all
+     */
+    @Test public void smallPoolsDontPrefetch() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        assertEquals(0, bp.getReadAheadLimit());
+        bp.prefetchPages(Arrays.asList(new HeapPageId(hf.getId(), 0)));
+        Thread.sleep(50);
+        assertEquals(0, bp.getStats().getPrefetched());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
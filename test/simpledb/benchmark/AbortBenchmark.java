@@ -0,0 +1,70 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+/**
+ * Reports how long an abort takes against how much other transactions
+ * logged while it ran: a transaction deletes a tuple from a few pages and
+ * logs them, others commit one-row inserts meanwhile, and then it aborts.
+ * <p>
+ * Usage: java simpledb.benchmark.AbortBenchmark [interleaved commits...]
+ */
+public class AbortBenchmark {
+    private static final int PAGES = 8;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {0, 1000, 4000, 16000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%d pages changed by the aborting transaction%n", PAGES);
+        System.out.printf("%12s %10s %10s%n", "commits", "log KB", "abort us");
+        for (int n : sizes) {
+            // once to warm up, once to measure
+            run(n);
+            run(n);
+        }
+    }
+
+    private static void run(int commits) throws Exception {
+        Database.reset();
+        // two int columns fit 504 tuples on a page
+        HeapFile victimTable = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool bp = Database.getBufferPool();
+
+        Transaction victim = new Transaction();
+        victim.start();
+        for (int i = 0; i < PAGES; i++) {
+            HeapPageId pid = new HeapPageId(victimTable.getId(), i);
+            HeapPage page = (HeapPage) bp.getPage(victim.getId(), pid, Permissions.READ_WRITE);
+            bp.deleteTuple(victim.getId(), page.iterator().next());
+        }
+        // so that rollback has to read them back from the log
+        bp.flushPages(victim.getId());
+
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            bp.insertTuple(t.getId(), other.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        long logBytes = Database.getLogFile().getSize();
+
+        long start = System.nanoTime();
+        victim.abort();
+        long us = (System.nanoTime() - start) / 1000;
+        System.out.printf("%12d %10d %10d%n", commits, logBytes / 1024, us);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how many tuples concurrent transactions insert into a B+ tree per
+ * second as threads are added: each thread inserts a few random keys per
+ * transaction, retrying a transaction that aborts. The tree starts out packed,
+ * so the first insert into each leaf splits it, and most later ones find room.
+ * Reports committed inserts per second, aborts per commit and the lock statistics.
+ * <p>
+ * Usage: java simpledb.benchmark.BTreeInsertBenchmark [initial tuples] [inserts per transaction] [max threads] [seconds per run]
+ */
+public class BTreeInsertBenchmark {
+    /** Enough for the whole tree, so that the benchmark measures concurrency rather than I/O. */
+    private static final int POOL_PAGES = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int perTxn = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 5;
+
+        System.out.printf("%d initial tuples, %d inserts per transaction, %d s per run, %d processors%n", rows,
+                perTxn, seconds, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %12s %10s %14s %s%n", "threads", "inserts/s", "aborts", "aborts/commit", "lock stats");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, rows, perTxn, seconds);
+        }
+    }
+
+    private static void run(int threads, int rows, final int perTxn, long seconds) throws Exception {
+        Database.reset();
+        final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        final BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong inserts = new AtomicLong();
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            workers.add(new Thread(() -> {
+                try {
+                    int[] keys = new int[perTxn];
+                    TransactionId tid = null;
+                    while (!done.get()) {
+                        if (tid == null) {
+                            for (int k = 0; k < perTxn; k++) {
+                                keys[k] = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                            }
+                        }
+                        tid = tid == null ? new TransactionId() : new TransactionId(tid);
+                        try {
+                            for (int key : keys) {
+                                bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[]{key, key}));
+                            }
+                            bp.transactionComplete(tid, true);
+                            inserts.addAndGet(perTxn);
+                            commits.incrementAndGet();
+                            tid = null;
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        Thread.sleep(seconds * 1000);
+        done.set(true);
+        for (Thread w : workers) w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.toString());
+        }
+        System.out.printf("%8d %12.0f %10d %14.2f %s%n", threads, inserts.get() / secs, aborts.get(),
+                (double) aborts.get() / Math.max(1, commits.get()), bp.getLockStats());
+    }
+}
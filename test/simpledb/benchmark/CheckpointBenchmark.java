@@ -0,0 +1,117 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures the latency of one-row insert transactions, each thread spreading
+ * its inserts over TABLES tables of its own, while another thread
+ * takes a checkpoint every few milliseconds: with no checkpoints, with
+ * checkpoints that flush every page while holding the BufferPool (as
+ * checkpoints used to), and with fuzzy checkpoints.
+ * <p>
+ * Usage: java simpledb.benchmark.CheckpointBenchmark [threads] [commits per thread] [checkpoint interval ms]
+ */
+public class CheckpointBenchmark {
+    private static final int TABLES = 16;
+
+    private interface Checkpoint {
+        void run(BufferPool bp, LogFile log) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        long interval = args.length > 2 ? Long.parseLong(args[2]) : 20;
+
+        System.out.printf("%d threads, %d commits each, checkpoint every %d ms%n", threads, commits, interval);
+        System.out.printf("%-12s %12s %10s %10s %10s %12s%n", "checkpoint", "commits/s", "p50 us", "p99 us", "max us", "checkpoints");
+        run("none", threads, commits, interval, null);
+        run("sharp", threads, commits, interval, (bp, log) -> {
+            synchronized (bp) {
+                bp.flushAllPages();
+                log.logCheckpoint();
+            }
+        });
+        run("fuzzy", threads, commits, interval, (bp, log) -> log.logCheckpoint());
+    }
+
+    private static void run(String name, int threads, final int commits, final long interval,
+                            final Checkpoint checkpoint) throws Exception {
+        Database.reset();
+        final BufferPool bp = Database.getBufferPool();
+        final LogFile log = Database.getLogFile();
+        final long[][] latencies = new long[threads][commits];
+        final int[] checkpoints = new int[1];
+        // not an interrupt, which would close the log's channel under it
+        final AtomicBoolean done = new AtomicBoolean();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final List<HeapFile> tables = new ArrayList<>();
+            for (int j = 0; j < TABLES; j++) {
+                tables.add(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+            }
+            final long[] mine = latencies[i];
+            workers.add(new Thread(() -> {
+                try {
+                    for (int c = 0; c < commits; c++) {
+                        long start = System.nanoTime();
+                        Transaction t = new Transaction();
+                        t.start();
+                        bp.insertTuple(t.getId(), tables.get(c % TABLES).getId(), Utility.getHeapTuple(c, 2));
+                        t.commit();
+                        mine[c] = System.nanoTime() - start;
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        Thread checkpointer = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    Thread.sleep(interval);
+                    checkpoint.run(bp, log);
+                    checkpoints[0]++;
+                }
+            } catch (Throwable e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        if (checkpoint != null) checkpointer.start();
+        for (Thread w : workers) w.join();
+        done.set(true);
+        checkpointer.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.toString());
+        }
+
+        long[] all = new long[threads * commits];
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(latencies[i], 0, all, i * commits, commits);
+        }
+        Arrays.sort(all);
+        System.out.printf("%-12s %12.0f %10d %10d %10d %12d%n", name, all.length / secs,
+                all[all.length / 2] / 1000, all[(int) (all.length * 0.99)] / 1000,
+                all[all.length - 1] / 1000, checkpoints[0]);
+    }
+}
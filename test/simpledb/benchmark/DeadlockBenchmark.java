@@ -0,0 +1,104 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.LockStats;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares the deadlock policies of the LockManager on a hot-row workload
+ * like DeadlockTest's: each transaction reads two of a few hot pages,
+ * thinks, then writes both, upgrading its shared locks; an aborted
+ * transaction is retried with a TransactionId that keeps its age. Reports committed
+ * transactions per second and aborts per commit under each policy.
+ * <p>
+ * Usage: java simpledb.benchmark.DeadlockBenchmark [threads] [hot pages] [think ms] [seconds per policy]
+ */
+public class DeadlockBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int hot = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long think = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 5;
+
+        System.out.printf("%d threads, %d hot pages, %d ms think time, %d s per policy%n", threads, hot, think, seconds);
+        System.out.printf("%-12s %12s %10s %14s %s%n", "policy", "commits/s", "aborts", "aborts/commit", "lock stats");
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            run(policy, threads, hot, think, seconds);
+        }
+    }
+
+    private static void run(DeadlockPolicy policy, int threads, final int hot, final long think, long seconds)
+            throws Exception {
+        Database.reset();
+        // two int columns fit 504 tuples on a page
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * hot, null, null);
+        final int tableId = table.getId();
+        final BufferPool bp = Database.getBufferPool();
+        bp.setDeadlockPolicy(policy);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            workers.add(new Thread(() -> {
+                try {
+                    TransactionId tid = null;
+                    while (!done.get()) {
+                        PageId a = new HeapPageId(tableId, rand.nextInt(hot));
+                        PageId b = new HeapPageId(tableId, rand.nextInt(hot));
+                        tid = tid == null ? new TransactionId() : new TransactionId(tid);
+                        try {
+                            bp.getPage(tid, a, Permissions.READ_ONLY);
+                            bp.getPage(tid, b, Permissions.READ_ONLY);
+                            Thread.sleep(think);
+                            bp.getPage(tid, a, Permissions.READ_WRITE);
+                            bp.getPage(tid, b, Permissions.READ_WRITE);
+                            bp.transactionComplete(tid, true);
+                            commits.incrementAndGet();
+                            tid = null;
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        Thread.sleep(seconds * 1000);
+        done.set(true);
+        for (Thread w : workers) w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.toString());
+        }
+
+        LockStats stats = bp.getLockStats();
+        System.out.printf("%-12s %12.0f %10d %14.2f %s%n", policy, commits.get() / secs, aborts.get(),
+                (double) aborts.get() / Math.max(1, commits.get()), stats);
+    }
+}
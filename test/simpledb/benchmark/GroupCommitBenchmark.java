@@ -0,0 +1,41 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.GroupCommitTest;
+
+/**
+ * Measures commit throughput of concurrent one-row insert transactions, each
+ * thread inserting into its own table, with group commit off, with plain
+ * leader/follower batching, and with a batching window.
+ * <p>
+ * Usage: java simpledb.benchmark.GroupCommitBenchmark [threads] [commits per thread] [window micros]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long window = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        System.out.printf("%d threads, %d commits each%n", threads, commits);
+        System.out.printf("%-24s %12s %10s %14s%n", "configuration", "commits/s", "forces", "commits/force");
+        run("off", threads, commits, 0, 1);
+        run("leader/follower", threads, commits, 0, threads);
+        run("window " + window + "us", threads, commits, window, threads);
+    }
+
+    private static void run(String name, int threads, int commits, long maxWaitMicros, int maxBatch)
+            throws Exception {
+        Database.reset();
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(maxWaitMicros, maxBatch);
+        long forces = log.getForceCount();
+        long start = System.nanoTime();
+        GroupCommitTest.insertConcurrently(threads, commits);
+        double secs = (System.nanoTime() - start) / 1e9;
+        forces = log.getForceCount() - forces;
+        int total = threads * commits;
+        System.out.printf("%-24s %12.0f %10d %14.1f%n", name, total / secs, forces, (double) total / forces);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how many lock acquire/release pairs the LockManager grants per
+ * second as threads are added: each thread repeatedly takes a lock on a page
+ * and releases it, either on pages of its own or shared locks on a page all
+ * threads read. Then all threads lock one hot page, one request in five
+ * exclusive, and hold it for a moment; for this workload the latency of
+ * each acquire is reported too.
+ * <p>
+ * Usage: java simpledb.benchmark.LockBenchmark [ops per thread] [max threads]
+ */
+public class LockBenchmark {
+    private static final int PAGES_PER_THREAD = 64;
+    /** Requests per thread on the hot page, per ops per thread of the other workloads. */
+    private static final int HOT_FRACTION = 20;
+    /** How long a hot page lock is held, in busy iterations. */
+    private static final int HOT_WORK = 200;
+
+    private interface Op {
+        void run(LockManager lm, TransactionId tid, int thread, int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        System.out.printf("%d acquire/release pairs per thread, %d processors%n", ops,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-16s %8s %14s%n", "workload", "threads", "pairs/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run("private write", threads, ops, (lm, tid, thread, i) -> {
+                PageId pid = new HeapPageId(thread, i % PAGES_PER_THREAD);
+                lm.obtainWriteLock(tid, pid);
+                lm.releaseLock(tid, pid);
+            });
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run("shared read", threads, ops, (lm, tid, thread, i) -> {
+                PageId pid = new HeapPageId(-1, 0);
+                lm.obtainReadLock(tid, pid);
+                lm.releaseLock(tid, pid);
+            });
+        }
+        System.out.printf("%n%-16s %8s %14s %10s %10s %10s%n", "workload", "threads", "acquires/s", "p50 us", "p99 us",
+                "max us");
+        for (int threads = 1; threads <= maxThreads * 2; threads *= 2) {
+            runHot(threads, ops / HOT_FRACTION);
+        }
+    }
+
+    static volatile long sink;
+
+    private static void runHot(int threads, final int ops) throws Exception {
+        Database.reset();
+        final LockManager lm = new LockManager();
+        final PageId pid = new HeapPageId(-1, 0);
+        final long[][] latencies = new long[threads][ops];
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long[] mine = latencies[t];
+            final Random rand = new Random(t);
+            workers.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int i = 0; i < ops; i++) {
+                        boolean write = rand.nextInt(5) == 0;
+                        long start = System.nanoTime();
+                        if (write) {
+                            lm.obtainWriteLock(tid, pid);
+                        } else {
+                            lm.obtainReadLock(tid, pid);
+                        }
+                        mine[i] = System.nanoTime() - start;
+                        long x = 0;
+                        for (int j = 0; j < HOT_WORK; j++) {
+                            x += j * i;
+                        }
+                        sink = x;
+                        lm.releaseLock(tid, pid);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    lm.releaseAllLocks(tid);
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.toString());
+        }
+        long[] all = new long[threads * ops];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, t * ops, ops);
+        }
+        Arrays.sort(all);
+        System.out.printf("%-16s %8d %14.0f %10.1f %10.1f %10.1f%n", "hot 1/5 write", threads, all.length / secs,
+                all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3, all[all.length - 1] / 1e3);
+    }
+
+    private static void run(String name, int threads, final int ops, final Op op) throws Exception {
+        Database.reset();
+        final LockManager lm = new LockManager();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    // once to warm up, once to measure
+                    for (int i = 0; i < ops; i++) {
+                        op.run(lm, tid, thread, i);
+                    }
+                    for (int i = 0; i < ops; i++) {
+                        op.run(lm, tid, thread, i);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    lm.releaseAllLocks(tid);
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.toString());
+        }
+        System.out.printf("%-16s %8d %14.0f%n", name, threads, 2.0 * ops * threads / secs);
+    }
+}
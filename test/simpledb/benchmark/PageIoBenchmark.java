@@ -0,0 +1,50 @@
+package simpledb.benchmark;
+
+import java.util.Random;
+
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IoMode;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares page read throughput of the IoModes on a generated HeapFile,
+ * bypassing the BufferPool.
+ * <p>
+ * Usage: java simpledb.benchmark.PageIoBenchmark [pages] [reads]
+ */
+public class PageIoBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+        // two int columns fit 504 tuples on a page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        System.out.printf("%d pages, %d reads per run%n", hf.numPages(), reads);
+        System.out.printf("%-14s %14s %14s%n", "mode", "seq pages/s", "random pages/s");
+
+        for (IoMode mode : IoMode.values()) {
+            hf.setIoMode(mode);
+            // warm up the JIT and the OS page cache
+            run(hf, pages, reads, false);
+            double seq = run(hf, pages, reads, false);
+            double rnd = run(hf, pages, reads, true);
+            System.out.printf("%-14s %14.0f %14.0f%n", mode, seq, rnd);
+        }
+        hf.close();
+    }
+
+    /**
+     * @return pages read per second
+     */
+    private static double run(HeapFile hf, int pages, int reads, boolean random) {
+        Random r = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            int pgNo = random ? r.nextInt(pages) : i % pages;
+            hf.readPage(new HeapPageId(hf.getId(), pgNo));
+        }
+        return reads / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+/**
+ * Reports restart time against log size: builds a log of transactions that
+ * each delete a tuple from several random pages, then crashes and recovers
+ * from it with 1, 2, 4... threads, up to the number of processors.
+ * <p>
+ * Usage: java simpledb.benchmark.RecoveryBenchmark [transactions...]
+ */
+public class RecoveryBenchmark {
+    private static final int TABLES = 8;
+    private static final int PAGES_PER_TABLE = 64;
+    private static final int PAGES_PER_TRANSACTION = 8;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {500, 2000, 8000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d tables of %d pages, %d pages changed per transaction%n",
+                TABLES, PAGES_PER_TABLE, PAGES_PER_TRANSACTION);
+        System.out.printf("%12s %10s %8s %12s%n", "transactions", "log KB", "threads", "restart ms");
+        for (int n : sizes) {
+            List<File> files = buildLog(n);
+            long logBytes = Database.getLogFile().getSize();
+            for (int threads = 1; ; threads = Math.min(2 * threads, cores)) {
+                // once to warm up, once to measure
+                recover(files, threads);
+                long ms = recover(files, threads);
+                System.out.printf("%12d %10d %8d %12d%n", n, logBytes / 1024, threads, ms);
+                if (threads == cores) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static List<File> buildLog(int transactions) throws Exception {
+        Database.reset();
+        List<File> files = new ArrayList<>();
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < TABLES; i++) {
+            // two int columns fit 504 tuples on a page
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES_PER_TABLE, null, null);
+            files.add(hf.getFile());
+            tables.add(hf);
+        }
+        BufferPool bp = Database.getBufferPool();
+        Random rnd = new Random(0);
+        for (int i = 0; i < transactions; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < PAGES_PER_TRANSACTION; j++) {
+                HeapFile hf = tables.get(rnd.nextInt(TABLES));
+                HeapPageId pid = new HeapPageId(hf.getId(), rnd.nextInt(PAGES_PER_TABLE));
+                HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+                if (page.iterator().hasNext()) {
+                    bp.deleteTuple(t.getId(), page.iterator().next());
+                }
+            }
+            t.commit();
+        }
+        return files;
+    }
+
+    /**
+     * @return the milliseconds recover() took
+     */
+    private static long recover(List<File> files, int threads) throws Exception {
+        Database.reset();
+        for (File f : files) {
+            Utility.openHeapFile(2, f);
+        }
+        Database.getLogFile().setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSerializerTest extends SimpleDbTestBase {
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("logser", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    private static void assertSamePage(Page expected, Page actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getId(), actual.getId());
+        assertArrayEquals(expected.getPageData(), actual.getPageData());
+    }
+
+    /** @return the pages of each kind a B+ tree has, other than header pages */
+    private static List<Page> btreePages() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        List<Page> pages = new ArrayList<>();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        BTreeInternalPage root = (BTreeInternalPage) bf.readPage(rootPtr.getRootId());
+        BTreeEntry e = root.iterator().next();
+        pages.add(rootPtr);
+        pages.add(root);
+        pages.add(bf.readPage(e.getLeftChild()));
+        return pages;
+    }
+
+    /**
+     * A record is appended in one piece at the given offset, ending with
+     * that offset, and its page images read back as the same pages
+     */
+    @Test public void updateRecordRoundTrip() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 600, null, null);
+        Page before = hf.readPage(new HeapPageId(hf.getId(), 1));
+        Page after = hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        LogSerializer out = new LogSerializer();
+        long end = out.begin(LogFile.UPDATE_RECORD, 42).putPage(before).putPage(after)
+                .append(raf.getChannel(), 8, 8);
+        assertEquals(end, raf.length());
+
+        raf.seek(8);
+        assertEquals(LogFile.UPDATE_RECORD, raf.readInt());
+        assertEquals(42, raf.readLong());
+        assertSamePage(before, LogSerializer.readPage(raf));
+        assertSamePage(after, LogSerializer.readPage(raf));
+        assertEquals(8, raf.readLong());
+        assertEquals(end, raf.getFilePointer());
+    }
+
+    /**
+     * B+ tree pages are tagged by kind and rebuilt with their key field
+     */
+    @Test public void btreePagesRoundTrip() throws Exception {
+        List<Page> pages = btreePages();
+        LogSerializer out = new LogSerializer();
+        out.begin(LogFile.UPDATE_RECORD, 1);
+        for (Page p : pages) {
+            out.putPage(p);
+        }
+        out.append(raf.getChannel(), 0, 0);
+
+        raf.seek(LogFile.INT_SIZE + LogFile.LONG_SIZE);
+        for (Page p : pages) {
+            assertSamePage(p, LogSerializer.readPage(raf));
+        }
+        assertEquals(BTreePageId.LEAF, ((BTreePageId) pages.get(2).getId()).pgcateg());
+    }
+
+    /**
+     * Inserting a tuple is logged as a small DELTA record, which redoes and
+     * undoes the insert
+     */
+    @Test public void deltaRecord() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPage after = new HeapPage(before.getId(), before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(7, 2));
+
+        long end = new LogSerializer().beginUpdate(3, 17, before, after).append(raf.getChannel(), 0, 0);
+        assertTrue("delta record of " + end + " bytes", end < 100);
+
+        raf.seek(0);
+        assertEquals(LogFile.DELTA_RECORD, raf.readInt());
+        assertEquals(3, raf.readLong());
+        assertEquals(17, raf.readLong());
+        LogSerializer.Change change = LogSerializer.readChange(LogFile.DELTA_RECORD, raf);
+        assertFalse(change.isFullImage());
+        assertEquals(before.getId(), change.pid);
+        byte[] data = before.getPageData();
+        change.apply(data, true);
+        assertSamePage(after, change.build(data));
+        change.apply(data, false);
+        assertSamePage(before, change.build(data));
+        assertEquals(0, raf.readLong());
+    }
+
+    /**
+     * A change to most of a page keeps full images
+     */
+    @Test public void largeChangeKeepsFullImages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPage after = new HeapPage(before.getId(), HeapPage.createEmptyPageData());
+
+        new LogSerializer().beginUpdate(3, 17, before, after).append(raf.getChannel(), 0, 0);
+        raf.seek(0);
+        assertEquals(LogFile.UPDATE_RECORD, raf.readInt());
+        raf.readLong();
+        assertEquals(17, raf.readLong());
+        LogSerializer.Change change = LogSerializer.readChange(LogFile.UPDATE_RECORD, raf);
+        assertTrue(change.isFullImage());
+        assertSamePage(after, change.image(true));
+        assertSamePage(before, change.image(false));
+    }
+
+    /**
+     * Nearby changed bytes are merged into one range
+     */
+    @Test public void diffMergesNearbyRanges() {
+        byte[] a = new byte[100];
+        byte[] b = a.clone();
+        b[10] = 1;
+        b[14] = 1;
+        b[60] = 1;
+        assertArrayEquals(new int[] {10, 5, 60, 1}, LogSerializer.diff(a, b));
+        assertArrayEquals(new int[0], LogSerializer.diff(a, a.clone()));
+        Arrays.fill(b, 0, 50, (byte) 1);
+        assertNull(LogSerializer.diff(a, b));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSerializerTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that concurrent commits share log forces.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    /**
+     * Run threads threads, each committing commits one-row transactions into
+     * a table of its own.
+     *
+     * @return the tables
+     */
+    public static List<HeapFile> insertConcurrently(int threads, final int commits) throws Exception {
+        final List<HeapFile> tables = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+            tables.add(table);
+            workers.add(new Thread(() -> {
+                try {
+                    for (int c = 0; c < commits; c++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(c, 2));
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        return tables;
+    }
+
+    private static int count(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    @After public void restoreDefaults() {
+        Database.getLogFile().setGroupCommit(0, 32);
+    }
+
+    /**
+     * Commits that arrive together are forced together
+     */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(2000, 8);
+        long before = log.getForceCount();
+        List<HeapFile> tables = insertConcurrently(8, 25);
+
+        assertTrue("forced " + (log.getForceCount() - before) + " times for 200 commits",
+                log.getForceCount() - before < 200);
+        for (HeapFile table : tables) {
+            assertEquals(25, count(table));
+        }
+    }
+
+    /**
+     * With group commit off, every commit forces the log itself
+     */
+    @Test public void groupCommitOff() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(0, 1);
+        long before = log.getForceCount();
+        List<HeapFile> tables = insertConcurrently(1, 10);
+
+        assertTrue(log.getForceCount() - before >= 10);
+        assertEquals(10, count(tables.get(0)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
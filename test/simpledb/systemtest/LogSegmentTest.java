@@ -0,0 +1,124 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the log's segment files.
+ */
+public class LogSegmentTest extends SimpleDbTestBase {
+
+    private static void commitInsert(HeapFile hf, int v) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+        t.commit();
+    }
+
+    private static List<Integer> values(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        List<Integer> values = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /** @return the segment files of the log Database keeps, oldest first */
+    private static File[] segments() {
+        File[] files = new File(".").listFiles((dir, name) -> name.startsWith("log."));
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Small segments fill up and new ones are started; truncation deletes
+     * the old ones, and the rest is enough to recover
+     */
+    @Test public void truncationDeletesOldSegments() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, 10, null, null);
+        File f = hf.getFile();
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(256);
+        for (int i = 0; i < 20; i++) {
+            commitInsert(hf, 1000 + i);
+        }
+        File[] before = segments();
+        assertTrue(before.length > 5);
+
+        log.logCheckpoint();
+        Database.getBufferPool().flushPendingWrites();
+        log.logCheckpoint();
+        File[] after = segments();
+        assertTrue(after.length < before.length);
+        assertFalse(before[0].exists());
+
+        commitInsert(hf, 2000);
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        List<Integer> values = values(hf);
+        assertEquals(31, values.size());
+        assertTrue(values.contains(1019));
+        assertTrue(values.contains(2000));
+    }
+
+    /**
+     * A record torn by a crash is cut off by recovery, so the records
+     * appended after recovery can be read by the next one
+     */
+    @Test public void recoveryCutsOffTornRecord() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, 10, null, null);
+        File f = hf.getFile();
+        Database.getBufferPool().setDirtyWatermarks(0.9, 1.0);
+        commitInsert(hf, 1000);
+
+        // the start of an UPDATE record
+        File[] segments = segments();
+        try (RandomAccessFile tail = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            tail.seek(tail.length());
+            tail.write(new byte[] {0, 0, 0, 3, 0, 0});
+        }
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        Database.getBufferPool().setDirtyWatermarks(0.9, 1.0);
+        commitInsert(hf, 2000);
+
+        // the insert of 2000 only made it to the log
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        List<Integer> values = values(hf);
+        assertTrue(values.contains(1000));
+        assertTrue(values.contains(2000));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
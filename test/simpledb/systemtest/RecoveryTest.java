@@ -0,0 +1,203 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests recovery from the last checkpoint with several recovery threads.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int TABLES = 4;
+
+    private static void insert(HeapFile hf, Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v, 2));
+    }
+
+    private static List<Integer> values(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        List<Integer> values = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /**
+     * Committed changes made after the checkpoint are redone on disk pages
+     * that never saw them, and the changes of an unfinished transaction
+     * are undone, whatever the number of threads
+     */
+    @Test public void redoAndUndoFromCheckpoint() throws Exception {
+        for (int threads : new int[] {1, 4}) {
+            Database.reset();
+            List<File> files = new ArrayList<>();
+            List<HeapFile> tables = new ArrayList<>();
+            for (int i = 0; i < TABLES; i++) {
+                HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, 10, null, null);
+                files.add(hf.getFile());
+                tables.add(hf);
+            }
+            Transaction t = new Transaction();
+            t.start();
+            insert(tables.get(0), t, 500);
+            t.commit();
+            Database.getLogFile().logCheckpoint();
+
+            // the disk as the checkpoint left it
+            List<byte[]> atCheckpoint = new ArrayList<>();
+            for (File f : files) {
+                atCheckpoint.add(Files.readAllBytes(f.toPath()));
+            }
+
+            for (int i = 0; i < 20; i++) {
+                t = new Transaction();
+                t.start();
+                insert(tables.get(i % TABLES), t, 1000 + i);
+                t.commit();
+            }
+            Transaction loser = new Transaction();
+            loser.start();
+            for (HeapFile hf : tables) {
+                insert(hf, loser, 5000);
+            }
+            Database.getBufferPool().flushPages(loser.getId());
+
+            // crash before any page written since the checkpoint reached disk
+            Database.reset();
+            for (int i = 0; i < TABLES; i++) {
+                Files.write(files.get(i).toPath(), atCheckpoint.get(i));
+                tables.set(i, Utility.openHeapFile(2, files.get(i)));
+            }
+            Database.getLogFile().setRecoveryThreads(threads);
+            Database.getLogFile().recover();
+
+            for (int i = 0; i < TABLES; i++) {
+                List<Integer> values = values(tables.get(i));
+                assertEquals(threads + " threads", i == 0 ? 106 : 105, values.size());
+                assertFalse(values.contains(5000));
+                for (int j = i; j < 20; j += TABLES) {
+                    assertTrue(values.contains(1000 + j));
+                }
+            }
+        }
+    }
+
+    /**
+     * A transaction undone by recovery is logged as aborted, so a second
+     * recovery leaves later commits alone
+     */
+    @Test public void losersUndoneOnce() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, 10, null, null);
+        File f = hf.getFile();
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(hf, loser, 5000);
+        Database.getBufferPool().flushPages(loser.getId());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        Transaction t = new Transaction();
+        t.start();
+        insert(hf, t, 6000);
+        t.commit();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        List<Integer> values = values(hf);
+        assertEquals(11, values.size());
+        assertTrue(values.contains(6000));
+        assertFalse(values.contains(5000));
+    }
+
+    /**
+     * A checkpoint leaves committed pages to the cleaner and records them
+     * in its dirty page table, so recovery redoes their changes even though
+     * they were logged before the checkpoint; once they are written, the
+     * next checkpoint truncates the log past them
+     */
+    @Test public void fuzzyCheckpointRedoesDirtyPages() throws Exception {
+        Database.reset();
+        Database.getBufferPool().setDirtyWatermarks(0.9, 1.0);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, 10, null, null);
+        File f = hf.getFile();
+        byte[] before = Files.readAllBytes(f.toPath());
+        Transaction t = new Transaction();
+        t.start();
+        insert(hf, t, 500);
+        t.commit();
+        assertEquals(1, Database.getBufferPool().getPendingWrites());
+
+        Database.getLogFile().logCheckpoint();
+
+        // crash with the insert not on disk
+        Database.reset();
+        Files.write(f.toPath(), before);
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        assertTrue(values(hf).contains(500));
+
+        Database.getBufferPool().setDirtyWatermarks(0.9, 1.0);
+        // a segment per record or two, so that truncation can drop some
+        Database.getLogFile().setSegmentSize(64);
+        t = new Transaction();
+        t.start();
+        insert(hf, t, 600);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().flushPendingWrites();
+        long logged = Database.getLogFile().getSize();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getSize() < logged);
+    }
+
+    /**
+     * A transaction committed through the BufferPool, without a Transaction
+     * to write its commit record, is redone by recovery all the same
+     */
+    @Test public void bufferPoolCommitRedone() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, 10, null, null);
+        File f = hf.getFile();
+        byte[] before = Files.readAllBytes(f.toPath());
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(500, 2));
+        Database.getBufferPool().transactionComplete(tid, true);
+
+        // crash with the insert not on disk
+        Database.reset();
+        Files.write(f.toPath(), before);
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        List<Integer> values = values(hf);
+        assertEquals(11, values.size());
+        assertTrue(values.contains(500));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}